@@ -20,10 +20,13 @@ package com.google.litecoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -43,7 +46,8 @@ import static com.google.litecoin.core.Utils.*;
  */
 public class BitcoinSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
-    private static final int COMMAND_LEN = 12;
+    static final int COMMAND_LEN = 12;
+    static final int HEADER_LEN = 4 + COMMAND_LEN + 4 + 4 /* checksum */;
 
     private NetworkParameters params;
     private boolean parseLazy = false;
@@ -97,19 +101,8 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = doubleDigest(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = new byte[HEADER_LEN];
+        writeHeader(name, message, null, header);
         out.write(header);
         out.write(message);
 
@@ -121,11 +114,50 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
+        out.write(serializeToPacket(message));
+    }
+
+    /**
+     * <p>Returns the whole packet for the given message, header and payload, in one array of exactly the right size
+     * that can be handed to the network as is.</p>
+     *
+     * <p>The payload is not copied if the message still has the bytes it was parsed from, and the checksum it arrived
+     * with is reused, so relaying a message we received does not serialize or hash it again. While a message is being
+     * sent to many peers its packet is made once and returned as is, see {@link Peer#sendToPeers}.</p>
+     */
+    public byte[] serializeToPacket(Message message) {
+        byte[] cached = message.getCachedPacket();
+        if (cached != null)
+            return cached;
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        // Only read from here on, so the array owned by the message can be used.
+        byte[] payload = message.unsafeBitcoinSerialize();
+        byte[] packet = new byte[HEADER_LEN + payload.length];
+        writeHeader(name, payload, message.getChecksum(), packet);
+        System.arraycopy(payload, 0, packet, HEADER_LEN, payload.length);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, bytesToHexString(packet));
+        return packet;
+    }
+
+    private void writeHeader(String name, byte[] payload, @Nullable byte[] checksum, byte[] header) {
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(payload.length, header, 4 + COMMAND_LEN);
+
+        if (checksum == null)
+            checksum = doubleDigest(payload);
+        System.arraycopy(checksum, 0, header, 4 + COMMAND_LEN + 4, 4);
     }
 
     /**
@@ -152,6 +184,31 @@ public class BitcoinSerializer {
         return deserializePayload(header, in);
     }
 
+    /**
+     * <p>Reads a message from the given buffer, as {@link BitcoinSerializer#deserialize(InputStream)} does from a
+     * stream, but without going through a stream a byte at a time. The payload is copied out of the buffer once, into
+     * the array the message is parsed from, so the buffer can be reused as soon as this returns.</p>
+     *
+     * <p>If the buffer does not hold a whole message yet, a {@link BufferUnderflowException} is thrown and the
+     * position of the buffer is left where it was, so the call can be repeated once more data has arrived. Nothing is
+     * allocated for the payload until all of it is there.</p>
+     */
+    public Message deserialize(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        try {
+            seekPastMagicBytes(in);
+            BitcoinPacketHeader header = new BitcoinPacketHeader(in);
+            if (in.remaining() < header.size)
+                throw new BufferUnderflowException();
+            byte[] payloadBytes = new byte[header.size];
+            in.get(payloadBytes);
+            return deserializePayload(header, payloadBytes);
+        } catch (BufferUnderflowException e) {
+            in.position(start);
+            throw e;
+        }
+    }
+
     /**
      * Deserializes only the header in case packet meta data is needed before decoding
      * the payload. This method assumes you have already called seekPastMagicBytes()
@@ -174,7 +231,10 @@ public class BitcoinSerializer {
             }
             readCursor += bytesRead;
         }
+        return deserializePayload(header, payloadBytes);
+    }
 
+    private Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
         // Verify the checksum.
         byte[] hash;
         hash = doubleDigest(payloadBytes);
@@ -246,6 +306,25 @@ public class BitcoinSerializer {
         return message;
     }
 
+    /**
+     * Skips to just past the next packet magic in the buffer, throwing {@link BufferUnderflowException} if there is
+     * none.
+     */
+    public void seekPastMagicBytes(ByteBuffer in) {
+        int magicCursor = 3;  // Which byte of the magic we're looking for currently.
+        while (true) {
+            int b = in.get() & 0xFF;
+            int expectedByte = 0xFF & (int) (params.getPacketMagic() >>> (magicCursor * 8));
+            if (b == expectedByte) {
+                magicCursor--;
+                if (magicCursor < 0)
+                    return;
+            } else {
+                magicCursor = 3;
+            }
+        }
+    }
+
     public void seekPastMagicBytes(InputStream in) throws IOException {
         int magicCursor = 3;  // Which byte of the magic we're looking for currently.
         while (true) {
@@ -293,7 +372,16 @@ public class BitcoinSerializer {
         public final byte[] checksum;
 
         public BitcoinPacketHeader(InputStream in) throws ProtocolException, IOException {
-            header = new byte[COMMAND_LEN + 4 + 4];
+            this(readHeader(in));
+        }
+
+        /** Reads a header from the buffer, throwing {@link BufferUnderflowException} if it is not all there. */
+        public BitcoinPacketHeader(ByteBuffer in) throws ProtocolException {
+            this(readHeader(in));
+        }
+
+        private static byte[] readHeader(InputStream in) throws IOException {
+            byte[] header = new byte[COMMAND_LEN + 4 + 4];
             int readCursor = 0;
             while (readCursor < header.length) {
                 int bytesRead = in.read(header, readCursor, header.length - readCursor);
@@ -303,7 +391,17 @@ public class BitcoinSerializer {
                 }
                 readCursor += bytesRead;
             }
+            return header;
+        }
+
+        private static byte[] readHeader(ByteBuffer in) {
+            byte[] header = new byte[COMMAND_LEN + 4 + 4];
+            in.get(header);
+            return header;
+        }
 
+        private BitcoinPacketHeader(byte[] header) throws ProtocolException {
+            this.header = header;
             int cursor = 0;
 
             // The command is a NULL terminated string, unless the command fills all twelve bytes
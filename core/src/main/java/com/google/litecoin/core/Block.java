@@ -16,6 +16,7 @@
 
 package com.google.litecoin.core;
 
+import com.google.litecoin.crypto.LitecoinScrypt;
 import com.google.litecoin.script.Script;
 import com.google.litecoin.script.ScriptBuilder;
 import com.google.common.annotations.VisibleForTesting;
@@ -35,9 +36,7 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 
-import static com.google.litecoin.core.Utils.doubleDigest;
 import static com.google.litecoin.core.Utils.doubleDigestTwoBuffers;
-import static com.google.litecoin.core.Utils.scryptDigest;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -191,7 +190,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor)));
+        hash = Sha256Digests.doubleDigestReversed(bytes, offset, cursor);
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -506,16 +505,19 @@ public class Block extends Message {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
+            byte[] header = bos.toByteArray();
+            return Sha256Digests.doubleDigestReversed(header, 0, header.length);
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
     }
+
     private Sha256Hash calculateScryptHash() {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(scryptDigest(bos.toByteArray())));
+            byte[] header = bos.toByteArray();
+            return new Sha256Hash(Utils.reverseBytes(LitecoinScrypt.hash(header, 0, header.length)));
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -707,7 +709,7 @@ public class Block extends Message {
         return new Sha256Hash(tree.get(tree.size() - 1));
     }
 
-    private List<byte[]> buildMerkleTree() {
+    List<byte[]> buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
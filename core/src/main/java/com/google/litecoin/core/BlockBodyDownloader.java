@@ -0,0 +1,416 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import com.google.litecoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Drives the last stage of a headers first chain download. The download peer fetches batches of headers with
+ * "getheaders" and checks their proof of work in parallel (see {@link ParallelHeaderVerifier}). The hashes of the
+ * headers whose bodies are needed are then handed to this class, which requests the bodies with "getdata" from every
+ * connected peer, keeping a bounded window of blocks in flight per peer.</p>
+ *
+ * <p>Bodies can arrive out of order when several peers are used. That's fine: {@link AbstractBlockChain} keeps
+ * blocks that don't connect yet as orphans and links them once their parent arrives.</p>
+ *
+ * <p>A request that isn't answered within {@link #REQUEST_TIMEOUT_MSEC} is put back at the front of the queue, as is
+ * one the peer answered with "notfound". Such a block isn't asked from that peer again, so if no other peer has it
+ * the download waits for one that does to connect.</p>
+ *
+ * <p>This class is thread safe. Messages are never sent whilst its lock is held.</p>
+ */
+class BlockBodyDownloader {
+    private static final Logger log = LoggerFactory.getLogger(BlockBodyDownloader.class);
+
+    /** The default number of blocks requested from a single peer at once. */
+    public static final int DEFAULT_WINDOW_PER_PEER = 32;
+    // Stop pipelining getheaders once this many bodies are waiting to be fetched, to bound memory usage.
+    static final int MAX_QUEUED_BODIES = HeadersMessage.MAX_HEADERS * 10;
+    // Ask for more headers again once the queue drains below this.
+    static final int QUEUE_LOW_WATER_MARK = HeadersMessage.MAX_HEADERS;
+    /** How long a peer has to deliver a requested block before it is requested again. */
+    public static final long REQUEST_TIMEOUT_MSEC = 60 * 1000;
+    // How often PeerGroup checks for requests that timed out.
+    static final long TIMEOUT_CHECK_INTERVAL_MSEC = 5 * 1000;
+
+    private static class Request {
+        final Peer peer;
+        final long deadline;
+
+        Request(Peer peer, long deadline) {
+            this.peer = peer;
+            this.deadline = deadline;
+        }
+    }
+
+    private final ReentrantLock lock = Threading.lock("blockbodydownloader");
+    private final int windowPerPeer;
+    private final ParallelHeaderVerifier headerVerifier;
+
+    // Hashes whose bodies haven't been requested yet, in chain order.
+    @GuardedBy("lock") private final LinkedList<Sha256Hash> queue = new LinkedList<Sha256Hash>();
+    // The same hashes as the queue, for fast membership tests.
+    @GuardedBy("lock") private final Set<Sha256Hash> queued = new HashSet<Sha256Hash>();
+    // Hashes requested but not received yet, in the order they were requested, and who they were requested from. As
+    // every request gets the same timeout the deadlines are in order too.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Request> inFlight =
+            new LinkedHashMap<Sha256Hash, Request>();
+    // Peers that answered "notfound" for a hash that is still wanted.
+    @GuardedBy("lock") private final Map<Sha256Hash, Set<Peer>> notFoundBy = new HashMap<Sha256Hash, Set<Peer>>();
+    @GuardedBy("lock") private final List<Peer> peers = new ArrayList<Peer>();
+    // The last header handed to us. Further headers must build on it.
+    @GuardedBy("lock") private Sha256Hash tip;
+    // The peer fetching headers. Progress events for bodies received by any peer are reported through it, so that
+    // listeners attached only to the download peer (like a DownloadListener) see the whole download.
+    @GuardedBy("lock") private Peer downloadPeer;
+    // If set, this peer held back a getheaders because the queue was full, and should be asked to continue.
+    @GuardedBy("lock") private Peer headersPeer;
+    // Round robin position over the peers list, so load is spread when windows are not full.
+    @GuardedBy("lock") private int nextPeer;
+
+    BlockBodyDownloader(ParallelHeaderVerifier headerVerifier, int windowPerPeer) {
+        checkArgument(windowPerPeer > 0);
+        this.headerVerifier = checkNotNull(headerVerifier);
+        this.windowPerPeer = windowPerPeer;
+    }
+
+    /** Returns the verifier the download peer should use to check batches of headers. */
+    ParallelHeaderVerifier getHeaderVerifier() {
+        return headerVerifier;
+    }
+
+    /** Adds a peer that block bodies may be requested from. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.contains(peer))
+                peers.add(peer);
+        } finally {
+            lock.unlock();
+        }
+        fill();
+    }
+
+    /**
+     * Removes a peer, for instance because it disconnected. Anything that was in flight from it is requested again
+     * from the remaining peers.
+     */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            peers.remove(peer);
+            if (headersPeer == peer)
+                headersPeer = null;
+            if (downloadPeer == peer)
+                downloadPeer = null;
+            List<Sha256Hash> requeue = new ArrayList<Sha256Hash>();
+            Iterator<Map.Entry<Sha256Hash, Request>> it = inFlight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, Request> entry = it.next();
+                if (entry.getValue().peer == peer) {
+                    requeue.add(entry.getKey());
+                    it.remove();
+                }
+            }
+            if (!requeue.isEmpty())
+                log.info("{}: Re-requesting {} block bodies from other peers", peer, requeue.size());
+            requeue(requeue);
+            Iterator<Set<Peer>> refusals = notFoundBy.values().iterator();
+            while (refusals.hasNext()) {
+                Set<Peer> refusedBy = refusals.next();
+                refusedBy.remove(peer);
+                if (refusedBy.isEmpty())
+                    refusals.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+        fill();
+    }
+
+    /**
+     * Returns the hash of the last header given to {@link #enqueue(java.util.List)} if any bodies are still
+     * outstanding, otherwise null, meaning the chain head is the point to continue from.
+     */
+    @Nullable Sha256Hash getTip() {
+        lock.lock();
+        try {
+            return isIdleLocked() ? null : tip;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if no bodies are waiting to be requested or received. */
+    boolean isIdle() {
+        lock.lock();
+        try {
+            return isIdleLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean isIdleLocked() {
+        return queue.isEmpty() && inFlight.isEmpty();
+    }
+
+    /** Returns true if the body of this block was queued or requested and hasn't been received yet. */
+    boolean isPending(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return inFlight.containsKey(hash) || queued.contains(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many bodies are waiting to be requested or received. */
+    int getPendingCount() {
+        lock.lock();
+        try {
+            return queue.size() + inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records which peer is fetching headers. */
+    void setDownloadPeer(Peer peer) {
+        lock.lock();
+        try {
+            downloadPeer = peer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the peer fetching headers, or null if there is none at the moment. */
+    @Nullable Peer getDownloadPeer() {
+        lock.lock();
+        try {
+            return downloadPeer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the given peer stopped requesting headers because too many bodies were queued. It will be asked
+     * to continue via {@link Peer#requestMoreHeaders()} once the queue drains.
+     */
+    void setHeadersPeer(Peer peer) {
+        lock.lock();
+        try {
+            headersPeer = peer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Appends the hashes of verified headers, in chain order, and starts fetching their bodies. */
+    void enqueue(List<Sha256Hash> hashes) {
+        if (hashes.isEmpty())
+            return;
+        lock.lock();
+        try {
+            queue.addAll(hashes);
+            queued.addAll(hashes);
+            tip = hashes.get(hashes.size() - 1);
+        } finally {
+            lock.unlock();
+        }
+        fill();
+    }
+
+    /**
+     * Called by a peer when it receives a block body. Returns true if the block was one we are waiting for, whichever
+     * peer it was requested from, in which case more bodies are requested to keep the window full.
+     */
+    boolean onBlockReceived(Sha256Hash hash, Peer from) {
+        Peer resumeHeaders = null;
+        lock.lock();
+        try {
+            if (inFlight.remove(hash) == null) {
+                // It may have timed out and be waiting to be requested again.
+                if (!queued.remove(hash))
+                    return false;
+                queue.remove(hash);
+            }
+            notFoundBy.remove(hash);
+            if (headersPeer != null && queue.size() < QUEUE_LOW_WATER_MARK) {
+                resumeHeaders = headersPeer;
+                headersPeer = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        fill();
+        if (resumeHeaders != null)
+            resumeHeaders.requestMoreHeaders();
+        return true;
+    }
+
+    /**
+     * Called by a peer when it receives a "notfound" message. The given hashes that were requested from that peer are
+     * requested again from other peers.
+     */
+    void onNotFound(List<Sha256Hash> hashes, Peer from) {
+        lock.lock();
+        try {
+            List<Sha256Hash> requeue = new ArrayList<Sha256Hash>();
+            for (Sha256Hash hash : hashes) {
+                Request request = inFlight.get(hash);
+                if (request == null || request.peer != from)
+                    continue;
+                inFlight.remove(hash);
+                Set<Peer> refusedBy = notFoundBy.get(hash);
+                if (refusedBy == null) {
+                    refusedBy = new HashSet<Peer>();
+                    notFoundBy.put(hash, refusedBy);
+                }
+                refusedBy.add(from);
+                requeue.add(hash);
+            }
+            if (requeue.isEmpty())
+                return;
+            log.info("{}: Peer does not have {} block bodies, re-requesting them from other peers", from,
+                    requeue.size());
+            requeue(requeue);
+        } finally {
+            lock.unlock();
+        }
+        fill();
+    }
+
+    /** Requests again any blocks that weren't delivered within {@link #REQUEST_TIMEOUT_MSEC}. */
+    void checkTimeouts() {
+        lock.lock();
+        try {
+            if (!expireLocked())
+                return;
+        } finally {
+            lock.unlock();
+        }
+        fill();
+    }
+
+    // Moves requests past their deadline back to the queue. Returns true if there were any.
+    @GuardedBy("lock")
+    private boolean expireLocked() {
+        long now = Utils.now().getTime();
+        List<Sha256Hash> requeue = new ArrayList<Sha256Hash>();
+        Iterator<Map.Entry<Sha256Hash, Request>> it = inFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Sha256Hash, Request> entry = it.next();
+            if (entry.getValue().deadline > now)
+                break;
+            log.info("{}: Timed out waiting for block {}", entry.getValue().peer, entry.getKey());
+            requeue.add(entry.getKey());
+            it.remove();
+        }
+        requeue(requeue);
+        return !requeue.isEmpty();
+    }
+
+    // Puts the given hashes back at the front of the queue, in order.
+    @GuardedBy("lock")
+    private void requeue(List<Sha256Hash> hashes) {
+        queue.addAll(0, hashes);
+        queued.addAll(hashes);
+    }
+
+    // Moves hashes from the queue into the in flight set for every peer with room in its window, then sends the
+    // getdata messages once the lock is released.
+    private void fill() {
+        Map<Peer, List<Sha256Hash>> requests = new LinkedHashMap<Peer, List<Sha256Hash>>();
+        lock.lock();
+        try {
+            expireLocked();
+            if (queue.isEmpty() || peers.isEmpty())
+                return;
+            long deadline = Utils.now().getTime() + REQUEST_TIMEOUT_MSEC;
+            Map<Peer, Integer> load = new HashMap<Peer, Integer>();
+            for (Request request : inFlight.values()) {
+                Integer count = load.get(request.peer);
+                load.put(request.peer, count == null ? 1 : count + 1);
+            }
+            boolean progress = true;
+            while (!queue.isEmpty() && progress) {
+                progress = false;
+                for (int i = 0; i < peers.size() && !queue.isEmpty(); i++) {
+                    Peer peer = peers.get((nextPeer + i) % peers.size());
+                    Integer count = load.get(peer);
+                    int used = count == null ? 0 : count;
+                    if (used >= windowPerPeer)
+                        continue;
+                    Sha256Hash hash = takeFor(peer);
+                    if (hash == null)
+                        continue;
+                    inFlight.put(hash, new Request(peer, deadline));
+                    load.put(peer, used + 1);
+                    List<Sha256Hash> list = requests.get(peer);
+                    if (list == null) {
+                        list = new ArrayList<Sha256Hash>();
+                        requests.put(peer, list);
+                    }
+                    list.add(hash);
+                    progress = true;
+                }
+                nextPeer = (nextPeer + 1) % peers.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        // If a peer is going away its requests are lost, but removePeer will requeue them.
+        for (Map.Entry<Peer, List<Sha256Hash>> entry : requests.entrySet())
+            entry.getKey().requestBlockBodies(entry.getValue());
+    }
+
+    // Removes and returns the first queued hash that the given peer hasn't said it doesn't have, if any.
+    @GuardedBy("lock")
+    @Nullable
+    private Sha256Hash takeFor(Peer peer) {
+        if (notFoundBy.isEmpty()) {
+            Sha256Hash hash = queue.removeFirst();
+            queued.remove(hash);
+            return hash;
+        }
+        Iterator<Sha256Hash> it = queue.iterator();
+        while (it.hasNext()) {
+            Sha256Hash hash = it.next();
+            Set<Peer> refusedBy = notFoundBy.get(hash);
+            if (refusedBy != null && refusedBy.contains(peer))
+                continue;
+            it.remove();
+            queued.remove(hash);
+            return hash;
+        }
+        return null;
+    }
+}
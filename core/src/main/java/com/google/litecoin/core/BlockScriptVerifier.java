@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import com.google.litecoin.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Checks the input scripts of one block on an {@link Executor}. The inputs are cut into chunks of roughly equal
+ * size, sized up front from the total input count of the block, so a block of many small transactions costs a handful
+ * of tasks rather than one per transaction. Chunks only end between transactions: checking an input caches parts of its
+ * transaction, so a transaction must only be checked by one thread. Full chunks are handed to the executor as the
+ * caller adds transactions, the last chunk runs on the calling thread, and the first failure stops all the chunks that
+ * haven't finished yet.</p>
+ *
+ * <p>An instance is used for a single block, from a single thread.</p>
+ */
+class BlockScriptVerifier {
+    private static final Logger log = LoggerFactory.getLogger(BlockScriptVerifier.class);
+
+    // Below this a chunk costs more to hand over than to just check on the calling thread.
+    static final int MIN_INPUTS_PER_CHUNK = 8;
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /** The executor used unless another one is given to {@link FullPrunedBlockChain}. Shared by all chains. */
+    static final ExecutorService DEFAULT_EXECUTOR = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable runnable) {
+            Thread t = new Thread(runnable);
+            t.setName("Script verification thread");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Executor executor;
+    private final boolean enforcePayToScriptHash;
+    private final int chunkSize;
+    private final AtomicBoolean failed = new AtomicBoolean();
+    private final AtomicReference<VerificationException> failure = new AtomicReference<VerificationException>();
+    private final List<Future<?>> submitted = new ArrayList<Future<?>>();
+    private final long startTime = System.nanoTime();
+    private Chunk current;
+    private int inputCount;
+
+    /**
+     * @param inputCount the number of non-coinbase inputs in the block, used to size the chunks.
+     */
+    BlockScriptVerifier(Executor executor, boolean enforcePayToScriptHash, int inputCount) {
+        this.executor = executor;
+        this.enforcePayToScriptHash = enforcePayToScriptHash;
+        this.chunkSize = Math.max(MIN_INPUTS_PER_CHUNK, (inputCount + PARALLELISM - 1) / PARALLELISM);
+        this.current = new Chunk();
+    }
+
+    /** Returns the number of non-coinbase inputs in the given transactions. */
+    static int countInputs(List<Transaction> transactions) {
+        int count = 0;
+        for (Transaction tx : transactions) {
+            if (!tx.isCoinBase())
+                count += tx.getInputs().size();
+        }
+        return count;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Queues the inputs of the given transaction, connected to the given scripts in order. Because correctlySpends
+     * modifies transactions, this must only be called once the caller is done with the transaction.
+     */
+    void add(Transaction tx, List<Script> prevOutScripts) {
+        current.add(tx, prevOutScripts);
+        inputCount += prevOutScripts.size();
+        if (current.size >= chunkSize) {
+            submit(current);
+            current = new Chunk();
+        }
+    }
+
+    private void submit(Chunk chunk) {
+        FutureTask<Void> future = new FutureTask<Void>(chunk, null);
+        submitted.add(future);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            // The executor was shut down or is saturated, so just do the work here.
+            future.run();
+        }
+    }
+
+    /**
+     * Checks the remaining inputs on the calling thread and waits for the chunks given to the executor.
+     *
+     * @param blockHash only used for logging.
+     * @throws VerificationException the first failure seen by any chunk.
+     */
+    void verify(Sha256Hash blockHash) throws VerificationException {
+        long waitStart = System.nanoTime();
+        current.run();
+        try {
+            for (Future<?> future : submitted) {
+                if (failed.get())
+                    break;
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            throw new RuntimeException(e); // Shouldn't happen
+        } catch (ExecutionException e) {
+            // Chunk.run catches everything, so this means the executor itself misbehaved.
+            cancel();
+            throw new RuntimeException(e.getCause());
+        }
+        cancel();
+        VerificationException e = failure.get();
+        if (e != null)
+            throw e;
+        long now = System.nanoTime();
+        if (log.isDebugEnabled())
+            log.debug("Verified {} inputs of block {} in {} chunks in {}ms, {}ms spent waiting", new Object[] {
+                    inputCount, blockHash, submitted.size() + 1, (now - startTime) / 1000000,
+                    (now - waitStart) / 1000000});
+    }
+
+    /** Stops any chunks that haven't finished yet. Called when the block is rejected for some other reason. */
+    void cancel() {
+        failed.set(true);
+        for (Future<?> future : submitted)
+            future.cancel(false);
+    }
+
+    private void fail(VerificationException e) {
+        failure.compareAndSet(null, e);
+        failed.set(true);
+    }
+
+    /** A run of whole transactions, together with the scripts their inputs connect to. */
+    private class Chunk implements Runnable {
+        final List<Transaction> txns = new ArrayList<Transaction>();
+        final List<List<Script>> scripts = new ArrayList<List<Script>>();
+        // The number of inputs.
+        int size;
+
+        void add(Transaction tx, List<Script> prevOutScripts) {
+            txns.add(tx);
+            scripts.add(prevOutScripts);
+            size += prevOutScripts.size();
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < txns.size(); i++) {
+                Transaction tx = txns.get(i);
+                List<Script> prevOutScripts = scripts.get(i);
+                for (int index = 0; index < prevOutScripts.size(); index++) {
+                    if (failed.get())
+                        return;
+                    try {
+                        tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutScripts.get(index),
+                                enforcePayToScriptHash);
+                    } catch (VerificationException e) {
+                        fail(e);
+                    } catch (Exception e) {
+                        log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                        fail(new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -16,13 +16,19 @@
 
 package com.google.litecoin.core;
 
+import com.google.litecoin.script.Script;
 import com.google.common.base.Objects;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static com.google.litecoin.script.ScriptOpCodes.OP_PUSHDATA1;
+import static com.google.litecoin.script.ScriptOpCodes.OP_PUSHDATA2;
+import static com.google.litecoin.script.ScriptOpCodes.OP_PUSHDATA4;
 
 /**
  * <p>A Bloom filter is a probabilistic data structure which can be sent to another client so that it can avoid
@@ -161,15 +167,17 @@ public class BloomFilter extends Message {
         return (x << r) | (x >>> (32 - r));
     }
     
-    private int hash(int hashNum, byte[] object) {
+    // Each of the hash functions is MurmurHash3 with its own seed, as BIP 37 requires. Deriving them all from one
+    // or two hashes would be faster but would set different bits, so other nodes would not understand our filters.
+    private int hash(int hashNum, byte[] object, int offset, int length) {
         // The following is MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
         int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
+        int numBlocks = offset + (length / 4) * 4;
         // body
-        for(int i = 0; i < numBlocks; i += 4) {
+        for(int i = offset; i < numBlocks; i += 4) {
             int k1 = (object[i] & 0xFF) |
                   ((object[i+1] & 0xFF) << 8) |
                   ((object[i+2] & 0xFF) << 16) |
@@ -185,7 +193,7 @@ public class BloomFilter extends Message {
         }
         
         int k1 = 0;
-        switch(object.length & 3)
+        switch(length & 3)
         {
             case 3:
                 k1 ^= (object[numBlocks + 2] & 0xff) << 16;
@@ -203,7 +211,7 @@ public class BloomFilter extends Message {
         }
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
@@ -218,19 +226,159 @@ public class BloomFilter extends Message {
      * (either because it was inserted, or because we have a false-positive)
      */
     public boolean contains(byte[] object) {
+        return contains(object, 0, object.length);
+    }
+
+    /**
+     * Returns true if the given range of the given array matches the filter. The same as calling
+     * {@link BloomFilter#contains(byte[])} on a copy of the range.
+     */
+    public boolean contains(byte[] object, int offset, int length) {
+        checkPositionIndexes(offset, offset + length, object.length);
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, hash(i, object)))
+            if (!Utils.checkBitLE(data, hash(i, object, offset, length)))
                 return false;
         }
         return true;
     }
-    
+
+    /**
+     * Returns true if any of the given objects matches the filter.
+     */
+    public boolean containsAny(Iterable<byte[]> objects) {
+        for (byte[] object : objects)
+            if (contains(object, 0, object.length))
+                return true;
+        return false;
+    }
+
+    /**
+     * <p>Returns true if the given transaction matches the filter, the way a remote peer tests transactions against
+     * a filter we gave it: by its hash, any data pushed by its output scripts, the outpoints its inputs connect to or
+     * any data pushed by its input scripts. Unlike the remote peer, this does not update the filter.</p>
+     *
+     * <p>Scripts are read in place from the transaction, so no chunks or copies of the data are created.</p>
+     */
+    public boolean containsAny(Transaction tx) {
+        return matches(tx, false);
+    }
+
+    /**
+     * <p>Returns true if the given transaction matches the filter, as {@link BloomFilter#containsAny(Transaction)}
+     * does, and updates the filter the way a peer that was given it would. Depending on the update flag, the outpoints
+     * of matched outputs are inserted so that transactions spending them match too: for all outputs, for pay to pubkey
+     * and multisig outputs only or not at all.</p>
+     *
+     * <p>This is what a node serving filtered blocks calls for each transaction of a block, in order.</p>
+     */
+    public boolean applyAndUpdate(Transaction tx) {
+        return matches(tx, true);
+    }
+
+    private boolean matches(Transaction tx, boolean update) {
+        // Hashes are matched as they appear on the wire, which is reversed. Outpoints are followed by their index.
+        byte[] buffer = new byte[36];
+        reverseHashInto(tx.getHash(), buffer);
+        boolean found = contains(buffer, 0, 32);
+        if (found && !update)
+            return true;
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            if (!containsAnyPushData(output.getScriptBytes()))
+                continue;
+            if (!update)
+                return true;
+            found = true;
+            if (shouldInsertOutPoint(output)) {
+                // The buffer still starts with the hash of this transaction.
+                Utils.uint32ToByteArrayLE(i, buffer, 32);
+                insert(buffer, 0, 36);
+            }
+        }
+        if (found)
+            return true;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outPoint = input.getOutpoint();
+            reverseHashInto(outPoint.getHash(), buffer);
+            Utils.uint32ToByteArrayLE(outPoint.getIndex(), buffer, 32);
+            if (contains(buffer, 0, 36))
+                return true;
+            if (containsAnyPushData(input.getScriptBytes()))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean shouldInsertOutPoint(TransactionOutput output) {
+        int flag = nFlags & 3;
+        if (flag == BloomUpdate.UPDATE_ALL.ordinal())
+            return true;
+        if (flag != BloomUpdate.UPDATE_P2PUBKEY_ONLY.ordinal())
+            return false;
+        try {
+            Script script = output.getScriptPubKey();
+            return script.isSentToRawPubKey() || script.isSentToMultiSig();
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
+    private static void reverseHashInto(Sha256Hash hash, byte[] buffer) {
+        byte[] bytes = hash.getBytes();
+        for (int i = 0; i < 32; i++)
+            buffer[i] = bytes[31 - i];
+    }
+
+    // Walks the pushes of a script program without parsing it into chunks. A malformed program matches up to the
+    // point where it goes wrong.
+    private boolean containsAnyPushData(byte[] program) {
+        int cursor = 0;
+        while (cursor < program.length) {
+            int opcode = program[cursor++] & 0xFF;
+            int length;
+            if (opcode < OP_PUSHDATA1) {
+                length = opcode;
+            } else if (opcode == OP_PUSHDATA1) {
+                if (cursor + 1 > program.length) return false;
+                length = program[cursor] & 0xFF;
+                cursor += 1;
+            } else if (opcode == OP_PUSHDATA2) {
+                if (cursor + 2 > program.length) return false;
+                length = (program[cursor] & 0xFF) | ((program[cursor + 1] & 0xFF) << 8);
+                cursor += 2;
+            } else if (opcode == OP_PUSHDATA4) {
+                if (cursor + 4 > program.length) return false;
+                long longLength = Utils.readUint32(program, cursor);
+                if (longLength > program.length) return false;
+                length = (int) longLength;
+                cursor += 4;
+            } else {
+                continue;
+            }
+            if (length > program.length - cursor) return false;
+            if (length > 0 && contains(program, cursor, length))
+                return true;
+            cursor += length;
+        }
+        return false;
+    }
+
     /**
      * Insert the given arbitrary data into the filter
      */
     public void insert(byte[] object) {
+        insert(object, 0, object.length);
+    }
+
+    /**
+     * Inserts the given range of the given array into the filter. The same as calling
+     * {@link BloomFilter#insert(byte[])} on a copy of the range.
+     */
+    public void insert(byte[] object, int offset, int length) {
+        checkPositionIndexes(offset, offset + length, object.length);
         for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, hash(i, object));
+            Utils.setBitLE(data, hash(i, object, offset, length));
     }
 
     /**
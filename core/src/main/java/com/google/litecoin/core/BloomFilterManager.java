@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import java.util.List;
+
+/**
+ * <p>Keeps the bloom filter built from a set of {@link PeerFilterProvider}s up to date. A full rebuild asks every
+ * provider for its element count and filter, which for a wallet means walking all its keys and transactions. So the
+ * filter is sized with some headroom and new keys, scripts and outpoints are inserted into it as they turn up. It is
+ * only rebuilt once the expected false positive rate drifts too far above the requested one, or the update flags
+ * change.</p>
+ *
+ * <p>Not thread safe, {@link PeerGroup} only uses it with its lock held.</p>
+ */
+class BloomFilterManager {
+    // Extra elements a filter is sized for beyond the count at the time it is built. Somewhat arbitrary, but makes
+    // sense for small to medium wallets - it will likely mean we never need to create a filter with different
+    // parameters, which is good for privacy.
+    static final int HEADROOM = 100;
+    // A filter is rebuilt once its expected false positive rate passes this multiple of the rate it was built for.
+    static final double REBUILD_THRESHOLD = 2.0;
+
+    private final long tweak;
+    private BloomFilter filter;
+    private boolean updateAll;
+    private int capacity;
+    private int elements;
+    private double maxFalsePositiveRate;
+
+    BloomFilterManager(long tweak) {
+        this.tweak = tweak;
+    }
+
+    /** Returns the current filter, or null if none was built yet. */
+    BloomFilter getFilter() {
+        return filter;
+    }
+
+    /** Returns the number of elements the current filter was sized for. */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /** Returns the number of elements believed to be in the current filter. */
+    int getElementCount() {
+        return elements;
+    }
+
+    /**
+     * Builds a new filter from all the given providers. Returns false if the providers have no elements, in which
+     * case the current filter is kept.
+     */
+    boolean rebuild(List<PeerFilterProvider> providers, double falsePositiveRate) {
+        int count = 0;
+        boolean requiresUpdateAll = false;
+        for (PeerFilterProvider p : providers) {
+            count += p.getBloomFilterElementCount();
+            requiresUpdateAll = requiresUpdateAll || p.isRequiringUpdateAllBloomFilter();
+        }
+        if (count == 0)
+            return false;
+        // We stair-step our element count so that we avoid creating a filter with different parameters
+        // as much as possible as that results in a loss of privacy.
+        capacity = count > capacity ? count + HEADROOM : capacity;
+        BloomFilter.BloomUpdate bloomFlags =
+                requiresUpdateAll ? BloomFilter.BloomUpdate.UPDATE_ALL : BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY;
+        BloomFilter newFilter = new BloomFilter(capacity, falsePositiveRate, tweak, bloomFlags);
+        for (PeerFilterProvider p : providers)
+            newFilter.merge(p.getBloomFilter(capacity, falsePositiveRate, tweak));
+        filter = newFilter;
+        updateAll = requiresUpdateAll;
+        elements = count;
+        // Filters are capped in size, so a big one may never reach the requested rate. Measure against what it can do.
+        maxFalsePositiveRate = Math.max(falsePositiveRate, newFilter.getFalsePositiveRate(capacity)) * REBUILD_THRESHOLD;
+        return true;
+    }
+
+    /**
+     * Inserts the given data into the current filter. Returns false without changing anything if there is no filter
+     * yet, if it would get too full or if the update flags it was built with no longer apply, in which case it has
+     * to be rebuilt.
+     */
+    boolean insert(List<byte[]> data, boolean requiresUpdateAll) {
+        if (filter == null || requiresUpdateAll != updateAll)
+            return false;
+        if (filter.getFalsePositiveRate(elements + data.size()) > maxFalsePositiveRate)
+            return false;
+        for (byte[] element : data)
+            filter.insert(element);
+        elements += data.size();
+        return true;
+    }
+}
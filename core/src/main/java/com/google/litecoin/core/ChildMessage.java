@@ -63,6 +63,10 @@ public abstract class ChildMessage extends Message {
         this.parent = parent;
     }
 
+    Message getParent() {
+        return parent;
+    }
+
     /* (non-Javadoc)
       * @see Message#unCache()
       */
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * <p>Counts the blocks and work added to the best chain as a {@link Wallet} sees them. A {@link TransactionConfidence}
+ * attached to a tracker remembers the count at the time its depth was last set, and works out its current depth and
+ * work done from the difference when asked. So a new block costs the same no matter how many transactions are
+ * buried by it.</p>
+ *
+ * <p>The tracker also knows which confidences want a {@link TransactionConfidence.Listener.ChangeReason#DEPTH} event
+ * for every block, and up to which depth. Those are confidences with a depth future waiting on them and, up to the
+ * default event depth, any newly confirmed transaction. Everything else is buried silently.</p>
+ */
+class DepthTracker implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** A count of blocks and work. Immutable so it can be read without locking. */
+    static final class Position implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int blocks;
+        final BigInteger work;
+
+        Position(int blocks, BigInteger work) {
+            this.blocks = blocks;
+            this.work = work;
+        }
+    }
+
+    private volatile Position position = new Position(0, BigInteger.ZERO);
+    private volatile int defaultEventDepth;
+    // Confidences that get a depth event for each new block, mapped to the depth after which they stop.
+    @GuardedBy("this") private final Map<TransactionConfidence, Integer> watched =
+            new IdentityHashMap<TransactionConfidence, Integer>();
+
+    DepthTracker(int defaultEventDepth) {
+        this.defaultEventDepth = defaultEventDepth;
+    }
+
+    Position getPosition() {
+        return position;
+    }
+
+    int getDefaultEventDepth() {
+        return defaultEventDepth;
+    }
+
+    void setDefaultEventDepth(int defaultEventDepth) {
+        this.defaultEventDepth = defaultEventDepth;
+    }
+
+    /** Called by the wallet for each new best chain block. Not thread safe against itself. */
+    void blockAdded(Block header) throws VerificationException {
+        Position old = position;
+        position = new Position(old.blocks + 1, old.work.add(header.getWork()));
+    }
+
+    /** Asks for depth events for the given confidence for as long as it is shallower than the given depth. */
+    synchronized void watch(TransactionConfidence confidence, int untilDepth) {
+        Integer current = watched.get(confidence);
+        if (current == null || current < untilDepth)
+            watched.put(confidence, untilDepth);
+    }
+
+    /**
+     * Watches the given confidence if it is BUILDING and shallower than both the default event depth and any depth
+     * future requested on it.
+     */
+    void watchIfShallow(TransactionConfidence confidence) {
+        if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+            return;
+        int untilDepth = Math.max(defaultEventDepth, confidence.getWatchedDepth());
+        if (confidence.getDepthInBlocks() < untilDepth)
+            watch(confidence, untilDepth);
+    }
+
+    /**
+     * Returns the watched confidences whose depth changed with the last block, and stops watching those that have
+     * now reached their depth or are no longer BUILDING.
+     */
+    List<TransactionConfidence> takeDepthChanges() {
+        Map<TransactionConfidence, Integer> snapshot;
+        synchronized (this) {
+            if (watched.isEmpty())
+                return Collections.emptyList();
+            snapshot = new IdentityHashMap<TransactionConfidence, Integer>(watched);
+        }
+        // Confidences lock themselves and call back into watch(), so don't hold our lock while asking them.
+        List<TransactionConfidence> changed = new ArrayList<TransactionConfidence>(snapshot.size());
+        List<TransactionConfidence> done = new ArrayList<TransactionConfidence>();
+        for (Map.Entry<TransactionConfidence, Integer> entry : snapshot.entrySet()) {
+            TransactionConfidence confidence = entry.getKey();
+            if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING) {
+                done.add(confidence);
+                continue;
+            }
+            changed.add(confidence);
+            if (confidence.getDepthInBlocks() >= entry.getValue())
+                done.add(confidence);
+        }
+        synchronized (this) {
+            for (TransactionConfidence confidence : done) {
+                // Only drop it if nobody asked for a deeper event in the meantime.
+                Integer untilDepth = watched.get(confidence);
+                if (untilDepth != null && untilDepth.equals(snapshot.get(confidence)))
+                    watched.remove(confidence);
+            }
+        }
+        return changed;
+    }
+}
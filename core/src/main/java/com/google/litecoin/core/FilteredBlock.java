@@ -40,6 +40,22 @@ public class FilteredBlock extends Message {
     public FilteredBlock(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
         super(params, payloadBytes, 0);
     }
+
+    /**
+     * Creates a filtered block of the given header and tree, already provided with the given transactions which must
+     * be exactly the ones matched by the tree. Used by {@link FilteredBlockBuilder}.
+     */
+    FilteredBlock(NetworkParameters params, Block header, PartialMerkleTree merkleTree, List<Transaction> matched) {
+        super(params);
+        this.header = header;
+        this.merkleTree = merkleTree;
+        cachedTransactionHashes = new LinkedList<Sha256Hash>();
+        for (Transaction tx : matched) {
+            cachedTransactionHashes.add(tx.getHash());
+            associatedTransactions.put(tx.getHash(), tx);
+        }
+        length = Block.HEADER_SIZE + merkleTree.getMessageSize();
+    }
     
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         if (header.transactions == null)
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Builds the {@link FilteredBlock}s of one block for any number of {@link BloomFilter}s, so that a node with full
+ * blocks can serve them to lightweight clients that asked for them filtered. The transaction hashes and the merkle
+ * tree of the block are calculated once when the builder is created and are shared by every filtered block built
+ * from it. Building one then only costs matching the transactions against the filter.</p>
+ *
+ * <p>A builder can be used from many threads at once, for instance one per connected client, as long as each filter
+ * is only used by one thread at a time. Building a filtered block updates its filter as the
+ * {@link BloomFilter.BloomUpdate} flag of the filter asks, see {@link BloomFilter#applyAndUpdate(Transaction)}.</p>
+ */
+public class FilteredBlockBuilder {
+    private final NetworkParameters params;
+    private final Block header;
+    private final List<Transaction> transactions;
+    private final List<byte[]> merkleTree;
+
+    /**
+     * Creates a builder for the given block, which must have its transactions.
+     *
+     * @throws ProtocolException if the transactions of the block were not parsed yet and fail to parse
+     */
+    public FilteredBlockBuilder(Block block) throws ProtocolException {
+        block.ensureParsedTransactions();
+        checkArgument(block.transactions != null && !block.transactions.isEmpty(), "Block has no transactions");
+        params = block.getParams();
+        transactions = block.getTransactions();
+        merkleTree = block.buildMerkleTree();
+        header = block.cloneAsHeader();
+    }
+
+    /** Returns the header of the block filtered blocks are built for. */
+    public Block getBlockHeader() {
+        return header.cloneAsHeader();
+    }
+
+    /**
+     * Returns the filtered block for the given filter, updating the filter as its flag asks. The matched transactions
+     * are available from {@link FilteredBlock#getAssociatedTransactions()}, to be sent after the filtered block.
+     */
+    public FilteredBlock build(BloomFilter filter) {
+        boolean[] matched = new boolean[transactions.size()];
+        List<Transaction> matchedTransactions = new ArrayList<Transaction>();
+        for (int i = 0; i < matched.length; i++) {
+            Transaction tx = transactions.get(i);
+            if (filter.applyAndUpdate(tx)) {
+                matched[i] = true;
+                matchedTransactions.add(tx);
+            }
+        }
+        return new FilteredBlock(params, header, PartialMerkleTree.build(params, merkleTree, matched),
+                matchedTransactions);
+    }
+}
@@ -26,9 +26,9 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.concurrent.*;
+import java.util.concurrent.Executor;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -48,6 +48,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    private volatile Executor scriptVerificationExecutor = BlockScriptVerifier.DEFAULT_EXECUTOR;
+
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using {@link Wallet#loadFromFile(java.io.File)}
@@ -109,35 +111,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
     
-    //TODO: Remove lots of duplicated code in the two connectTransactions
-    
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-    /** A job submitted to the executor which verifies signatures. */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
+    /**
+     * Sets the executor that input scripts are checked on. By default a pool shared by all chains, with one thread per
+     * processor, is used. Each block's inputs are split into a few chunks of similar size, so the executor sees about
+     * as many tasks per block as there are processors rather than one per transaction.
+     */
+    public void setScriptVerificationExecutor(Executor executor) {
+        this.scriptVerificationExecutor = checkNotNull(executor);
+    }
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
-        }
+    //TODO: Remove lots of duplicated code in the two connectTransactions
 
-        @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
-        }
-    }
-    
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -154,10 +138,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
         
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        BlockScriptVerifier verifier = new BlockScriptVerifier(scriptVerificationExecutor, enforcePayToScriptHash,
+                BlockScriptVerifier.countInputs(block.transactions));
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -234,32 +216,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 
                 if (!isCoinBase && runScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    verifier.add(tx, prevOutScripts);
                 }
             }
             if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            verifier.verify(block.getHash());
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            verifier.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            verifier.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -284,6 +252,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        BlockScriptVerifier verifier = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -301,9 +270,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 BigInteger totalFees = BigInteger.ZERO;
                 BigInteger coinbaseValue = null;
                 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                verifier = new BlockScriptVerifier(scriptVerificationExecutor, enforcePayToScriptHash,
+                        BlockScriptVerifier.countInputs(transactions));
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     BigInteger valueIn = BigInteger.ZERO;
@@ -356,28 +324,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        verifier.add(tx, prevOutScripts);
                     }
                 }
                 if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                verifier.verify(newBlock.getHeader().getHash());
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -392,11 +346,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (verifier != null)
+                verifier.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (verifier != null)
+                verifier.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
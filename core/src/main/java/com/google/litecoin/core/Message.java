@@ -61,6 +61,9 @@ public abstract class Message implements Serializable {
 
     protected transient byte[] checksum;
 
+    // The whole packet for this message while it is being sent to many peers, see Peer#sendToPeers.
+    private transient volatile byte[] cachedPacket;
+
     // This will be saved by subclasses that implement Serializable.
     protected NetworkParameters params;
 
@@ -265,6 +268,21 @@ public abstract class Message implements Serializable {
         return checksum;
     }
 
+    /**
+     * Should only used by BitcoinSerializer, returns the packet set by {@link Message#setCachedPacket(byte[])}.
+     */
+    byte[] getCachedPacket() {
+        return cachedPacket;
+    }
+
+    /**
+     * Sets the packet BitcoinSerializer returns for this message instead of serializing it again, or clears it if
+     * null. Only set it for as long as the message can't change.
+     */
+    void setCachedPacket(byte[] packet) {
+        cachedPacket = packet;
+    }
+
     /**
      * Should only used by BitcoinSerializer for caching checksum
      *
@@ -412,11 +430,10 @@ public abstract class Message implements Serializable {
 
     Sha256Hash readHash() throws ProtocolException {
         try {
-            byte[] hash = new byte[32];
-            System.arraycopy(bytes, cursor, hash, 0, 32);
             // We have to flip it around, as it's been read off the wire in little endian.
-            // Not the most efficient way to do this but the clearest.
-            hash = Utils.reverseBytes(hash);
+            byte[] hash = new byte[32];
+            for (int i = 0; i < 32; i++)
+                hash[i] = bytes[cursor + 31 - i];
             cursor += 32;
             return new Sha256Hash(hash);
         } catch (IndexOutOfBoundsException e) {
@@ -436,12 +453,11 @@ public abstract class Message implements Serializable {
 
     BigInteger readUint64() throws ProtocolException {
         try {
-            // Java does not have an unsigned 64 bit type. So scrape it off the wire then flip.
-            byte[] valbytes = new byte[8];
-            System.arraycopy(bytes, cursor, valbytes, 0, 8);
-            valbytes = Utils.reverseBytes(valbytes);
-            cursor += valbytes.length;
-            return new BigInteger(valbytes);
+            // Java does not have an unsigned 64 bit type. Values with the top bit set have always come out negative
+            // here, reading a signed long keeps it that way without the temporary arrays.
+            long u = Utils.readInt64(bytes, cursor);
+            cursor += 8;
+            return BigInteger.valueOf(u);
         } catch (IndexOutOfBoundsException e) {
             throw new ProtocolException(e);
         }
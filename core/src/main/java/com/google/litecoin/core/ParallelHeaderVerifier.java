@@ -0,0 +1,140 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import com.google.litecoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Checks the context free parts of many block headers at once (scrypt proof of work and timestamp, see
+ * {@link Block#verifyHeader()}), spreading the work over a pool of threads. Scrypt hashing dominates CPU time during
+ * a fresh sync, so this lets header download scale with the number of cores.</p>
+ *
+ * <p>The scrypt hash calculated for each header is cached inside the {@link Block} object, so connecting the
+ * headers to the chain afterwards does not hash them again. Difficulty transitions depend on the previous blocks and
+ * are still checked by {@link AbstractBlockChain} when each header is connected.</p>
+ */
+public class ParallelHeaderVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ParallelHeaderVerifier.class);
+
+    // Chunks per thread, so a slow chunk doesn't leave the other threads idle at the end of a batch.
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static ExecutorService defaultExecutor;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * Creates a verifier that uses a shared pool of daemon threads, one per available processor.
+     */
+    public ParallelHeaderVerifier() {
+        this(getDefaultExecutor(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a verifier that runs its work on the given executor, splitting each batch into enough chunks to keep
+     * <tt>parallelism</tt> threads busy.
+     */
+    public ParallelHeaderVerifier(ExecutorService executor, int parallelism) {
+        checkArgument(parallelism > 0);
+        this.executor = checkNotNull(executor);
+        this.parallelism = parallelism;
+    }
+
+    private static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Header verification thread %d");
+            Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+            if (handler != null)
+                builder.setUncaughtExceptionHandler(handler);
+            defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), builder.build());
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Verifies the given headers in parallel and returns once all of them are checked. If any header is invalid the
+     * exception for the earliest bad header in list order is thrown, and headers after it may be left unchecked.
+     *
+     * @throws VerificationException if a header fails {@link Block#verifyHeader()}.
+     */
+    public void verifyHeaders(final List<Block> headers) throws VerificationException {
+        final int size = headers.size();
+        if (size == 0)
+            return;
+        long start = System.currentTimeMillis();
+        int chunks = Math.min(size, parallelism * CHUNKS_PER_THREAD);
+        final int chunkSize = (size + chunks - 1) / chunks;
+        // Index of the earliest header known to be bad, so chunks after it can stop early.
+        final AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+        final VerificationException[] failures = new VerificationException[chunks];
+        List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            final int from = c * chunkSize;
+            final int to = Math.min(size, from + chunkSize);
+            if (from >= to)
+                break;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to && i < firstFailure.get(); i++) {
+                        try {
+                            headers.get(i).verifyHeader();
+                        } catch (VerificationException e) {
+                            failures[chunk] = e;
+                            int current;
+                            do {
+                                current = firstFailure.get();
+                            } while (i < current && !firstFailure.compareAndSet(current, i));
+                            return;
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new VerificationException("Interrupted whilst verifying headers", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        int failed = firstFailure.get();
+        if (failed != Integer.MAX_VALUE)
+            throw failures[failed / chunkSize];
+        if (log.isDebugEnabled())
+            log.debug("Verified {} headers in {} msec", size, System.currentTimeMillis() - start);
+    }
+}
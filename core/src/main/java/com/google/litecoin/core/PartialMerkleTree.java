@@ -20,6 +20,7 @@ package com.google.litecoin.core;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -61,6 +62,63 @@ public class PartialMerkleTree extends Message {
     public PartialMerkleTree(NetworkParameters params, byte[] payloadBytes, int offset) throws ProtocolException {
         super(params, payloadBytes, offset);
     }
+
+    PartialMerkleTree(NetworkParameters params, int transactionCount, byte[] matchedChildBits, List<Sha256Hash> hashes) {
+        super(params);
+        this.transactionCount = transactionCount;
+        this.matchedChildBits = matchedChildBits;
+        this.hashes = hashes;
+        length = 4 + VarInt.sizeOf(hashes.size()) + hashes.size() * 32 +
+                VarInt.sizeOf(matchedChildBits.length) + matchedChildBits.length;
+    }
+
+    /**
+     * Builds the partial tree proving the inclusion of the matched transactions of a block. The tree is the full merkle
+     * tree of the block as returned by {@link Block#buildMerkleTree()}: the transaction hashes followed by each level
+     * of the tree up to the root. Nothing is hashed, so one full tree can be shared by any number of partial ones.
+     */
+    static PartialMerkleTree build(NetworkParameters params, List<byte[]> tree, boolean[] matched) {
+        int transactionCount = matched.length;
+        // matchesBefore[i] is the number of matched leaves before leaf i. A node is the parent of a match if the count
+        // changes across its leaves, so that takes one subtraction instead of a walk over them.
+        int[] matchesBefore = new int[transactionCount + 1];
+        for (int i = 0; i < transactionCount; i++)
+            matchesBefore[i + 1] = matchesBefore[i] + (matched[i] ? 1 : 0);
+        int height = 0;
+        while (getTreeWidth(transactionCount, height) > 1)
+            height++;
+        int[] levelOffsets = new int[height + 1];
+        for (int h = 1; h <= height; h++)
+            levelOffsets[h] = levelOffsets[h - 1] + getTreeWidth(transactionCount, h - 1);
+        // There is at most one bit per node of the full tree.
+        byte[] bits = new byte[(tree.size() + 7) / 8];
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        ValuesUsed used = new ValuesUsed();
+        recursiveBuild(tree, levelOffsets, matchesBefore, height, 0, used, bits, hashes);
+        return new PartialMerkleTree(params, transactionCount, Arrays.copyOf(bits, (used.bitsUsed + 7) / 8), hashes);
+    }
+
+    // recursive function that traverses tree nodes, storing the data as bits and hashes, the reverse of
+    // recursiveExtractHashes.
+    private static void recursiveBuild(List<byte[]> tree, int[] levelOffsets, int[] matchesBefore, int height, int pos,
+                                       ValuesUsed used, byte[] bits, List<Sha256Hash> hashes) {
+        int transactionCount = matchesBefore.length - 1;
+        int firstLeaf = pos << height;
+        int endLeaf = Math.min((pos + 1) << height, transactionCount);
+        boolean parentOfMatch = matchesBefore[endLeaf] != matchesBefore[firstLeaf];
+        if (parentOfMatch)
+            Utils.setBitLE(bits, used.bitsUsed);
+        used.bitsUsed++;
+        if (height == 0 || !parentOfMatch) {
+            // if at height 0, or nothing interesting below, store hash and stop
+            hashes.add(new Sha256Hash(tree.get(levelOffsets[height] + pos)));
+        } else {
+            // otherwise, don't store any hash, but descend into the subtrees
+            recursiveBuild(tree, levelOffsets, matchesBefore, height - 1, pos * 2, used, bits, hashes);
+            if (pos * 2 + 1 < getTreeWidth(transactionCount, height - 1))
+                recursiveBuild(tree, levelOffsets, matchesBefore, height - 1, pos * 2 + 1, used, bits, hashes);
+        }
+    }
     
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         Utils.uint32ToByteStreamLE(transactionCount, stream);
@@ -95,6 +153,10 @@ public class PartialMerkleTree extends Message {
     
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
     private int getTreeWidth(int height) {
+        return getTreeWidth(transactionCount, height);
+    }
+
+    private static int getTreeWidth(int transactionCount, int height) {
         return (transactionCount+(1 << height)-1) >> height;
     }
     
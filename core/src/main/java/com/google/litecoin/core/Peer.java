@@ -92,6 +92,9 @@ public class Peer {
     @GuardedBy("lock") private boolean downloadBlockBodies = true;
     // Whether to request filtered blocks instead of full blocks if the protocol version allows for them.
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
+    // If set, the chain is downloaded headers first: this peer fetches headers when it is the download peer, and
+    // block bodies are fetched from all peers sharing the downloader. Set by PeerGroup.
+    private volatile BlockBodyDownloader vBodyDownloader;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
@@ -362,6 +365,17 @@ public class Peer {
         // the bottom of the dependency tree (where the unconfirmed transactions connect to transactions that are
         // in the chain).
         //
+        // Blocks of a headers first download are requested again from other peers.
+        BlockBodyDownloader bodyDownloader = vBodyDownloader;
+        if (bodyDownloader != null) {
+            List<Sha256Hash> blocks = new ArrayList<Sha256Hash>();
+            for (InventoryItem item : m.getItems()) {
+                if (item.type == InventoryItem.Type.Block || item.type == InventoryItem.Type.FilteredBlock)
+                    blocks.add(item.hash);
+            }
+            if (!blocks.isEmpty())
+                bodyDownloader.onNotFound(blocks, this);
+        }
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
@@ -418,6 +432,12 @@ public class Peer {
             lock.unlock();
         }
 
+        BlockBodyDownloader bodyDownloader = vBodyDownloader;
+        if (bodyDownloader != null) {
+            processHeadersFirst(m, bodyDownloader, fastCatchupTimeSecs);
+            return;
+        }
+
         try {
             checkState(!downloadBlockBodies, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
@@ -475,6 +495,85 @@ public class Peer {
         }
     }
 
+    private void processHeadersFirst(HeadersMessage m, BlockBodyDownloader bodyDownloader, long fastCatchupTimeSecs)
+            throws IOException, ProtocolException {
+        // Runs in network loop thread for this peer.
+        //
+        // In headers first mode we always sync with "getheaders". Each batch goes through three stages: as soon as a
+        // full batch arrives the next one is requested so the round trip overlaps with our own work, then the proof
+        // of work of the whole batch is checked in parallel, and finally the hashes of headers after the fast catchup
+        // time are handed to the body downloader which fetches the blocks from all peers. Headers before the fast
+        // catchup time are linked into the chain directly, as in the normal download mode.
+        if (!vDownloadData) {
+            log.info("Lost download peer status, throwing away downloaded headers.");
+            return;
+        }
+        bodyDownloader.setDownloadPeer(this);
+        List<Block> headers = m.getBlockHeaders();
+        if (headers.isEmpty())
+            return;
+        boolean moreAvailable = headers.size() >= HeadersMessage.MAX_HEADERS;
+        boolean requestedMore = false;
+        if (moreAvailable && bodyDownloader.getPendingCount() + headers.size() < BlockBodyDownloader.MAX_QUEUED_BODIES) {
+            lock.lock();
+            try {
+                requestHeadersLocked(headers.get(headers.size() - 1).getHash(), Sha256Hash.ZERO_HASH);
+            } finally {
+                lock.unlock();
+            }
+            requestedMore = true;
+        }
+        try {
+            bodyDownloader.getHeaderVerifier().verifyHeaders(headers);
+            Sha256Hash tip = bodyDownloader.getTip();
+            if (tip == null)
+                tip = blockChain.getChainHead().getHeader().getHash();
+            List<Sha256Hash> bodies = new ArrayList<Sha256Hash>();
+            for (Block header : headers) {
+                Sha256Hash hash = header.getHash();
+                if (!header.getPrevBlockHash().equals(tip)) {
+                    // Overlapping requests can return headers we already have, skip those.
+                    if (bodies.contains(hash) || bodyDownloader.isPending(hash) ||
+                            blockChain.getBlockStore().get(hash) != null)
+                        continue;
+                    log.warn("{}: Got unconnected header {}, asking again from our tip", vAddress, header.getHashAsString());
+                    requestedMore = false;
+                    moreAvailable = true;
+                    break;
+                }
+                if (header.getTimeSeconds() < fastCatchupTimeSecs && bodies.isEmpty() && bodyDownloader.isIdle()) {
+                    if (blockChain.add(header)) {
+                        invokeOnBlocksDownloaded(header);
+                    } else {
+                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                    }
+                } else {
+                    bodies.add(hash);
+                }
+                tip = hash;
+            }
+            bodyDownloader.enqueue(bodies);
+        } catch (VerificationException e) {
+            // We may have already asked this peer for the headers that follow, so drop it rather than looping.
+            log.warn("{}: Block header verification failed, disconnecting", vAddress, e);
+            Channels.close(vChannel);
+            return;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+        if (moreAvailable && !requestedMore) {
+            if (bodyDownloader.getPendingCount() < BlockBodyDownloader.MAX_QUEUED_BODIES) {
+                requestMoreHeaders();
+            } else {
+                // Continue once the bodies have caught up.
+                bodyDownloader.setHeadersPeer(this);
+            }
+        }
+    }
+
     private void processGetData(GetDataMessage getdata) throws IOException {
         log.info("{}: Received getdata message: {}", vAddress, getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -737,8 +836,11 @@ public class Peer {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was this block requested as part of a headers first download? If so any peer may deliver it.
+        final BlockBodyDownloader bodyDownloader = vBodyDownloader;
+        final boolean requestedBody = bodyDownloader != null && bodyDownloader.onBlockReceived(m.getHash(), this);
         // Did we lose download peer status after requesting block data?
-        if (!vDownloadData) {
+        if (!vDownloadData && !requestedBody) {
             log.debug("{}: Received block we did not ask for: {}", vAddress, m.getHashAsString());
             return;
         }
@@ -747,7 +849,12 @@ public class Peer {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
-                invokeOnBlocksDownloaded(m);
+                Peer downloadPeer = requestedBody ? bodyDownloader.getDownloadPeer() : null;
+                (downloadPeer != null ? downloadPeer : this).invokeOnBlocksDownloaded(m);
+            } else if (requestedBody) {
+                // Bodies fetched from several peers arrive out of order. The chain keeps this one as an orphan and
+                // connects it once its parent arrives, which has already been requested.
+                log.debug("{}: Block {} arrived before its parent", vAddress, m.getHashAsString());
             } else {
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
@@ -793,7 +900,9 @@ public class Peer {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", vAddress, m.getHash().toString());
         }
-        if (!vDownloadData) {
+        final BlockBodyDownloader bodyDownloader = vBodyDownloader;
+        final boolean requestedBody = bodyDownloader != null && bodyDownloader.onBlockReceived(m.getHash(), this);
+        if (!vDownloadData && !requestedBody) {
             log.debug("{}: Received block we did not ask for: {}", vAddress, m.getHash().toString());
             return;
         }
@@ -823,7 +932,10 @@ public class Peer {
             // the data may be requested by a different peer to this one.
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
-                invokeOnBlocksDownloaded(m.getBlockHeader());
+                Peer downloadPeer = requestedBody ? bodyDownloader.getDownloadPeer() : null;
+                (downloadPeer != null ? downloadPeer : this).invokeOnBlocksDownloaded(m.getBlockHeader());
+            } else if (requestedBody) {
+                log.debug("{}: Filtered block {} arrived before its parent", vAddress, m.getHash());
             } else {
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
@@ -1103,6 +1215,30 @@ public class Peer {
         return Channels.write(vChannel, m);
     }
 
+    /**
+     * Sends the given message to all the given peers, serializing and checksumming it only once. Every peer gets the
+     * same packet, which the connections only read. A peer that can't be written to is logged and skipped. The
+     * message must not be changed while this runs.
+     */
+    public static void sendToPeers(Message m, List<Peer> peers) {
+        if (peers.isEmpty())
+            return;
+        // Writes are serialized on the calling thread as they pass down the pipeline, so the packet is only
+        // needed until the last peer has been written to.
+        m.setCachedPacket(new BitcoinSerializer(peers.get(0).params).serializeToPacket(m));
+        try {
+            for (Peer peer : peers) {
+                try {
+                    peer.sendMessage(m);
+                } catch (Exception e) {
+                    log.error("Caught exception sending to {}", peer, e);
+                }
+            }
+        } finally {
+            m.setCachedPacket(null);
+        }
+    }
+
     // Keep track of the last request we made to the peer in blockChainDownloadLocked so we can avoid redundant and harmful
     // getblocks requests.
     @GuardedBy("lock")
@@ -1144,6 +1280,44 @@ public class Peer {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
+        //
+        // In headers first mode (see BlockBodyDownloader) we only ever use "getheaders" here, continuing from the
+        // last header whose body is still being fetched, if any.
+        BlockBodyDownloader bodyDownloader = vBodyDownloader;
+        if (bodyDownloader != null) {
+            Sha256Hash tip = bodyDownloader.getTip();
+            requestHeadersLocked(tip != null ? tip : checkNotNull(blockChain).getChainHead().getHeader().getHash(), toHash);
+            return;
+        }
+
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
+        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        // Did we already make this request? If so, don't do it again.
+        if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
+            log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
+            return;
+        }
+        log.debug("{}: blockChainDownloadLocked({}) current head = {}",
+                toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
+        List<Sha256Hash> blockLocator = buildBlockLocatorLocked();
+
+        // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
+        // block being solved during chain download.
+        lastGetBlocksBegin = chainHeadHash;
+        lastGetBlocksEnd = toHash;
+
+        if (downloadBlockBodies) {
+            GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
+            sendMessage(message);
+        } else {
+            // Downloading headers for a while instead of full blocks.
+            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
+            sendMessage(message);
+        }
+    }
+
+    @GuardedBy("lock")
+    private List<Sha256Hash> buildBlockLocatorLocked() {
         // TODO: Block locators should be abstracted out rather than special cased here.
         List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
         // For now we don't do the exponential thinning as suggested here:
@@ -1154,16 +1328,7 @@ public class Peer {
         // 50 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
         // must always put the genesis block as the first entry.
         BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
-        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
-        // Did we already make this request? If so, don't do it again.
-        if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
-            log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
-            return;
-        }
-        log.debug("{}: blockChainDownloadLocked({}) current head = {}",
-                toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
+        StoredBlock cursor = blockChain.getChainHead();
         for (int i = 100; cursor != null && i > 0; i--) {
             blockLocator.add(cursor.getHeader().getHash());
             try {
@@ -1177,22 +1342,71 @@ public class Peer {
         if (cursor != null) {
             blockLocator.add(params.getGenesisBlock().getHash());
         }
+        return blockLocator;
+    }
 
-        // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
-        // block being solved during chain download.
-        lastGetBlocksBegin = chainHeadHash;
+    // Sends a getheaders for the headers following the given block, which is either our chain head or a header that
+    // is not yet in the chain because its body is still being downloaded.
+    @GuardedBy("lock")
+    private void requestHeadersLocked(Sha256Hash from, Sha256Hash toHash) {
+        checkState(lock.isHeldByCurrentThread());
+        if (Objects.equal(lastGetBlocksBegin, from) && Objects.equal(lastGetBlocksEnd, toHash)) {
+            log.info("requestHeadersLocked({}): ignoring duplicated request", toHash.toString());
+            return;
+        }
+        List<Sha256Hash> blockLocator = buildBlockLocatorLocked();
+        if (!blockLocator.get(0).equals(from))
+            blockLocator.add(0, from);
+        lastGetBlocksBegin = from;
         lastGetBlocksEnd = toHash;
+        log.debug("{}: Requesting headers after {}", toString(), from);
+        sendMessage(new GetHeadersMessage(params, blockLocator, toHash));
+    }
 
-        if (downloadBlockBodies) {
-            GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
-            sendMessage(message);
-        } else {
-            // Downloading headers for a while instead of full blocks.
-            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
-            sendMessage(message);
+    /**
+     * Used by {@link BlockBodyDownloader} to resume a headers first download once enough of the queued block bodies
+     * have arrived.
+     */
+    void requestMoreHeaders() {
+        lock.lock();
+        try {
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } catch (IOException e) {
+            log.error("{}: Failed to request more headers", this, e);
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Used by {@link BlockBodyDownloader} to fetch the given blocks as part of a headers first download. Filtered
+     * blocks are requested instead if they would be used by the normal download mode.
+     */
+    void requestBlockBodies(List<Sha256Hash> hashes) {
+        boolean filtered;
+        lock.lock();
+        try {
+            filtered = useFilteredBlocks && vPeerVersionMessage.isBloomFilteringSupported() && vBloomFilter != null;
+        } finally {
+            lock.unlock();
+        }
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : hashes)
+            getdata.addItem(new InventoryItem(filtered ? InventoryItem.Type.FilteredBlock : InventoryItem.Type.Block, hash));
+        sendMessage(getdata);
+        // As in processInv, a ping marks the end of the last filtered block's transactions.
+        if (filtered)
+            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+    }
+
+    /**
+     * Switches this peer to headers first chain download, or back to the normal mode if null. Called by
+     * {@link PeerGroup}.
+     */
+    void setBlockBodyDownloader(@Nullable BlockBodyDownloader bodyDownloader) {
+        this.vBodyDownloader = bodyDownloader;
+    }
+
     /**
      * Starts an asynchronous download of the block chain. The chain download is deemed to be complete once we've
      * downloaded the same number of blocks that the peer advertised having in its version handshake message.
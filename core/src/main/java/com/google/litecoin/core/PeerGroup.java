@@ -115,6 +115,8 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
     @GuardedBy("lock") private long fastCatchupTimeSecs;
+    // Non-null when the chain is downloaded headers first, with block bodies fetched from all peers.
+    @GuardedBy("lock") private BlockBodyDownloader bodyDownloader;
     private final CopyOnWriteArrayList<Wallet> wallets;
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
 
@@ -129,14 +131,32 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
 
     private ClientBootstrap bootstrap;
     private int minBroadcastConnections = 0;
+    // Wallets tell us exactly what they added, so the filter is updated with just that rather than rebuilt.
     private AbstractWalletEventListener walletEventListener = new AbstractWalletEventListener() {
-        private void onChanged() {
-            recalculateFastCatchupAndFilter();
+        @Override public void onScriptsAdded(Wallet wallet, List<Script> scripts) {
+            List<byte[]> data = new ArrayList<byte[]>();
+            for (Script script : scripts)
+                Wallet.addBloomFilterData(script, data);
+            updateFilter(wallet, data, false);
+        }
+        @Override public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
+            List<byte[]> data = new ArrayList<byte[]>();
+            for (ECKey key : keys)
+                Wallet.addBloomFilterData(key, data);
+            updateFilter(wallet, data, true);
+        }
+        @Override public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+            onTransaction(wallet, tx);
+        }
+        @Override public void onCoinsSent(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+            onTransaction(wallet, tx);
+        }
+        private void onTransaction(Wallet wallet, Transaction tx) {
+            List<byte[]> data = new ArrayList<byte[]>();
+            wallet.addBloomFilterOutPoints(tx, data);
+            if (!data.isEmpty())
+                updateFilter(wallet, data, false);
         }
-        @Override public void onScriptsAdded(Wallet wallet, List<Script> scripts) { onChanged(); }
-        @Override public void onKeysAdded(Wallet wallet, List<ECKey> keys) { onChanged(); }
-        @Override public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) { onChanged(); }
-        @Override public void onCoinsSent(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) { onChanged(); }
     };
 
     private class PeerStartupListener implements Peer.PeerLifecycleListener {
@@ -163,8 +183,8 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     // The false positive rate for bloomFilter
     private double bloomFilterFPRate = DEFAULT_BLOOM_FILTER_FP_RATE;
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
-    private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
-    private int lastBloomFilterElementCount;
+    @GuardedBy("lock") private final BloomFilterManager bloomFilterManager =
+            new BloomFilterManager((long) (Math.random() * Long.MAX_VALUE));
 
     /**
      * Creates a PeerGroup with the given parameters. No chain is provided so this node will report its chain height
@@ -578,6 +598,25 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     protected void startUp() throws Exception {
         // This is run in a background thread by the AbstractIdleService implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        // Headers first downloads re-request block bodies that peers are slow to deliver.
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                BlockBodyDownloader downloader;
+                lock.lock();
+                try {
+                    downloader = bodyDownloader;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    if (downloader != null)
+                        downloader.checkTimeouts();
+                } catch (Exception e) {
+                    log.warn("Exception whilst re-requesting block bodies: {}", e.toString());
+                }
+            }
+        }, BlockBodyDownloader.TIMEOUT_CHECK_INTERVAL_MSEC, BlockBodyDownloader.TIMEOUT_CHECK_INTERVAL_MSEC);
         // Bring up the requested number of connections. If a connect attempt fails,
         // new peers will be tried until there is a success, so just calling connectToAnyPeer for the wanted number
         // of peers is sufficient.
@@ -680,50 +719,68 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
             // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
             if (chain != null && chain.shouldVerifyTransactions())
                 return;
-            long earliestKeyTimeSecs = Long.MAX_VALUE;
-            int elements = 0;
+            if (bloomFilterManager.rebuild(peerFilterProviders, bloomFilterFPRate))
+                filterChanged(bloomFilterManager.getFilter());
+            recalculateFastCatchupTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the given data from a wallet to the bloom filter, rebuilding it if it got too full. The fast catchup time is
+     * recalculated as well if keys were added.
+     */
+    private void updateFilter(Wallet wallet, List<byte[]> data, boolean keysAdded) {
+        lock.lock();
+        try {
+            if ((chain != null && chain.shouldVerifyTransactions()) || !peerFilterProviders.contains(wallet))
+                return;
             boolean requiresUpdateAll = false;
-            for (PeerFilterProvider p : peerFilterProviders) {
-                earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, p.getEarliestKeyCreationTime());
-                elements += p.getBloomFilterElementCount();
+            for (PeerFilterProvider p : peerFilterProviders)
                 requiresUpdateAll = requiresUpdateAll || p.isRequiringUpdateAllBloomFilter();
+            if (bloomFilterManager.insert(data, requiresUpdateAll)) {
+                filterChanged(bloomFilterManager.getFilter());
+            } else {
+                log.info("Rebuilding Bloom filter, {} elements in a filter sized for {}",
+                        bloomFilterManager.getElementCount() + data.size(), bloomFilterManager.getCapacity());
+                if (bloomFilterManager.rebuild(peerFilterProviders, bloomFilterFPRate))
+                    filterChanged(bloomFilterManager.getFilter());
             }
+            if (keysAdded)
+                recalculateFastCatchupTime();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            if (elements > 0) {
-                // We stair-step our element count so that we avoid creating a filter with different parameters
-                // as much as possible as that results in a loss of privacy.
-                // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
-                // it will likely mean we never need to create a filter with different parameters.
-                lastBloomFilterElementCount = elements > lastBloomFilterElementCount ? elements + 100 : lastBloomFilterElementCount;
-                BloomFilter.BloomUpdate bloomFlags =
-                        requiresUpdateAll ? BloomFilter.BloomUpdate.UPDATE_ALL : BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY;
-                BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak, bloomFlags);
-                for (PeerFilterProvider p : peerFilterProviders)
-                    filter.merge(p.getBloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak));
+    private void filterChanged(BloomFilter filter) {
+        checkState(lock.isHeldByCurrentThread());
 /*          Don't set bloom - new clients will block you.
-                if (!filter.equals(bloomFilter)) {
-                    bloomFilter = filter;
-                    for (Peer peer : peers)
-                        try {
-                            peer.setBloomFilter(filter);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                }
-*/
+        bloomFilter = filter;
+        for (Peer peer : peers)
+            try {
+                peer.setBloomFilter(filter);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-            // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
-            // both in block header timestamps and if the users clock was out of sync when the key was first created
-            // (to within a small amount of tolerance).
-            earliestKeyTimeSecs -= 86400 * 7;
+*/
+    }
 
-            // Do this last so that bloomFilter is already set when it gets called.
-            setFastCatchupTimeSecs(earliestKeyTimeSecs);
-        } finally {
-            lock.unlock();
-        }
+    private void recalculateFastCatchupTime() {
+        checkState(lock.isHeldByCurrentThread());
+        long earliestKeyTimeSecs = Long.MAX_VALUE;
+        for (PeerFilterProvider p : peerFilterProviders)
+            earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, p.getEarliestKeyCreationTime());
+        // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
+        // both in block header timestamps and if the users clock was out of sync when the key was first created
+        // (to within a small amount of tolerance).
+        earliestKeyTimeSecs -= 86400 * 7;
+
+        // Do this last so that bloomFilter is already set when it gets called.
+        setFastCatchupTimeSecs(earliestKeyTimeSecs);
     }
-    
+
     /**
      * Sets the false positive rate of bloom filters given to peers.
      * Be careful regenerating the bloom filter too often, as it decreases anonymity because remote nodes can
@@ -865,6 +922,10 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
 
 */            // Link the peer to the memory pool so broadcast transactions have their confidence levels updated.
             peer.setDownloadData(false);
+            if (bodyDownloader != null) {
+                peer.setBlockBodyDownloader(bodyDownloader);
+                bodyDownloader.addPeer(peer);
+            }
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1006,6 +1067,48 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         }
     }
 
+    /**
+     * <p>Switches chain download to headers first mode. The download peer fetches headers with "getheaders", asking
+     * for the next batch as soon as one arrives, and the proof of work of each batch is checked in parallel on all
+     * cores. Blocks after the fast catchup time are then fetched from every connected peer, with up to
+     * <tt>blocksPerPeer</tt> requests outstanding per peer, rather than by the getblocks/inv/getdata round trips to
+     * a single peer of the normal mode.</p>
+     *
+     * <p>Call this before starting the block chain download. Difficulty transitions are still checked as each block
+     * is connected to the chain.</p>
+     */
+    public void setHeadersFirstDownload(boolean enabled, int blocksPerPeer) {
+        lock.lock();
+        try {
+            checkState(chain != null, "Headers first download requires a block chain");
+            if (enabled == (bodyDownloader != null))
+                return;
+            bodyDownloader = enabled ? new BlockBodyDownloader(new ParallelHeaderVerifier(), blocksPerPeer) : null;
+            for (Peer peer : peers) {
+                peer.setBlockBodyDownloader(bodyDownloader);
+                if (bodyDownloader != null)
+                    bodyDownloader.addPeer(peer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Same as {@link #setHeadersFirstDownload(boolean, int)} with a default window per peer. */
+    public void setHeadersFirstDownload(boolean enabled) {
+        setHeadersFirstDownload(enabled, BlockBodyDownloader.DEFAULT_WINDOW_PER_PEER);
+    }
+
+    /** Returns true if the chain is downloaded in headers first mode. */
+    public boolean isHeadersFirstDownload() {
+        lock.lock();
+        try {
+            return bodyDownloader != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns the current fast catchup time. The contents of blocks before this time won't be downloaded as they
      * cannot contain any interesting transactions. If you use {@link PeerGroup#addWallet(Wallet)} this just returns
@@ -1037,6 +1140,8 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
             pendingPeers.remove(peer);
             peers.remove(peer);
             log.info("{}: Peer died", peer.getAddress());
+            if (bodyDownloader != null)
+                bodyDownloader.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
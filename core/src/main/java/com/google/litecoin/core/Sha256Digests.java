@@ -0,0 +1,180 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>SHA-256 hashing that doesn't serialize callers on a shared lock. Every thread gets its own
+ * {@link MessageDigest} together with a 32 byte scratch buffer for the intermediate round of a double hash, so
+ * hashing from network threads, script verification threads and the wallet never contends.</p>
+ *
+ * <p>As well as the allocating methods that mirror {@link Utils#doubleDigest(byte[], int, int)}, there are variants
+ * that write the result into a caller supplied array, produce a byte-reversed {@link Sha256Hash} directly (the form
+ * used for transaction and block hashes) and hash {@link ByteBuffer} slices without copying them into an array.</p>
+ *
+ * <p>None of the methods here are re-entrant with respect to {@link #threadLocalDigest()}: if you borrow the digest
+ * you must finish with it before calling any other method of this class on the same thread.</p>
+ */
+public class Sha256Digests {
+    private static final int HASH_LENGTH = 32;
+
+    private static class State {
+        final MessageDigest digest;
+        final byte[] scratch = new byte[HASH_LENGTH];
+
+        State() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
+        }
+    }
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private Sha256Digests() {}
+
+    /**
+     * Returns the calling thread's SHA-256 digest, reset and ready for use. The object must not be handed to other
+     * threads.
+     */
+    public static MessageDigest threadLocalDigest() {
+        MessageDigest digest = state.get().digest;
+        digest.reset();
+        return digest;
+    }
+
+    /** Calculates SHA256(byte range). */
+    public static byte[] singleDigest(byte[] input, int offset, int length) {
+        MessageDigest digest = threadLocalDigest();
+        digest.update(input, offset, length);
+        return digest.digest();
+    }
+
+    /** Calculates SHA256(SHA256(byte range)) and returns it as a new array. */
+    public static byte[] doubleDigest(byte[] input, int offset, int length) {
+        byte[] out = new byte[HASH_LENGTH];
+        doubleDigest(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates SHA256(SHA256(byte range)) and writes the 32 byte result into <tt>out</tt> at <tt>outOffset</tt>.
+     * Nothing is allocated on the heap.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        State s = state.get();
+        s.digest.reset();
+        s.digest.update(input, offset, length);
+        finishDouble(s, out, outOffset);
+    }
+
+    /** Calculates SHA256(SHA256(byte range 1 + byte range 2)) and returns it as a new array. */
+    public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                                byte[] input2, int offset2, int length2) {
+        State s = state.get();
+        s.digest.reset();
+        s.digest.update(input1, offset1, length1);
+        s.digest.update(input2, offset2, length2);
+        byte[] out = new byte[HASH_LENGTH];
+        finishDouble(s, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates SHA256(SHA256(remaining bytes of the buffer)). The position and limit of the given buffer are not
+     * modified, so a slice of a larger (possibly direct) buffer can be hashed in place.
+     */
+    public static byte[] doubleDigest(ByteBuffer slice) {
+        byte[] out = new byte[HASH_LENGTH];
+        doubleDigest(slice, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates SHA256(SHA256(remaining bytes of the buffer)) into <tt>out</tt> at <tt>outOffset</tt>. The position
+     * and limit of the given buffer are not modified.
+     */
+    public static void doubleDigest(ByteBuffer slice, byte[] out, int outOffset) {
+        State s = state.get();
+        s.digest.reset();
+        update(s.digest, slice);
+        finishDouble(s, out, outOffset);
+    }
+
+    /**
+     * Calculates the double hash of the byte range and returns it byte-reversed, as is done for transaction and block
+     * hashes. Only the 32 byte array wrapped by the result is allocated.
+     */
+    public static Sha256Hash doubleDigestReversed(byte[] input, int offset, int length) {
+        byte[] out = new byte[HASH_LENGTH];
+        doubleDigest(input, offset, length, out, 0);
+        reverseInPlace(out);
+        return new Sha256Hash(out);
+    }
+
+    /** As {@link #doubleDigestReversed(byte[], int, int)} but hashes the remaining bytes of a buffer in place. */
+    public static Sha256Hash doubleDigestReversed(ByteBuffer slice) {
+        byte[] out = new byte[HASH_LENGTH];
+        doubleDigest(slice, out, 0);
+        reverseInPlace(out);
+        return new Sha256Hash(out);
+    }
+
+    /**
+     * Feeds the remaining bytes of the buffer into the digest without moving the buffer's position. Heap buffers are
+     * passed straight through as an array range.
+     */
+    static void update(MessageDigest digest, ByteBuffer slice) {
+        if (slice.hasArray()) {
+            digest.update(slice.array(), slice.arrayOffset() + slice.position(), slice.remaining());
+        } else {
+            digest.update(slice.duplicate());
+        }
+    }
+
+    private static void finishDouble(State s, byte[] out, int outOffset) {
+        checkArgument(out.length - outOffset >= HASH_LENGTH, "Output buffer too small");
+        try {
+            s.digest.digest(s.scratch, 0, HASH_LENGTH);
+            s.digest.update(s.scratch, 0, HASH_LENGTH);
+            s.digest.digest(out, outOffset, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, the buffers are always large enough.
+        }
+    }
+
+    private static void reverseInPlace(byte[] bytes) {
+        for (int i = 0, j = bytes.length - 1; i < j; i++, j--) {
+            byte tmp = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = tmp;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import com.google.litecoin.wallet.DefaultCoinSelector;
+import com.google.common.collect.Lists;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * <p>The outputs of the unspent and pending pools of a {@link Wallet} that the wallet holds keys for and which are
+ * not spent yet, together with their running total. The wallet marks transactions as changed when they move between
+ * pools or have outputs spent or released, and only those are looked at again on the next query. So balance queries
+ * and coin selection no longer walk every transaction in the wallet.</p>
+ *
+ * <p>Values are split by what can change without the wallet touching a transaction. Outputs of BUILDING transactions
+ * stay selectable until they move pool, so their total is kept as is. Coinbases mature as the chain grows and
+ * pending transactions become selectable as peers announce them, so those few are checked at query time.</p>
+ *
+ * <p>All methods must be called with the wallet lock held.</p>
+ */
+class SpendableOutputs {
+    private static class Entry {
+        final Transaction tx;
+        final List<TransactionOutput> outputs;
+        final BigInteger value;
+
+        Entry(Transaction tx, List<TransactionOutput> outputs, BigInteger value) {
+            this.tx = tx;
+            this.outputs = outputs;
+            this.value = value;
+        }
+    }
+
+    private final Wallet wallet;
+    private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    // Entries that must be re-checked at query time: coinbases and transactions that are not BUILDING.
+    private final Map<Sha256Hash, Entry> volatileEntries = new HashMap<Sha256Hash, Entry>();
+    private final Set<Sha256Hash> dirty = new HashSet<Sha256Hash>();
+    private boolean allDirty = true;
+    private BigInteger total = BigInteger.ZERO;
+    // Total of the entries that are BUILDING and not coinbases.
+    private BigInteger stableTotal = BigInteger.ZERO;
+
+    SpendableOutputs(Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    /** Notes that the pool or the spent outputs of the given transaction may have changed. */
+    void markDirty(Sha256Hash txHash) {
+        if (!allDirty)
+            dirty.add(txHash);
+    }
+
+    /** Notes that anything may have changed, for instance because keys were added or a re-org happened. */
+    void markAllDirty() {
+        allDirty = true;
+        dirty.clear();
+    }
+
+    /** Returns the outputs, as {@link Wallet#calculateAllSpendCandidates(boolean)} does. */
+    LinkedList<TransactionOutput> getCandidates(boolean excludeImmatureCoinbases) {
+        refresh();
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        for (Entry entry : entries.values()) {
+            if (excludeImmatureCoinbases && !entry.tx.isMature()) continue;
+            candidates.addAll(entry.outputs);
+        }
+        return candidates;
+    }
+
+    /** Returns the total value of all the outputs, including immature coinbases. */
+    BigInteger getTotal() {
+        refresh();
+        return total;
+    }
+
+    /** Returns the total value that a {@link DefaultCoinSelector} would select from the mature outputs. */
+    BigInteger getSelectableTotal() {
+        refresh();
+        BigInteger value = stableTotal;
+        for (Entry entry : volatileEntries.values()) {
+            if (entry.tx.isMature() && DefaultCoinSelector.isSelectable(entry.tx))
+                value = value.add(entry.value);
+        }
+        return value;
+    }
+
+    private void refresh() {
+        if (allDirty) {
+            entries.clear();
+            volatileEntries.clear();
+            total = stableTotal = BigInteger.ZERO;
+            for (Transaction tx : wallet.unspent.values())
+                add(tx);
+            for (Transaction tx : wallet.pending.values())
+                add(tx);
+            allDirty = false;
+            return;
+        }
+        if (dirty.isEmpty())
+            return;
+        for (Sha256Hash hash : dirty) {
+            remove(hash);
+            Transaction tx = wallet.unspent.get(hash);
+            if (tx == null)
+                tx = wallet.pending.get(hash);
+            if (tx != null)
+                add(tx);
+        }
+        dirty.clear();
+    }
+
+    private void add(Transaction tx) {
+        List<TransactionOutput> outputs = null;
+        BigInteger value = BigInteger.ZERO;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (!output.isMine(wallet)) continue;
+            if (outputs == null)
+                outputs = new ArrayList<TransactionOutput>(2);
+            outputs.add(output);
+            value = value.add(output.getValue());
+        }
+        if (outputs == null)
+            return;
+        boolean building = tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING;
+        Entry entry = new Entry(tx, outputs, value);
+        entries.put(tx.getHash(), entry);
+        total = total.add(value);
+        if (building && !tx.isCoinBase())
+            stableTotal = stableTotal.add(value);
+        else
+            volatileEntries.put(tx.getHash(), entry);
+    }
+
+    private void remove(Sha256Hash hash) {
+        Entry entry = entries.remove(hash);
+        if (entry == null)
+            return;
+        total = total.subtract(entry.value);
+        if (volatileEntries.remove(hash) == null)
+            stableTotal = stableTotal.subtract(entry.value);
+    }
+}
@@ -20,13 +20,10 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
-import org.jboss.netty.handler.codec.replay.VoidEnum;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -182,7 +179,7 @@ public class TCPNetworkConnection implements NetworkConnection {
         return "[" + remoteIp.getHostAddress() + "]:" + params.getPort();
     }
 
-    public class NetworkHandler extends ReplayingDecoder<VoidEnum> implements ChannelDownstreamHandler {
+    public class NetworkHandler extends FrameDecoder implements ChannelDownstreamHandler {
         @Override
         public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
             super.channelConnected(ctx, e);
@@ -196,20 +193,27 @@ public class TCPNetworkConnection implements NetworkConnection {
             // useful data in it. We need to know the peer protocol version before we can talk to it.
         }
 
-        // Attempt to decode a Bitcoin message passing upstream in the channel.
-        //
-        // By extending ReplayingDecoder, reading past the end of buffer will throw a special Error
-        // causing the channel to read more and retry.
-        //
-        // On VMs/systems where exception handling is slow, this will impact performance.  On the
-        // other hand, implementing a FrameDecoder will increase code complexity due to having
-        // to implement retries ourselves.
-        //
-        // TODO: consider using a decoder state and checkpoint() if performance is an issue.
+        // Attempt to decode a Bitcoin message passing upstream in the channel. The header is read in place and nothing
+        // is copied out of the buffer until the whole message has arrived. Until then, null tells the FrameDecoder to
+        // call again once more data is there.
         @Override
-        protected Object decode(ChannelHandlerContext ctx, Channel chan,
-                                ChannelBuffer buffer, VoidEnum state) throws Exception {
-            Message message = serializer.deserialize(new ChannelBufferInputStream(buffer));
+        protected Object decode(ChannelHandlerContext ctx, Channel chan, ChannelBuffer buffer) throws Exception {
+            // Satoshi's implementation ignores garbage before the magic bytes, so we do the same.
+            final int magic = (int) params.getPacketMagic();
+            while (buffer.readableBytes() >= 4 && buffer.getInt(buffer.readerIndex()) != magic)
+                buffer.skipBytes(1);
+            if (buffer.readableBytes() < BitcoinSerializer.HEADER_LEN)
+                return null;
+            // The payload size follows the magic and the command, as a little endian uint32.
+            long size = Integer.reverseBytes(buffer.getInt(buffer.readerIndex() + 4 + BitcoinSerializer.COMMAND_LEN))
+                    & 0xFFFFFFFFL;
+            if (size > Message.MAX_SIZE)
+                throw new ProtocolException("Message size too large: " + size);
+            int length = BitcoinSerializer.HEADER_LEN + (int) size;
+            if (buffer.readableBytes() < length)
+                return null;
+            Message message = serializer.deserialize(buffer.toByteBuffer(buffer.readerIndex(), length));
+            buffer.skipBytes(length);
             if (message instanceof VersionMessage)
                 onVersionMessage(message);
             return message;
@@ -225,8 +229,8 @@ public class TCPNetworkConnection implements NetworkConnection {
             MessageEvent e = (MessageEvent) evt;
             Message message = (Message)e.getMessage();
 
-            ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
-            serializer.serialize(message, new ChannelBufferOutputStream(buffer));
+            // The packet is built in one array of the right size, which the channel can take without copying it.
+            ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(serializer.serializeToPacket(message));
             write(ctx, e.getFuture(), buffer, e.getRemoteAddress());
         }
 
@@ -190,8 +190,14 @@ public class Transaction extends ChildMessage implements Serializable {
      */
     public Sha256Hash getHash() {
         if (hash == null) {
-            byte[] bits = bitcoinSerialize();
-            hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
+            byte[] bits = bytes;
+            if (bits != null && length != UNKNOWN_LENGTH) {
+                // Still backed by the bytes it was read from, so hash those in place.
+                hash = Sha256Digests.doubleDigestReversed(bits, offset, length);
+            } else {
+                bits = bitcoinSerialize();
+                hash = Sha256Digests.doubleDigestReversed(bits, 0, bits.length);
+            }
         }
         return hash;
     }
@@ -540,6 +546,10 @@ public class Transaction extends ChildMessage implements Serializable {
         lockTime = readUint32();
         optimalEncodingMessageSize += 4;
         length = cursor - offset;
+        // The bytes of a block are usually dropped after parsing, so hash them now rather than serializing the
+        // transaction again later. Loose transactions get their hash from the checksum in BitcoinSerializer.
+        if (hash == null && getParent() != null)
+            hash = Sha256Digests.doubleDigestReversed(bytes, offset, length);
     }
 
     public int getOptimalEncodingMessageSize() {
@@ -106,15 +106,10 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
                     numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
-            for (Peer peer : peers) {
-                try {
-                    peer.sendMessage(pinnedTx);
-                    // We don't record the peer as having seen the tx in the memory pool because we want to track only
-                    // how many peers announced to us.
-                } catch (Exception e) {
-                    log.error("Caught exception sending to {}", peer, e);
-                }
-            }
+            // The transaction is serialized once for all the peers.
+            // We don't record the peers as having seen the tx in the memory pool because we want to track only
+            // how many peers announced to us.
+            Peer.sendToPeers(pinnedTx, peers);
             // If we've been limited to talk to only one peer, we can't wait to hear back because the
             // remote peer won't tell us about transactions we just announced to it for obvious reasons.
             // So we just have to assume we're done, at that point. This happens when we're not given
@@ -22,9 +22,13 @@ import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
+import javax.annotation.concurrent.GuardedBy;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.EnumSet;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 
@@ -53,7 +57,9 @@ import java.util.concurrent.Executor;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link com.google.litecoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * method to ensure the block depth and work done are up to date. Confidences of transactions in a {@link Wallet}
+ * are instead attached to a counter of best chain blocks kept by the wallet, and their depth and work done are
+ * computed from it on demand.</p>
  * To make a copy that won't be changed, use {@link com.google.litecoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
@@ -70,10 +76,15 @@ public class TransactionConfidence implements Serializable {
     // Lazily created listeners array.
     private transient CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. If depthTracker is
+    // set and the type is BUILDING, this is the depth as of depthMark and blocks since then are added on read.
     private int depth;
-    // The cumulative work done for the blocks that bury this transaction.
+    // The cumulative work done for the blocks that bury this transaction, relative to depthMark like depth.
     private BigInteger workDone = BigInteger.ZERO;
+    private DepthTracker depthTracker;
+    private DepthTracker.Position depthMark;
+    // The deepest depth that a depth future is waiting for.
+    private int watchedDepth;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -187,6 +198,64 @@ public class TransactionConfidence implements Serializable {
         public void onConfidenceChanged(Transaction tx, ChangeReason reason);
     }
 
+    /**
+     * <p>A batch listener is informed of the confidence changes of many transactions at once, for instance of all the
+     * transactions of a {@link Wallet} that a new block buried. It is registered with
+     * {@link Wallet#addConfidenceBatchListener(BatchListener, Executor)}.</p>
+     *
+     * <p>Changes are collected whilst a batch waits for its executor, so a slow listener gets fewer, bigger batches
+     * rather than falling behind. A transaction appears at most once per batch, with every reason it changed for.</p>
+     */
+    public interface BatchListener {
+        public void onConfidenceChanged(Map<Transaction, Set<Listener.ChangeReason>> changes);
+    }
+
+    /**
+     * A listener with the reasons it is waiting to be run for. Reasons that are queued again before the listener got
+     * to run are merged into the waiting run, so a burst of changes to one transaction costs one task.
+     */
+    private static class Registration extends ListenerRegistration<Listener> {
+        private final Set<Listener.ChangeReason> wantedReasons;
+        @GuardedBy("this") private final EnumSet<Listener.ChangeReason> queuedReasons =
+                EnumSet.noneOf(Listener.ChangeReason.class);
+
+        Registration(Listener listener, Executor executor, Set<Listener.ChangeReason> wantedReasons) {
+            super(listener, executor);
+            this.wantedReasons = wantedReasons;
+        }
+
+        void queue(final Transaction tx, Listener.ChangeReason reason) {
+            if (!wantedReasons.contains(reason))
+                return;
+            synchronized (this) {
+                boolean waiting = !queuedReasons.isEmpty();
+                queuedReasons.add(reason);
+                if (waiting)
+                    return;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        EnumSet<Listener.ChangeReason> reasons;
+                        synchronized (Registration.this) {
+                            reasons = EnumSet.copyOf(queuedReasons);
+                            queuedReasons.clear();
+                        }
+                        for (Listener.ChangeReason reason : reasons)
+                            listener.onConfidenceChanged(tx, reason);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // No task is waiting any more, so don't let the queued reasons stop the next one being submitted.
+                synchronized (this) {
+                    queuedReasons.clear();
+                }
+                throw e;
+            }
+        }
+    }
+
     /**
      * <p>Adds an event listener that will be run when this confidence object is updated. The listener will be locked and
      * is likely to be invoked on a peer thread.</p>
@@ -197,8 +266,20 @@ public class TransactionConfidence implements Serializable {
      * a future from {@link #getDepthFuture(int)}.</p>
      */
     public void addEventListener(Listener listener, Executor executor) {
+        addEventListener(listener, executor, EnumSet.allOf(Listener.ChangeReason.class));
+    }
+
+    /**
+     * Adds an event listener that is only run for the given reasons. Used by the wallet, which only needs to hear
+     * about the changes it doesn't make itself. Does nothing if the listener was added before.
+     */
+    synchronized void addEventListener(Listener listener, Executor executor, Set<Listener.ChangeReason> reasons) {
         Preconditions.checkNotNull(listener);
-        listeners.addIfAbsent(new ListenerRegistration<Listener>(listener, executor));
+        for (ListenerRegistration<Listener> registration : listeners) {
+            if (registration.listener == listener)
+                return;
+        }
+        listeners.add(new Registration(listener, executor, reasons));
     }
 
     /**
@@ -237,6 +318,7 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setAppearedAtChainHeight(int appearedAtChainHeight) {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
+        markDepth();
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
@@ -257,6 +339,7 @@ public class TransactionConfidence implements Serializable {
         // Don't inform the event listeners if the confidence didn't really change.
         if (confidenceType == this.confidenceType)
             return;
+        markDepth();
         this.confidenceType = confidenceType;
         if (confidenceType == ConfidenceType.PENDING) {
             depth = 0;
@@ -341,6 +424,7 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING)
             return false;   // Should this be an assert?
 
+        markDepth();
         this.depth++;
         this.workDone = this.workDone.add(block.getWork());
         return true;
@@ -357,13 +441,16 @@ public class TransactionConfidence implements Serializable {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
-        return depth;
+        if (depthTracker == null || confidenceType != ConfidenceType.BUILDING)
+            return depth;
+        return depth + depthTracker.getPosition().blocks - depthMark.blocks;
     }
 
     /*
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        markDepth();
         this.depth = depth;
     }
 
@@ -375,13 +462,77 @@ public class TransactionConfidence implements Serializable {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
-        return workDone;
+        if (depthTracker == null || confidenceType != ConfidenceType.BUILDING)
+            return workDone;
+        return workDone.add(depthTracker.getPosition().work.subtract(depthMark.work));
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
+        markDepth();
         this.workDone = workDone;
     }
 
+    /**
+     * Folds the blocks counted by the depth tracker since the last mark into depth and work done, and moves the mark
+     * to the current position. Called before anything that sets or stops the lazy depth calculation.
+     */
+    private void markDepth() {
+        if (depthTracker == null)
+            return;
+        DepthTracker.Position now = depthTracker.getPosition();
+        if (confidenceType == ConfidenceType.BUILDING) {
+            depth += now.blocks - depthMark.blocks;
+            workDone = workDone.add(now.work.subtract(depthMark.work));
+        }
+        depthMark = now;
+    }
+
+    /**
+     * Attaches this confidence to the block counter of a wallet, taking the current depth and work done as correct
+     * for the wallet's current chain head. Does nothing if already attached to the given tracker.
+     */
+    void setDepthTracker(DepthTracker tracker) {
+        setDepthTracker(tracker, tracker.getPosition());
+    }
+
+    /**
+     * Attaches this confidence to the block counter of a wallet, taking the current depth and work done as correct
+     * for the given earlier position of the tracker. Used for transactions whose depth was saved some blocks ago.
+     */
+    void setDepthTracker(DepthTracker tracker, DepthTracker.Position mark) {
+        synchronized (this) {
+            if (depthTracker == tracker)
+                return;
+            markDepth();
+            depthTracker = tracker;
+            depthMark = mark;
+        }
+        tracker.watchIfShallow(this);
+    }
+
+    /**
+     * Called by the wallet after counting a block in which the transaction appeared, as the depth of one set by
+     * {@link #setAppearedAtChainHeight(int)} already accounts for that block.
+     */
+    void setDepthCurrent() {
+        DepthTracker tracker;
+        synchronized (this) {
+            tracker = depthTracker;
+            if (tracker == null)
+                return;
+            depthMark = tracker.getPosition();
+        }
+        tracker.watchIfShallow(this);
+    }
+
+    synchronized int getWatchedDepth() {
+        return watchedDepth;
+    }
+
+    Transaction getTransaction() {
+        return transaction;
+    }
+
     /**
      * If this transaction has been overridden by a double spend (is dead), this call returns the overriding transaction.
      * Note that this call <b>can return null</b> if you have migrated an old wallet, as pre-Jan 2012 wallets did not
@@ -425,16 +576,11 @@ public class TransactionConfidence implements Serializable {
      * explicitly rather than being done automatically because sometimes complex changes to transaction states can
      * result in a series of confidence changes that are not really useful to see separately. By invoking listeners
      * explicitly, more precise control is available. Note that this will run the listeners on the user code thread.
+     * A listener that is still waiting to run for the same reason is run only once.
      */
     public void queueListeners(final Listener.ChangeReason reason) {
-        for (final ListenerRegistration<Listener> registration : listeners) {
-            registration.executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    registration.listener.onConfidenceChanged(transaction, reason);
-                }
-            });
-        }
+        for (ListenerRegistration<Listener> registration : listeners)
+            ((Registration) registration).queue(transaction, reason);
     }
 
     /**
@@ -466,6 +612,11 @@ public class TransactionConfidence implements Serializable {
         final SettableFuture<Transaction> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(transaction);
+        } else {
+            // Make sure the wallet keeps telling us about new blocks until we get there.
+            watchedDepth = Math.max(watchedDepth, depth);
+            if (depthTracker != null && confidenceType == ConfidenceType.BUILDING)
+                depthTracker.watch(this, watchedDepth);
         }
         addEventListener(new Listener() {
             @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
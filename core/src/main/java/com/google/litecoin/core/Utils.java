@@ -16,9 +16,9 @@
 
 package com.google.litecoin.core;
 
+import com.google.litecoin.crypto.LitecoinScrypt;
 import com.google.common.base.Charsets;
 import com.google.common.primitives.UnsignedLongs;
-import com.lambdaworks.crypto.SCrypt;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
 import org.spongycastle.util.encoders.Hex;
 
@@ -27,8 +27,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -40,14 +38,6 @@ import static com.google.common.base.Preconditions.checkArgument;
  */
 public class Utils {
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
-        }
-    }
 
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Bitcoin Signed Message:\n";
@@ -188,23 +178,15 @@ public class Utils {
 
     /**
      * Calculates the SHA-256 hash of the given byte range, and then hashes the resulting hash again. This is
-     * standard procedure in Bitcoin. The resulting hash is in big endian form.
+     * standard procedure in Bitcoin. The resulting hash is in big endian form. Hashing uses a per-thread digest
+     * (see {@link Sha256Digests}) so concurrent callers don't contend.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        return Sha256Digests.doubleDigest(input, offset, length);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        return Sha256Digests.singleDigest(input, offset, length);
     }
 
     /**
@@ -212,21 +194,15 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        return Sha256Digests.doubleDigestTwoBuffers(input1, offset1, length1, input2, offset2, length2);
     }
 
+    /**
+     * Calculates scrypt(input, input, 1024, 1, 1, 32), the Litecoin proof of work function. See
+     * {@link com.google.litecoin.crypto.LitecoinScrypt}.
+     */
     public static byte[] scryptDigest(byte[] input) {
-        try {
-            return SCrypt.scrypt(input, input, 1024, 1, 1, 32);
-        } catch (Exception e) {
-            return null;
-        }
+        return LitecoinScrypt.hash(input);
     }
 
     /**
@@ -317,16 +293,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = Sha256Digests.singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
@@ -28,6 +28,8 @@ import com.google.litecoin.script.ScriptBuilder;
 import com.google.litecoin.script.ScriptChunk;
 import com.google.litecoin.store.UnreadableWalletException;
 import com.google.litecoin.store.WalletProtobufSerializer;
+import com.google.litecoin.store.WalletProtoCache;
+import com.google.litecoin.store.WalletSnapshot;
 import com.google.litecoin.utils.ListenerRegistration;
 import com.google.litecoin.utils.Threading;
 import com.google.litecoin.wallet.*;
@@ -38,6 +40,8 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.litecoinj.wallet.Protos;
 import org.litecoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,7 +54,9 @@ import java.io.*;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -125,14 +131,22 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     final Map<Sha256Hash, Transaction> pending;
     final Map<Sha256Hash, Transaction> unspent;
-    final Map<Sha256Hash, Transaction> spent;
-    final Map<Sha256Hash, Transaction> dead;
+    final HistoryMap spent;
+    final HistoryMap dead;
 
     // All transactions together.
-    final Map<Sha256Hash, Transaction> transactions;
+    final HistoryMap transactions;
+    // Spent and dead transactions that were not loaded yet. The spent, dead and transactions maps load them on access.
+    private final WalletHistory history;
+
+    // Our unspent outputs in the unspent and pending pools, kept up to date as transactions move and get spent.
+    private transient SpendableOutputs spendableOutputs;
 
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
+    // Indexes over the keychain so that relevance checks don't have to scan it. Rebuilt whenever keychain is replaced.
+    private transient HashMap<ByteArrayKey, ECKey> keysByPubKey;
+    private transient HashMap<ByteArrayKey, ECKey> keysByPubKeyHash;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
@@ -148,6 +162,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // A listener that relays confidence changes from the transaction confidence object to the wallet event listener,
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private transient TransactionConfidence.Listener txConfidenceListener;
+    // The wallet makes all other confidence changes itself, so it only listens for peers announcing a transaction.
+    private static final Set<TransactionConfidence.Listener.ChangeReason> SEEN_PEERS_ONLY =
+            Collections.unmodifiableSet(EnumSet.of(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS));
+    private transient CopyOnWriteArrayList<ListenerRegistration<TransactionConfidence.BatchListener>>
+            confidenceBatchListeners;
 
     // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
@@ -161,8 +180,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // side effect of how the code is written (e.g. during re-orgs confidence data gets adjusted multiple times).
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
-    private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
+    private Map<Transaction, EnumSet<TransactionConfidence.Listener.ChangeReason>> confidenceChanged;
+    // Counts best chain blocks so that confidences of BUILDING transactions don't need touching for each one.
+    private final DepthTracker depthTracker;
     private volatile WalletFiles vFileManager;
+    // What changed since the last call to saveChangesTo(), for journaled saving. Only tracked once a snapshot was
+    // handed to a journal, so wallets saved in full don't collect anything.
+    private transient Set<Transaction> unsavedTransactions;
+    private transient List<ECKey> unsavedKeys;
+    private transient boolean snapshotNeeded;
+    // The protobuf form of unchanged transactions, so that saving doesn't convert every transaction under the lock.
+    private transient WalletProtoCache protoCache;
+    // Saves started by saveNow() whilst the lock is held. The outermost holder waits for them once it unlocked.
+    private transient List<Future<?>> savesInFlight;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     private volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -203,19 +233,30 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         this.params = checkNotNull(params);
         keychain = new ArrayList<ECKey>();
         watchedScripts = Sets.newHashSet();
-        unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
-        pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
-        transactions = new HashMap<Sha256Hash, Transaction>();
+        unspent = new PoolMap();
+        spent = new HistoryMap(Pool.SPENT);
+        pending = new PoolMap();
+        dead = new HistoryMap(Pool.DEAD);
+        transactions = new HistoryMap(null);
         eventListeners = new CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>>();
         extensions = new HashMap<String, WalletExtension>();
-        confidenceChanged = new HashMap<Transaction, TransactionConfidence.Listener.ChangeReason>();
+        confidenceChanged = new HashMap<Transaction, EnumSet<TransactionConfidence.Listener.ChangeReason>>();
+        depthTracker = new DepthTracker(params.getSpendableCoinbaseDepth());
+        history = new WalletHistory(this, depthTracker);
         createTransientState();
     }
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        spendableOutputs = new SpendableOutputs(this);
+        unsavedTransactions = new LinkedHashSet<Transaction>();
+        unsavedKeys = new ArrayList<ECKey>();
+        snapshotNeeded = true;
+        protoCache = new WalletProtoCache();
+        savesInFlight = new ArrayList<Future<?>>();
+        confidenceBatchListeners =
+                new CopyOnWriteArrayList<ListenerRegistration<TransactionConfidence.BatchListener>>();
+        rebuildKeyIndexes();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -228,8 +269,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        markUnsaved(tx);
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
+                        queueConfidenceBatchListeners(Collections.singletonMap(tx, EnumSet.of(reason)));
                         maybeQueueOnWalletChanged();
                     } finally {
                         lock.unlock();
@@ -244,6 +287,176 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return params;
     }
 
+    /**
+     * A byte array usable as a hash map key, for looking up keys by public key or public key hash. The hash code is
+     * computed once, as the same arrays are looked up for every transaction output we see.
+     */
+    private static final class ByteArrayKey {
+        private final byte[] bytes;
+        private final int hashCode;
+
+        ByteArrayKey(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ByteArrayKey && Arrays.equals(bytes, ((ByteArrayKey) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * A pool that tells {@link SpendableOutputs} about transactions entering or leaving it. Only the mutators used
+     * by the wallet are intercepted, so don't modify a pool through its views.
+     */
+    private class PoolMap extends ForwardingMap<Sha256Hash, Transaction> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final HashMap<Sha256Hash, Transaction> map = new HashMap<Sha256Hash, Transaction>();
+
+        @Override
+        protected Map<Sha256Hash, Transaction> delegate() {
+            return map;
+        }
+
+        @Override
+        public Transaction put(Sha256Hash key, Transaction value) {
+            if (spendableOutputs != null)
+                spendableOutputs.markDirty(key);
+            return map.put(key, value);
+        }
+
+        @Override
+        public void putAll(Map<? extends Sha256Hash, ? extends Transaction> m) {
+            standardPutAll(m);
+        }
+
+        @Override
+        public Transaction remove(Object key) {
+            Transaction tx = map.remove(key);
+            if (tx != null && spendableOutputs != null)
+                spendableOutputs.markDirty(tx.getHash());
+            return tx;
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+            if (spendableOutputs != null)
+                spendableOutputs.markAllDirty();
+        }
+    }
+
+    /**
+     * A pool, or all transactions, that also holds the {@link WalletHistory} records of its pool. Looking one up or
+     * removing it loads it, and so do the views, which load the whole history. Sizes count the records without
+     * loading them.
+     */
+    class HistoryMap extends ForwardingMap<Sha256Hash, Transaction> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final HashMap<Sha256Hash, Transaction> map = new HashMap<Sha256Hash, Transaction>();
+        // The pool of the records held, or null for all of them.
+        @Nullable private final Pool pool;
+
+        HistoryMap(@Nullable Pool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        protected Map<Sha256Hash, Transaction> delegate() {
+            return map;
+        }
+
+        private void load(Object key) {
+            if (history.contains(key, pool))
+                history.load((Sha256Hash) key);
+        }
+
+        /** Returns the transactions that are loaded, without loading any records. */
+        Collection<Transaction> loadedValues() {
+            return map.values();
+        }
+
+        @Override
+        public Transaction get(Object key) {
+            load(key);
+            return map.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map.containsKey(key) || history.contains(key, pool);
+        }
+
+        @Override
+        public Transaction put(Sha256Hash key, Transaction value) {
+            load(key);
+            return map.put(key, value);
+        }
+
+        @Override
+        public void putAll(Map<? extends Sha256Hash, ? extends Transaction> m) {
+            standardPutAll(m);
+        }
+
+        @Override
+        public Transaction remove(Object key) {
+            load(key);
+            return map.remove(key);
+        }
+
+        @Override
+        public int size() {
+            return map.size() + history.size(pool);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+            history.clear(pool);
+        }
+
+        @Override
+        public Collection<Transaction> values() {
+            history.loadAll();
+            return map.values();
+        }
+
+        @Override
+        public Set<Sha256Hash> keySet() {
+            history.loadAll();
+            return map.keySet();
+        }
+
+        @Override
+        public Set<Entry<Sha256Hash, Transaction>> entrySet() {
+            history.loadAll();
+            return map.entrySet();
+        }
+    }
+
+    private void rebuildKeyIndexes() {
+        keysByPubKey = new HashMap<ByteArrayKey, ECKey>(keychain.size() * 2);
+        keysByPubKeyHash = new HashMap<ByteArrayKey, ECKey>(keychain.size() * 2);
+        for (ECKey key : keychain)
+            indexKey(key);
+    }
+
+    private void indexKey(ECKey key) {
+        keysByPubKey.put(new ByteArrayKey(key.getPubKey()), key);
+        keysByPubKeyHash.put(new ByteArrayKey(key.getPubKeyHash()), key);
+    }
+
     /**
      * Returns a snapshot of the keychain. This view is not live.
      */
@@ -276,7 +489,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            keysByPubKey.remove(new ByteArrayKey(key.getPubKey()));
+            keysByPubKeyHash.remove(new ByteArrayKey(key.getPubKeyHash()));
+            spendableOutputs.markAllDirty();
+            snapshotNeeded = true;
+            return true;
         } finally {
             lock.unlock();
         }
@@ -294,38 +513,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
-    /** Saves the wallet first to the given temp file, then renames to the dest file. */
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. The wallet is only locked whilst
+     * a snapshot is taken, not whilst it is serialized and written.
+     */
     public void saveToFile(File temp, File destFile) throws IOException {
-        FileOutputStream stream = null;
-        lock.lock();
-        try {
-            stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
-            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
-            // to not write through to physical media for at least a few seconds, but this is the best we can do.
-            stream.flush();
-            stream.getFD().sync();
-            stream.close();
-            stream = null;
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                canonical.delete();
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
-            } else if (!temp.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + temp + " to " + destFile);
-            }
-        } finally {
-            lock.unlock();
-            if (stream != null) {
-                stream.close();
-            }
-            if (temp.delete()) {
-                log.warn("Deleted temp file after failed save.");
-            }
-        }
+        WalletFiles.writeAtomically(takeSnapshot().toProto(), temp, destFile);
     }
 
     /**
@@ -370,6 +563,25 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * <p>Sets how deep a transaction gets before new blocks stop causing confidence change events for it, with reason
+     * {@link TransactionConfidence.Listener.ChangeReason#DEPTH}. Deeper transactions still report their correct
+     * depth when asked, and a future from {@link TransactionConfidence#getDepthFuture(int)} keeps its transaction
+     * watched until the requested depth is reached. The default is the coinbase maturity depth of the network.</p>
+     *
+     * <p>Note that this property is not saved in the wallet file.</p>
+     */
+    public void setDepthEventLimit(int depth) {
+        depthTracker.setDefaultEventDepth(depth);
+    }
+
+    /**
+     * See {@link Wallet#setDepthEventLimit(int)} for an explanation of this property.
+     */
+    public int getDepthEventLimit() {
+        return depthTracker.getDefaultEventDepth();
+    }
+
     /**
      * Sets the {@link RiskAnalysis} implementation to use for deciding whether received pending transactions are risky
      * or not. If the analyzer says a transaction is risky, by default it will be dropped. You can customize this
@@ -409,9 +621,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * delayTime. <b>You should still save the wallet manually when your program is about to shut down as the JVM
      * will not wait for the background thread.</b></p>
      *
-     * <p>An event listener can be provided. If a delay >0 was specified, it will be called on a background thread
-     * with the wallet locked when an auto-save occurs. If delay is zero or you do something that always triggers
-     * an immediate save, like adding a key, the event listener will be invoked on the calling threads.</p>
+     * <p>An event listener can be provided. It will be called on a background thread when an auto-save occurs. The
+     * wallet is not locked then: it is only locked whilst a snapshot of it is taken. If you do something that always
+     * triggers an immediate save, like adding a key, the calling thread waits for that save once it released the
+     * wallet lock.</p>
      *
      * @param f The destination file to save to.
      * @param delayTime How many time units to wait until saving the wallet on a background thread.
@@ -439,19 +652,50 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             files.saveLater();
     }
 
-    /** If auto saving is enabled, do an immediate sync write to disk ignoring any delays. */
+    /**
+     * If auto saving is enabled, take a snapshot now and write it to disk on the auto-save thread straight away,
+     * ignoring any delays. If the lock is held the write is waited for by {@link #unlockAndWaitForSaves()}, so the
+     * wallet stays unlocked whilst the disk is busy.
+     */
     private void saveNow() {
         WalletFiles files = vFileManager;
-        if (files != null) {
-            try {
-                files.saveNow();  // This calls back into saveToFile().
-            } catch (IOException e) {
-                // Can't really do much at this point, just let the API user know.
-                log.error("Failed to save wallet to disk!", e);
-                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
-                if (handler != null)
-                    handler.uncaughtException(Thread.currentThread(), e);
-            }
+        if (files == null)
+            return;
+        Future<?> save = files.saveSoon();  // This calls back into takeSnapshot().
+        if (!lock.isHeldByCurrentThread()) {
+            waitForSave(save);
+            return;
+        }
+        // Holders that don't wait for saves leave them behind, drop those that finished.
+        for (Iterator<Future<?>> it = savesInFlight.iterator(); it.hasNext();) {
+            if (it.next().isDone())
+                it.remove();
+        }
+        savesInFlight.add(save);
+    }
+
+    /**
+     * Releases the lock. If this was the outermost hold, waits for the saves started by {@link #saveNow()} whilst it
+     * was held, so that they are on disk when the public method returns, as before saving was done off the lock.
+     */
+    private void unlockAndWaitForSaves() {
+        List<Future<?>> saves = null;
+        if (lock.getHoldCount() == 1 && !savesInFlight.isEmpty()) {
+            saves = new ArrayList<Future<?>>(savesInFlight);
+            savesInFlight.clear();
+        }
+        lock.unlock();
+        if (saves != null) {
+            for (Future<?> save : saves)
+                waitForSave(save);
+        }
+    }
+
+    private static void waitForSave(Future<?> save) {
+        try {
+            Uninterruptibles.getUninterruptibly(save);
+        } catch (ExecutionException e) {
+            // Already logged and reported by the auto-save thread.
         }
     }
 
@@ -460,9 +704,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * {@link WalletProtobufSerializer}.
      */
     public void saveToFileStream(OutputStream f) throws IOException {
+        takeSnapshot().toProto().writeTo(f);
+    }
+
+    /**
+     * Takes a snapshot of the wallet for saving. Only transactions that changed since the last snapshot are converted
+     * whilst the wallet is locked, the rest of the work is done by {@link WalletSnapshot#toProto()} without it.
+     */
+    public WalletSnapshot takeSnapshot() {
         lock.lock();
         try {
-            new WalletProtobufSerializer().writeWallet(this, f);
+            return new WalletProtobufSerializer().takeSnapshot(this, protoCache);
         } finally {
             lock.unlock();
         }
@@ -474,27 +726,88 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a wallet deserialized from the given file.
+     * <p>Hands the changes made since the last call over to the given journal, see {@link WalletJournal}. Whatever
+     * can't be expressed as a record, like removed keys, encryption or a re-org, makes this hand over a complete
+     * snapshot instead. The journal writes them out later, without the wallet lock.</p>
+     *
+     * @param snapshot whether to hand over a complete snapshot regardless.
      */
-    public static Wallet loadFromFile(File f) throws UnreadableWalletException {
+    public void saveChangesTo(WalletJournal journal, boolean snapshot) {
+        lock.lock();
         try {
-            FileInputStream stream = null;
-            try {
-                stream = new FileInputStream(f);
-                return loadFromFileStream(stream);
-            } finally {
-                if (stream != null) stream.close();
+            List<WalletTransaction> changed = null;
+            if (!snapshot && !snapshotNeeded) {
+                changed = new ArrayList<WalletTransaction>(unsavedTransactions.size());
+                for (Transaction tx : unsavedTransactions) {
+                    Pool pool = getPool(tx);
+                    if (pool == null)
+                        break;  // Removed from the wallet, which a record can't say.
+                    changed.add(new WalletTransaction(pool, tx));
+                }
             }
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            if (changed == null || changed.size() < unsavedTransactions.size())
+                journal.addSnapshot(serializer.takeSnapshot(this, protoCache));
+            else
+                journal.addRecord(serializer.changesToProto(this, changed, unsavedKeys));
+            unsavedTransactions.clear();
+            unsavedKeys.clear();
+            snapshotNeeded = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the pool the given transaction is in, as the serializer names them, or null if it isn't in the wallet.
+    @Nullable
+    private Pool getPool(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        if (transactions.get(hash) != tx)
+            return null;
+        if (unspent.containsKey(hash))
+            return Pool.UNSPENT;
+        if (spent.containsKey(hash))
+            return Pool.SPENT;
+        if (pending.containsKey(hash))
+            return Pool.PENDING;
+        if (dead.containsKey(hash))
+            return Pool.DEAD;
+        return null;
+    }
+
+    private void markUnsaved(Transaction tx) {
+        protoCache.invalidate(tx);
+        if (!snapshotNeeded)
+            unsavedTransactions.add(tx);
+    }
+
+    /**
+     * Returns a wallet deserialized from the given file, replaying its {@link WalletJournal} if it has one.
+     */
+    public static Wallet loadFromFile(File f) throws UnreadableWalletException {
+        Protos.Wallet walletProto;
+        try {
+            walletProto = WalletJournal.read(f);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not open file", e);
         }
+        Wallet wallet = new WalletProtobufSerializer().readWallet(walletProto);
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
+        }
+        return wallet;
     }
     
     public boolean isConsistent() {
         lock.lock();
         try {
             boolean success = true;
-            Set<Transaction> transactions = getTransactions(true);
+            // History records that were not loaded yet are left alone, as checking them would load them.
+            Set<Transaction> transactions = new HashSet<Transaction>();
+            transactions.addAll(unspent.values());
+            transactions.addAll(spent.loadedValues());
+            transactions.addAll(pending.values());
+            transactions.addAll(dead.loadedValues());
 
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
             for (Transaction tx : transactions) {
@@ -508,7 +821,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 success = false;
             }
 
-            int size2 = unspent.size() + spent.size() + pending.size() + dead.size();
+            int size2 = unspent.size() + spent.loadedValues().size() + pending.size() + dead.loadedValues().size();
             if (size1 != size2) {
                 log.error("Inconsistent wallet sizes: {} {}", size1, size2);
                 success = false;
@@ -521,7 +834,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
 
-            for (Transaction tx : spent.values()) {
+            for (Transaction tx : spent.loadedValues()) {
                 if (!tx.isConsistent(this, true)) {
                     success = false;
                     log.error("Inconsistent spent tx {}", tx.getHashAsString());
@@ -550,6 +863,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         in.defaultReadObject();
         createTransientState();
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        lock.lock();
+        try {
+            // The loader of the history can't be serialized, so there must be nothing left for it to load.
+            history.loadAll();
+            out.defaultWriteObject();
+        } finally {
+            lock.unlock();
+        }
+    }
     
     /**
      * Called by the {@link BlockChain} when we receive a new filtered block that contains a transactions previously
@@ -581,7 +905,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
             receive(tx, block, blockType, relativityOffset);
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
         if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
             // If some keys are considered to be bad, possibly move money assigned to them now.
@@ -638,7 +962,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // timestamp on the transaction and registers/runs event listeners.
             commitTx(tx);
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
         // maybeRotateKeys() will ignore pending transactions so we don't bother calling it here (see the comments
         // in that function for an explanation of why).
@@ -795,7 +1119,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             receive(tx, block, blockType, relativityOffset);
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
         if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
             // If some keys are considered to be bad, possibly move money assigned to them now.
@@ -870,6 +1194,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its work done/depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            // A side chain appearance changes nothing else about the tx, but must still be saved for a later re-org.
+            markUnsaved(tx);
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
@@ -883,7 +1209,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // Side chains don't affect confidence.
         if (bestChain) {
             // notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
         } else {
             maybeQueueOnWalletChanged();
         }
@@ -916,14 +1242,26 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         saveNow();
     }
 
+    private void markConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+        EnumSet<TransactionConfidence.Listener.ChangeReason> reasons = confidenceChanged.get(tx);
+        if (reasons == null)
+            confidenceChanged.put(tx, EnumSet.of(reason));
+        else
+            reasons.add(reason);
+    }
+
     private void informConfidenceListenersIfNotReorganizing() {
         if (insideReorg)
             return;
-        for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
+        for (Map.Entry<Transaction, EnumSet<TransactionConfidence.Listener.ChangeReason>> entry :
+                confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
-            tx.getConfidence().queueListeners(entry.getValue());
+            markUnsaved(tx);
+            for (TransactionConfidence.Listener.ChangeReason reason : entry.getValue())
+                tx.getConfidence().queueListeners(reason);
             queueOnTransactionConfidenceChanged(tx);
         }
+        queueConfidenceBatchListeners(confidenceChanged);
         confidenceChanged.clear();
     }
 
@@ -947,20 +1285,22 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
-                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                }
+            // Count the block. This buries all the BUILDING transactions at once, their confidences work out their
+            // depth and work done from the count when asked. Only shallow or watched ones get a DEPTH event.
+            depthTracker.blockAdded(block.getHeader());
+            for (TransactionConfidence confidence : depthTracker.takeDepthChanges()) {
+                Transaction tx = confidence.getTransaction();
+                if (transactions.get(tx.getHash()) == tx && !ignoreNextNewBlock.contains(tx.getHash()))
+                    markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
             }
+            // Transactions in this block were already given a depth of one in receive(), so they must not count it
+            // again.
+            for (Sha256Hash hash : ignoreNextNewBlock) {
+                Transaction tx = transactions.get(hash);
+                if (tx != null)
+                    tx.getConfidence().setDepthCurrent();
+            }
+            ignoreNextNewBlock.clear();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -1104,7 +1444,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void killCoinbase(Transaction coinbase) {
         log.warn("Coinbase killed by re-org: {}", coinbase.getHashAsString());
         coinbase.getConfidence().setOverridingTransaction(null);
-        confidenceChanged.put(coinbase, TransactionConfidence.Listener.ChangeReason.TYPE);
+        markConfidenceChanged(coinbase, TransactionConfidence.Listener.ChangeReason.TYPE);
         final Sha256Hash hash = coinbase.getHash();
         pending.remove(hash);
         unspent.remove(hash);
@@ -1128,7 +1468,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 maybeMovePool(connected, "kill");
             }
             tx.getConfidence().setOverridingTransaction(overridingTx);
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
         }
         log.warn("Now attempting to connect the inputs of the overriding transaction.");
         for (TransactionInput input : overridingTx.getInputs()) {
@@ -1151,6 +1491,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever outputs of tx were spent or released.
+        spendableOutputs.markDirty(tx.getHash());
+        markUnsaved(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -1193,6 +1536,88 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return ListenerRegistration.removeFromList(listener, eventListeners);
     }
 
+    /**
+     * Adds a listener that is told about the confidence changes of the transactions in this wallet in batches, such
+     * as one for all the transactions a new block buried, rather than once per transaction and reason. Runs the
+     * listener in the user thread.
+     */
+    public void addConfidenceBatchListener(TransactionConfidence.BatchListener listener) {
+        addConfidenceBatchListener(listener, Threading.USER_THREAD);
+    }
+
+    /**
+     * Adds a listener that is told about the confidence changes of the transactions in this wallet in batches. The
+     * listener is executed by the given executor.
+     */
+    public void addConfidenceBatchListener(TransactionConfidence.BatchListener listener, Executor executor) {
+        confidenceBatchListeners.add(new BatchListenerRegistration(checkNotNull(listener), executor));
+    }
+
+    /**
+     * Removes the given batch listener. Returns true if the listener was removed, false if that listener was never
+     * added.
+     */
+    public boolean removeConfidenceBatchListener(TransactionConfidence.BatchListener listener) {
+        return ListenerRegistration.removeFromList(listener, confidenceBatchListeners);
+    }
+
+    /**
+     * A batch listener with the changes it is waiting to be run for. Changes queued before the listener got to run
+     * are merged into the waiting batch.
+     */
+    private static class BatchListenerRegistration extends ListenerRegistration<TransactionConfidence.BatchListener> {
+        @GuardedBy("this")
+        private Map<Transaction, Set<TransactionConfidence.Listener.ChangeReason>> queued =
+                new LinkedHashMap<Transaction, Set<TransactionConfidence.Listener.ChangeReason>>();
+
+        BatchListenerRegistration(TransactionConfidence.BatchListener listener, Executor executor) {
+            super(listener, executor);
+        }
+
+        void queue(Map<Transaction, ? extends Set<TransactionConfidence.Listener.ChangeReason>> changes) {
+            synchronized (this) {
+                boolean waiting = !queued.isEmpty();
+                for (Map.Entry<Transaction, ? extends Set<TransactionConfidence.Listener.ChangeReason>> entry :
+                        changes.entrySet()) {
+                    Set<TransactionConfidence.Listener.ChangeReason> reasons = queued.get(entry.getKey());
+                    if (reasons == null)
+                        queued.put(entry.getKey(), EnumSet.copyOf(entry.getValue()));
+                    else
+                        reasons.addAll(entry.getValue());
+                }
+                if (waiting)
+                    return;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Map<Transaction, Set<TransactionConfidence.Listener.ChangeReason>> batch;
+                        synchronized (BatchListenerRegistration.this) {
+                            batch = queued;
+                            queued = new LinkedHashMap<Transaction, Set<TransactionConfidence.Listener.ChangeReason>>();
+                        }
+                        listener.onConfidenceChanged(Collections.unmodifiableMap(batch));
+                    }
+                });
+            } catch (RuntimeException e) {
+                // As in TransactionConfidence, a batch that no task will deliver mustn't block later ones.
+                synchronized (this) {
+                    queued = new LinkedHashMap<Transaction, Set<TransactionConfidence.Listener.ChangeReason>>();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void queueConfidenceBatchListeners(
+            Map<Transaction, ? extends Set<TransactionConfidence.Listener.ChangeReason>> changes) {
+        if (changes.isEmpty())
+            return;
+        for (ListenerRegistration<TransactionConfidence.BatchListener> registration : confidenceBatchListeners)
+            ((BatchListenerRegistration) registration).queue(changes);
+    }
+
     /**
      * Calls {@link Wallet#commitTx} if tx is not already in the pending pool
      *
@@ -1215,7 +1640,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // This also registers txConfidenceListener so wallet listeners get informed.
             log.info("->pending: {}", tx.getHashAsString());
             tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             addWalletTransaction(Pool.PENDING, tx);
 
             try {
@@ -1239,7 +1664,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             informConfidenceListenersIfNotReorganizing();
             saveNow();
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
         return true;
     }
@@ -1278,6 +1703,21 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    // Returns the unspent, spent and pending transactions without loading the history. The outputs of spent history
+    // were spent before the wallet was loaded, so Bloom filters can do without them.
+    private Set<Transaction> getLoadedTransactions() {
+        lock.lock();
+        try {
+            Set<Transaction> all = new HashSet<Transaction>();
+            all.addAll(unspent.values());
+            all.addAll(spent.loadedValues());
+            all.addAll(pending.values());
+            return all;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns a set of all WalletTransactions in the wallet.
      */
@@ -1295,6 +1735,30 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Returns a set of the WalletTransactions in the wallet that are loaded, leaving out the {@link WalletHistory}
+     * records that {@link #getWalletTransactions()} would have to load. Used by serializers, which save the records
+     * as they are.
+     */
+    public Iterable<WalletTransaction> getLoadedWalletTransactions() {
+        lock.lock();
+        try {
+            Set<WalletTransaction> all = new HashSet<WalletTransaction>();
+            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+            addWalletTransactionsToSet(all, Pool.SPENT, spent.loadedValues());
+            addWalletTransactionsToSet(all, Pool.DEAD, dead.loadedValues());
+            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+            return all;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the spent and dead transactions of this wallet that were not loaded yet. */
+    public WalletHistory getHistory() {
+        return history;
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txs,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -1322,6 +1786,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        markUnsaved(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -1343,7 +1808,31 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
-        tx.getConfidence().addEventListener(txConfidenceListener);
+        tx.getConfidence().addEventListener(txConfidenceListener, Threading.USER_THREAD, SEEN_PEERS_ONLY);
+        tx.getConfidence().setDepthTracker(depthTracker);
+    }
+
+    /**
+     * Adds a transaction loaded from the {@link WalletHistory}, whose depth is correct for the given position of the
+     * depth tracker. It is unchanged since it was saved, so it isn't marked as unsaved.
+     */
+    void addHistoryTransaction(Pool pool, Transaction tx, DepthTracker.Position mark) {
+        checkState(lock.isHeldByCurrentThread());
+        Sha256Hash hash = tx.getHash();
+        transactions.map.put(hash, tx);
+        if (pool == Pool.SPENT)
+            spent.map.put(hash, tx);
+        else
+            dead.map.put(hash, tx);
+        tx.getConfidence().addEventListener(txConfidenceListener, Threading.USER_THREAD, SEEN_PEERS_ONLY);
+        tx.getConfidence().setDepthTracker(depthTracker, mark);
+    }
+
+    /** Returns the transaction with the given hash if it is loaded, without loading it from the history. */
+    @Nullable
+    Transaction getLoadedTransaction(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        return transactions.map.get(hash);
     }
 
     /**
@@ -1417,6 +1906,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                snapshotNeeded = true;
+                protoCache.invalidateAll();
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1692,7 +2183,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             commitTx(request.tx);
             return request.tx;
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
     }
 
@@ -1842,8 +2333,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             //
             // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
             // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -1935,17 +2424,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
-            LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
-                // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
-            }
-            return candidates;
+            // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
+            return spendableOutputs.getCandidates(excludeImmatureCoinbases);
         } finally {
             lock.unlock();
         }
@@ -2014,9 +2494,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(new ByteArrayKey(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2026,14 +2505,20 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
                 }
                 keychain.add(key);
+                indexKey(key);
+                if (!snapshotNeeded)
+                    unsavedKeys.add(key);
                 added++;
             }
+            // Outputs already in the wallet may be ours now.
+            if (added > 0)
+                spendableOutputs.markAllDirty();
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             saveNow();
             return added;
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
     }
 
@@ -2095,6 +2580,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (watchedScripts.contains(script)) continue;
 
                 watchedScripts.add(script);
+                snapshotNeeded = true;
                 added++;
             }
 
@@ -2102,7 +2588,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             saveNow();
             return added;
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
     }
 
@@ -2115,20 +2601,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            return keysByPubKeyHash.get(new ByteArrayKey(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            return keysByPubKey.containsKey(new ByteArrayKey(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2158,10 +2641,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            return keysByPubKey.get(new ByteArrayKey(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2215,10 +2695,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (balanceType == BalanceType.AVAILABLE) {
                 return getBalance(coinSelector);
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                return spendableOutputs.getTotal();
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2235,6 +2712,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             checkNotNull(selector);
+            // The default selector takes everything it considers selectable, which is kept as a running total.
+            if (selector.getClass() == DefaultCoinSelector.class)
+                return spendableOutputs.getSelectableTotal();
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
             return selection.valueGathered;
@@ -2406,6 +2886,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkState(confidenceChanged.size() == 0);
             checkState(!insideReorg);
             insideReorg = true;
+            snapshotNeeded = true;
+            protoCache.invalidateAll();
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
@@ -2468,6 +2950,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
                 }
             }
+            // Outputs all over the wallet were released above, so don't try to track them one by one.
+            spendableOutputs.markAllDirty();
 
             // Put all the disconnected transactions back into the pending pool and re-connect them.
             for (Transaction tx : oldChainTxns) {
@@ -2476,7 +2960,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (tx.isCoinBase()) continue;
                 log.info("  ->pending {}", tx.getHash());
                 tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);  // Wipe height/depth/work data.
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
                 updateForSpends(tx, false);
             }
@@ -2531,7 +3015,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             informConfidenceListenersIfNotReorganizing();
             saveLater();
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
     }
 
@@ -2544,7 +3028,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
                 tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                depthTracker.watchIfShallow(tx.getConfidence());
             }
         }
     }
@@ -2732,13 +3217,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            rebuildKeyIndexes();
+            snapshotNeeded = true;
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
 
             saveNow();
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
     }
 
@@ -2773,12 +3260,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            rebuildKeyIndexes();
+            snapshotNeeded = true;
 
             // The wallet is now unencrypted.
             keyCrypter = null;
             saveNow();
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
     }
 
@@ -2899,6 +3388,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             checkState(this.keyCrypter == null);
             this.keyCrypter = keyCrypter;
+            snapshotNeeded = true;
         } finally {
             lock.unlock();
         }
@@ -2962,7 +3452,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     @Override
     public int getBloomFilterElementCount() {
         int size = getKeychainSize() * 2;
-        for (Transaction tx : getTransactions(false)) {
+        for (Transaction tx : getLoadedTransactions()) {
             for (TransactionOutput out : tx.getOutputs()) {
                 try {
                     if (out.isMine(this) && out.getScriptPubKey().isSentToRawPubKey())
@@ -3011,42 +3501,58 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     @Override
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+        List<byte[]> data = new ArrayList<byte[]>();
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
-            }
-
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
+            for (ECKey key : keychain)
+                addBloomFilterData(key, data);
+            for (Script script : watchedScripts)
+                addBloomFilterData(script, data);
         } finally {
             lock.unlock();
         }
-        for (Transaction tx : getTransactions(false)) {
-            for (int i = 0; i < tx.getOutputs().size(); i++) {
-                TransactionOutput out = tx.getOutputs().get(i);
-                try {
-                    if ((out.isMine(this) && out.getScriptPubKey().isSentToRawPubKey()) ||
-                            out.isWatched(this)) {
-                        TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                        filter.insert(outPoint.bitcoinSerialize());
-                    }
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
-                }
+        for (Transaction tx : getLoadedTransactions())
+            addBloomFilterOutPoints(tx, data);
+        for (byte[] element : data)
+            filter.insert(element);
+        return filter;
+    }
+
+    /** Adds the data a bloom filter must contain to match transactions involving the given key. */
+    static void addBloomFilterData(ECKey key, List<byte[]> data) {
+        data.add(key.getPubKey());
+        data.add(key.getPubKeyHash());
+    }
+
+    /** Adds the data a bloom filter must contain to match transactions involving the given watched script. */
+    static void addBloomFilterData(Script script, List<byte[]> data) {
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Only add long (at least 64 bit) data to the bloom filter.
+            // If any long constants become popular in scripts, we will need logic
+            // here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
+                data.add(chunk.data);
             }
         }
+    }
 
-        return filter;
+    /**
+     * Adds the serialized outpoints of the outputs of the given transaction that a bloom filter must contain so that
+     * transactions spending them are matched.
+     */
+    void addBloomFilterOutPoints(Transaction tx, List<byte[]> data) {
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            TransactionOutput out = tx.getOutputs().get(i);
+            try {
+                if ((out.isMine(this) && out.getScriptPubKey().isSentToRawPubKey()) ||
+                        out.isWatched(this)) {
+                    TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
+                    data.add(outPoint.bitcoinSerialize());
+                }
+            } catch (ScriptException e) {
+                throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
+            }
+        }
     }
 
     /** Returns the {@link CoinSelector} object which controls which outputs can be spent by this wallet. */
@@ -3175,7 +3681,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             extensions.put(id, extension);
             saveNow();
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
     }
 
@@ -3193,7 +3699,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             saveNow();
             return extension;
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
     }
 
@@ -3209,7 +3715,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             extensions.put(id, extension);
             saveNow();
         } finally {
-            lock.unlock();
+            unlockAndWaitForSaves();
         }
     }
 
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import com.google.litecoin.core.WalletTransaction.Pool;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.litecoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>The spent and dead transactions of a {@link Wallet} that were loaded as records, the bytes of their protocol
+ * buffers, and are only turned into {@link Transaction}s when something asks for them. Large wallets consist mostly of
+ * such history, which is rarely touched after it was loaded: the wallet works on its unspent and pending pools.
+ * See {@link com.google.litecoin.store.WalletProtobufSerializer#setLoadHistoryLazily(boolean)}.</p>
+ *
+ * <p>Looking up a transaction of the spent or dead pool, for instance with {@link Wallet#getTransaction(Sha256Hash)},
+ * loads it together with the transactions that spend its outputs, so that spent flags stay connected. Methods that
+ * return all transactions, and re-orgs, load the whole history. Records that were never loaded are saved as they are,
+ * with their depth brought up to date.</p>
+ *
+ * <p>The public methods take the wallet lock, the others must be called with it held.</p>
+ */
+public class WalletHistory implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger(WalletHistory.class);
+
+    /** Turns records back into transactions. */
+    public interface Loader {
+        /**
+         * Returns the transaction of the given record, with its confidence read but without connecting it to other
+         * transactions. The overriding transaction of a dead one is set by the history afterwards.
+         */
+        Transaction load(Protos.Transaction record);
+    }
+
+    private static class Record implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Pool pool;
+        final byte[] bytes;
+
+        Record(Pool pool, byte[] bytes) {
+            this.pool = pool;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Wallet wallet;
+    private final DepthTracker depthTracker;
+    private final Map<Sha256Hash, Record> records = new HashMap<Sha256Hash, Record>();
+    private int spentCount, deadCount;
+    // The block count that the depths of the records are correct for.
+    private volatile DepthTracker.Position mark;
+    private transient Loader loader;
+
+    WalletHistory(Wallet wallet, DepthTracker depthTracker) {
+        this.wallet = wallet;
+        this.depthTracker = depthTracker;
+    }
+
+    /** Sets what turns records back into transactions. Must be set before records are added. */
+    public void setLoader(Loader loader) {
+        wallet.lock.lock();
+        try {
+            this.loader = loader;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the record of a transaction of the spent or dead pool. All records must be added whilst the wallet is
+     * loaded, before it sees any blocks, as their depths are taken to be correct for the chain head then.
+     */
+    public void add(Pool pool, Sha256Hash hash, byte[] record) {
+        checkArgument(pool == Pool.SPENT || pool == Pool.DEAD, "Only spent and dead transactions can be history");
+        wallet.lock.lock();
+        try {
+            checkState(loader != null, "No loader set");
+            if (records.isEmpty())
+                mark = depthTracker.getPosition();
+            checkState(mark == depthTracker.getPosition(), "History records must be added before blocks are seen");
+            checkArgument(wallet.getLoadedTransaction(hash) == null && !records.containsKey(hash),
+                    "Wallet already contains %s", hash);
+            records.put(hash, new Record(pool, record));
+            if (pool == Pool.SPENT)
+                spentCount++;
+            else
+                deadCount++;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Returns the number of records that were not loaded yet. */
+    public int size() {
+        wallet.lock.lock();
+        try {
+            return records.size();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Returns the records that were not loaded yet, in no particular order. */
+    public List<byte[]> getRecords() {
+        wallet.lock.lock();
+        try {
+            List<byte[]> result = new ArrayList<byte[]>(records.size());
+            for (Record record : records.values())
+                result.add(record.bytes);
+            return result;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many blocks were added to the best chain since the records were added, which the depths of BUILDING
+     * records don't include yet.
+     */
+    public int getBlocksAdded() {
+        DepthTracker.Position mark = this.mark;
+        return mark == null ? 0 : depthTracker.getPosition().blocks - mark.blocks;
+    }
+
+    /** Returns the work done by the blocks added to the best chain since the records were added. */
+    public BigInteger getWorkAdded() {
+        DepthTracker.Position mark = this.mark;
+        return mark == null ? BigInteger.ZERO : depthTracker.getPosition().work.subtract(mark.work);
+    }
+
+    boolean contains(Object hash, @Nullable Pool pool) {
+        Record record = records.get(hash);
+        return record != null && (pool == null || record.pool == pool);
+    }
+
+    int size(@Nullable Pool pool) {
+        if (pool == null)
+            return records.size();
+        return pool == Pool.SPENT ? spentCount : pool == Pool.DEAD ? deadCount : 0;
+    }
+
+    void clear(@Nullable Pool pool) {
+        if (pool == null) {
+            records.clear();
+            spentCount = deadCount = 0;
+            return;
+        }
+        Iterator<Record> it = records.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().pool == pool)
+                it.remove();
+        }
+        if (pool == Pool.SPENT)
+            spentCount = 0;
+        else if (pool == Pool.DEAD)
+            deadCount = 0;
+    }
+
+    /** Loads all records. */
+    void loadAll() {
+        while (!records.isEmpty())
+            load(records.keySet().iterator().next());
+    }
+
+    /**
+     * Loads the record of the given transaction, if there is one, and the records of the transactions that spend its
+     * outputs, and so on. A loaded transaction always has the transactions spending it loaded too, so that its
+     * outputs know they are spent.
+     */
+    void load(Sha256Hash hash) {
+        if (!records.containsKey(hash))
+            return;
+        List<Protos.Transaction> protos = new ArrayList<Protos.Transaction>();
+        List<Pool> pools = new ArrayList<Pool>();
+        ArrayDeque<Sha256Hash> work = new ArrayDeque<Sha256Hash>();
+        work.add(hash);
+        while (!work.isEmpty()) {
+            Record record = take(work.poll());
+            if (record == null)
+                continue;
+            Protos.Transaction proto;
+            try {
+                proto = Protos.Transaction.parseFrom(record.bytes);
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("Corrupt wallet history record", e);
+            }
+            protos.add(proto);
+            pools.add(record.pool);
+            for (Protos.TransactionOutput output : proto.getTransactionOutputList()) {
+                if (!output.hasSpentByTransactionHash())
+                    continue;
+                Sha256Hash spendingHash = new Sha256Hash(output.getSpentByTransactionHash().toByteArray());
+                if (records.containsKey(spendingHash))
+                    work.add(spendingHash);
+            }
+        }
+
+        List<Transaction> txns = new ArrayList<Transaction>(protos.size());
+        for (int i = 0; i < protos.size(); i++) {
+            Transaction tx = loader.load(protos.get(i));
+            wallet.addHistoryTransaction(pools.get(i), tx, mark);
+            txns.add(tx);
+        }
+        // Connect the outputs to the inputs spending them, which are all loaded by now.
+        for (int i = 0; i < protos.size(); i++) {
+            Transaction tx = txns.get(i);
+            List<Protos.TransactionOutput> outputs = protos.get(i).getTransactionOutputList();
+            for (int j = 0; j < outputs.size(); j++) {
+                Protos.TransactionOutput output = outputs.get(j);
+                if (!output.hasSpentByTransactionHash())
+                    continue;
+                Sha256Hash spendingHash = new Sha256Hash(output.getSpentByTransactionHash().toByteArray());
+                Transaction spendingTx = wallet.getLoadedTransaction(spendingHash);
+                if (spendingTx == null) {
+                    log.warn("Could not connect {} to {}", tx.getHashAsString(), spendingHash);
+                    continue;
+                }
+                spendingTx.getInput(output.getSpentByTransactionIndex()).connect(tx.getOutput(j));
+            }
+        }
+        // Overriding transactions may be history themselves, which is fine to load now that this batch is complete.
+        for (int i = 0; i < protos.size(); i++) {
+            Protos.TransactionConfidence confidence = protos.get(i).getConfidence();
+            if (!confidence.hasOverridingTransaction())
+                continue;
+            Transaction overriding = wallet.transactions.get(
+                    new Sha256Hash(confidence.getOverridingTransaction().toByteArray()));
+            if (overriding != null)
+                txns.get(i).getConfidence().setOverridingTransaction(overriding);
+        }
+        log.debug("Loaded {} transactions from the wallet history, {} left", txns.size(), records.size());
+    }
+
+    @Nullable
+    private Record take(Sha256Hash hash) {
+        Record record = records.remove(hash);
+        if (record != null) {
+            if (record.pool == Pool.SPENT)
+                spentCount--;
+            else
+                deadCount--;
+        }
+        return record;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The Litecoin proof of work function, scrypt with N=1024, r=1, p=1 and a 32 byte output, where the block header
+ * is used as both the password and the salt.</p>
+ *
+ * <p>Unlike the generic {@link com.lambdaworks.crypto.SCrypt} implementation this works on 32 bit words throughout,
+ * unrolls BlockMix for r=1 and keeps the 128KiB scratchpad, the HMAC instance and all temporary buffers in a per
+ * thread state object, so hashing a header allocates little more than the HMAC key and the result. It is safe to call
+ * from any number of threads at once.</p>
+ */
+public class LitecoinScrypt {
+    /** The scrypt cost parameter used by Litecoin. */
+    public static final int N = 1024;
+    /** Size of the output in bytes. */
+    public static final int HASH_LENGTH = 32;
+    /** Size of a serialized block header, the only input length used by the proof of work. */
+    public static final int HEADER_LENGTH = 80;
+
+    // Words in one 128 byte BlockMix block when r=1.
+    private static final int BLOCK_WORDS = 32;
+
+    private static class State {
+        final Mac mac;
+        final int[] x = new int[BLOCK_WORDS];
+        final int[] v = new int[N * BLOCK_WORDS];
+        final int[] salsaIn = new int[16];
+        final byte[] b = new byte[BLOCK_WORDS * 4];
+        final byte[] u = new byte[HASH_LENGTH];
+        final byte[] counter = new byte[4];
+
+        State() {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
+        }
+    }
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private LitecoinScrypt() {}
+
+    /** Returns scrypt(input, input, 1024, 1, 1, 32) as a new array. */
+    public static byte[] hash(byte[] input) {
+        return hash(input, 0, input.length);
+    }
+
+    /** Returns scrypt(range, range, 1024, 1, 1, 32) as a new array. */
+    public static byte[] hash(byte[] input, int offset, int length) {
+        byte[] out = new byte[HASH_LENGTH];
+        hash(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates scrypt(range, range, 1024, 1, 1, 32) and writes the 32 byte result into <tt>out</tt> at
+     * <tt>outOffset</tt>.
+     */
+    public static void hash(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        checkArgument(out.length - outOffset >= HASH_LENGTH, "Output buffer too small");
+        State s = state.get();
+        try {
+            s.mac.init(new SecretKeySpec(input, offset, length, "HmacSHA256"));
+            // B = PBKDF2-HMAC-SHA256(P, S, 1, 128) where P = S = input.
+            for (int i = 0; i < 4; i++) {
+                s.mac.update(input, offset, length);
+                setCounter(s.counter, i + 1);
+                s.mac.update(s.counter);
+                s.mac.doFinal(s.u, 0);
+                System.arraycopy(s.u, 0, s.b, i * HASH_LENGTH, HASH_LENGTH);
+            }
+            for (int i = 0; i < BLOCK_WORDS; i++)
+                s.x[i] = readIntLE(s.b, i * 4);
+            romix(s);
+            for (int i = 0; i < BLOCK_WORDS; i++)
+                writeIntLE(s.x[i], s.b, i * 4);
+            // Result = PBKDF2-HMAC-SHA256(P, B, 1, 32).
+            s.mac.update(s.b);
+            setCounter(s.counter, 1);
+            s.mac.update(s.counter);
+            s.mac.doFinal(out, outOffset);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        } catch (ShortBufferException e) {
+            throw new RuntimeException(e);  // Checked above.
+        }
+    }
+
+    private static void romix(State s) {
+        final int[] x = s.x, v = s.v;
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(x, 0, v, i * BLOCK_WORDS, BLOCK_WORDS);
+            blockMix(x, s.salsaIn);
+        }
+        for (int i = 0; i < N; i++) {
+            int j = (x[16] & (N - 1)) * BLOCK_WORDS;
+            for (int k = 0; k < BLOCK_WORDS; k++)
+                x[k] ^= v[j + k];
+            blockMix(x, s.salsaIn);
+        }
+    }
+
+    // BlockMix with r=1: Y0 = Salsa(B1 ^ B0), Y1 = Salsa(Y0 ^ B1), output is Y0 || Y1.
+    private static void blockMix(int[] b, int[] tmp) {
+        for (int i = 0; i < 16; i++)
+            b[i] ^= b[16 + i];
+        salsa8(b, 0, tmp);
+        for (int i = 0; i < 16; i++)
+            b[16 + i] ^= b[i];
+        salsa8(b, 16, tmp);
+    }
+
+    private static void salsa8(int[] b, int off, int[] in) {
+        System.arraycopy(b, off, in, 0, 16);
+        int x0 = in[0], x1 = in[1], x2 = in[2], x3 = in[3], x4 = in[4], x5 = in[5], x6 = in[6], x7 = in[7];
+        int x8 = in[8], x9 = in[9], x10 = in[10], x11 = in[11], x12 = in[12], x13 = in[13], x14 = in[14], x15 = in[15];
+        for (int i = 0; i < 8; i += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);   x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);  x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);    x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);  x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);  x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);  x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);  x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);  x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);    x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);   x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);    x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);   x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);  x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);  x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7); x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[off] = x0 + in[0];       b[off + 1] = x1 + in[1];   b[off + 2] = x2 + in[2];   b[off + 3] = x3 + in[3];
+        b[off + 4] = x4 + in[4];   b[off + 5] = x5 + in[5];   b[off + 6] = x6 + in[6];   b[off + 7] = x7 + in[7];
+        b[off + 8] = x8 + in[8];   b[off + 9] = x9 + in[9];   b[off + 10] = x10 + in[10]; b[off + 11] = x11 + in[11];
+        b[off + 12] = x12 + in[12]; b[off + 13] = x13 + in[13]; b[off + 14] = x14 + in[14]; b[off + 15] = x15 + in[15];
+    }
+
+    private static void setCounter(byte[] counter, int i) {
+        counter[0] = (byte) (i >>> 24);
+        counter[1] = (byte) (i >>> 16);
+        counter[2] = (byte) (i >>> 8);
+        counter[3] = (byte) i;
+    }
+
+    private static int readIntLE(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static void writeIntLE(int v, byte[] b, int off) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.script;
+
+import com.google.litecoin.core.ECKey;
+import com.google.litecoin.core.Sha256Digests;
+import com.google.litecoin.core.Sha256Hash;
+import com.google.litecoin.core.Utils;
+import com.google.litecoin.crypto.TransactionSignature;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers signatures that passed {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, keyed by the
+ * signature hash, public key and encoded signature together. A transaction checked when it's relayed to us is
+ * checked again when the block containing it is connected, and again if a re-org connects it once more. With the
+ * cache only the first of those pays for the elliptic curve maths.</p>
+ *
+ * <p>Only valid signatures are stored: invalid ones are cheap for anyone to make, so caching them would just let
+ * peers flush the useful entries. The cache is bounded and safe to use from several threads. Scripts consult the
+ * instance returned by {@link #getDefault()}, which can be replaced, for instance with one of size zero to turn
+ * caching off.</p>
+ */
+public class SignatureCache {
+    /** The number of signatures kept by the default instance, enough for a few full blocks. */
+    public static final int DEFAULT_MAX_SIZE = 50000;
+
+    private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_SIZE);
+
+    // Only the presence of a key matters.
+    private final Cache<Sha256Hash, Boolean> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SignatureCache(int maxSize) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /** Returns the cache used by script execution. */
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by script execution. */
+    public static void setDefault(SignatureCache cache) {
+        defaultCache = checkNotNull(cache);
+    }
+
+    /**
+     * Returns whether the given signature is valid for the hash and public key, checking it with
+     * {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} only if it isn't known to be valid already.
+     *
+     * @param sigHash the hash the signature signs, as calculated by
+     *        {@link com.google.litecoin.core.Transaction#hashForSignature(int, byte[], byte)}.
+     * @param sigBytes the signature as found in the script, which sig was decoded from.
+     */
+    public boolean verify(Sha256Hash sigHash, byte[] sigBytes, TransactionSignature sig, byte[] pubKey) {
+        if (ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(sigHash.getBytes(), sig, pubKey);
+        Sha256Hash key = key(sigHash, sigBytes, pubKey);
+        if (cache.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        if (!ECKey.verify(sigHash.getBytes(), sig, pubKey))
+            return false;
+        cache.put(key, Boolean.TRUE);
+        return true;
+    }
+
+    private static Sha256Hash key(Sha256Hash sigHash, byte[] sigBytes, byte[] pubKey) {
+        MessageDigest digest = Sha256Digests.threadLocalDigest();
+        digest.update(sigHash.getBytes());
+        // Both lengths are written in full, so no two different pairs of public key and signature hash the same bytes.
+        byte[] lengths = new byte[8];
+        Utils.uint32ToByteArrayLE(pubKey.length, lengths, 0);
+        Utils.uint32ToByteArrayLE(sigBytes.length, lengths, 4);
+        digest.update(lengths);
+        digest.update(pubKey);
+        digest.update(sigBytes);
+        return new Sha256Hash(digest.digest());
+    }
+
+    /** Returns how many signatures were found in the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many signatures had to be checked because they weren't in the cache. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the fraction of lookups that were found in the cache, or zero if there were none. */
+    public double getHitRate() {
+        long hits = this.hits.get(), total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Returns the approximate number of signatures held. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Forgets all signatures and resets the counters. */
+    public void clear() {
+        cache.invalidateAll();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SignatureCache: %d entries, %d hits, %d misses, %.1f%% hit rate", size(), getHits(),
+                getMisses(), getHitRate() * 100);
+    }
+}
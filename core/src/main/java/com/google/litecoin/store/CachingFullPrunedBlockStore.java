@@ -0,0 +1,421 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.store;
+
+import com.google.litecoin.core.Sha256Hash;
+import com.google.litecoin.core.StoredBlock;
+import com.google.litecoin.core.StoredTransactionOutput;
+import com.google.litecoin.core.StoredUndoableBlock;
+import com.google.litecoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps recently used unspent outputs in memory in front of another, usually
+ * disk backed, store. Everything except the unspent output set is passed straight through.</p>
+ *
+ * <p>Most outputs are spent soon after they are created. Between {@link #beginDatabaseBatchWrite()} and
+ * {@link #commitDatabaseBatchWrite()} changes to the output set are only made in memory, and an output that is
+ * created and then spent before it is written out never reaches the backing store. Changes are written to the
+ * backing store when the batch is committed, or earlier if the cache needs to make room, in which case they are still
+ * covered by the batch of the backing store. Outside of a batch changes are written through immediately.</p>
+ *
+ * <p>The cache is bounded by an estimate of the memory its entries use, and evicts the least recently used entries
+ * first. It also remembers outputs that the backing store doesn't have, so repeated lookups of missing outputs are
+ * cheap.</p>
+ *
+ * <p>This class is thread safe, but it assumes that, as in {@link com.google.litecoin.core.FullPrunedBlockChain},
+ * only one thread writes at a time: changes made during a batch are visible to other threads before the batch is
+ * committed.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory budget of the cache, in bytes. */
+    public static final long DEFAULT_CACHE_BYTES = 64 * 1024 * 1024;
+
+    // Rough size of an entry excluding the script: map entry, out point, entry and output objects, hash and value.
+    static final int ENTRY_OVERHEAD_BYTES = 250;
+
+    private final ReentrantLock lock = Threading.lock("cachingfullprunedblockstore");
+    private final FullPrunedBlockStore store;
+    private final long maxCacheBytes;
+
+    // The cached part of the output set, least recently used first.
+    @GuardedBy("lock") private final LinkedHashMap<StoredTransactionOutPoint, Entry> cache =
+            new LinkedHashMap<StoredTransactionOutPoint, Entry>(1024, 0.75f, true);
+    @GuardedBy("lock") private long cacheBytes;
+    // Out points changed since the batch write began, so they can be written out on commit or forgotten on abort.
+    @GuardedBy("lock") private final Set<StoredTransactionOutPoint> changedInBatch =
+            new LinkedHashSet<StoredTransactionOutPoint>();
+    @GuardedBy("lock") private boolean inBatch;
+
+    @GuardedBy("lock") private long hits, misses, cancelled, evictions, writes;
+
+    private static class Entry {
+        // The output as far as users of this store are concerned, or null if there is no such unspent output.
+        StoredTransactionOutput current;
+        // The output as the backing store has it, or null if it has none. When this differs from current the entry
+        // is dirty.
+        StoredTransactionOutput stored;
+
+        Entry(StoredTransactionOutput stored) {
+            this.current = stored;
+            this.stored = stored;
+        }
+
+        boolean isDirty() {
+            return current != stored;
+        }
+
+        int size() {
+            StoredTransactionOutput out = current != null ? current : stored;
+            return ENTRY_OVERHEAD_BYTES + (out == null ? 0 : out.getScriptBytes().length);
+        }
+    }
+
+    /**
+     * Creates a cache in front of the given store with a memory budget of {@link #DEFAULT_CACHE_BYTES}.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Creates a cache in front of the given store that uses roughly up to <tt>maxCacheBytes</tt> of memory.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes) {
+        checkArgument(maxCacheBytes > 0);
+        this.store = checkNotNull(store);
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /** Returns the store this cache is in front of. */
+    public FullPrunedBlockStore getBackingStore() {
+        return store;
+    }
+
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        lock.lock();
+        try {
+            StoredTransactionOutput out = lookup(new StoredTransactionOutPoint(hash, index)).current;
+            evict();
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        lock.lock();
+        try {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            Entry entry = lookup(outPoint);
+            // Like the other stores, adding an output that is already there leaves it alone.
+            if (entry.current != null) {
+                evict();
+                return;
+            }
+            cacheBytes -= entry.size();
+            entry.current = out;
+            cacheBytes += entry.size();
+            changed(outPoint, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        lock.lock();
+        try {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            Entry entry = lookup(outPoint);
+            if (entry.current == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+            if (entry.stored == null)
+                cancelled++;  // Created and spent without ever being written out.
+            cacheBytes -= entry.size();
+            entry.current = null;
+            cacheBytes += entry.size();
+            changed(outPoint, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        lock.lock();
+        try {
+            // See if the cache alone can answer.
+            boolean allCached = true;
+            for (int i = 0; i < numOutputs; i++) {
+                Entry entry = cache.get(new StoredTransactionOutPoint(hash, i));
+                if (entry == null)
+                    allCached = false;
+                else if (entry.current != null)
+                    return true;
+            }
+            if (allCached)
+                return false;
+            // Otherwise the backing store must be asked, after bringing it up to date for this transaction.
+            for (int i = 0; i < numOutputs; i++) {
+                Entry entry = cache.get(new StoredTransactionOutPoint(hash, i));
+                if (entry != null)
+                    writeOut(entry);
+            }
+            return store.hasUnspentOutputs(hash, numOutputs);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the entry for the given out point, loading it from the backing store if needed. The caller must call
+    // evict() once it's done with the entry, so an entry about to be changed is never dropped first.
+    @GuardedBy("lock")
+    private Entry lookup(StoredTransactionOutPoint outPoint) throws BlockStoreException {
+        Entry entry = cache.get(outPoint);
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        entry = new Entry(store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        cache.put(outPoint, entry);
+        cacheBytes += entry.size();
+        return entry;
+    }
+
+    @GuardedBy("lock")
+    private void changed(StoredTransactionOutPoint outPoint, Entry entry) throws BlockStoreException {
+        if (inBatch)
+            changedInBatch.add(outPoint);
+        else
+            writeOut(entry);
+        evict();
+    }
+
+    // Brings the backing store up to date with the given entry.
+    @GuardedBy("lock")
+    private void writeOut(Entry entry) throws BlockStoreException {
+        if (!entry.isDirty())
+            return;
+        if (entry.stored != null)
+            store.removeUnspentTransactionOutput(entry.stored);
+        if (entry.current != null)
+            store.addUnspentTransactionOutput(entry.current);
+        // The size of a spent entry depends on whether the backing store still has the output, so account for it.
+        cacheBytes -= entry.size();
+        entry.stored = entry.current;
+        cacheBytes += entry.size();
+        writes++;
+    }
+
+    // Drops least recently used entries until the cache fits its budget, writing out any changes they hold.
+    @GuardedBy("lock")
+    private void evict() throws BlockStoreException {
+        if (cacheBytes <= maxCacheBytes)
+            return;
+        Iterator<Map.Entry<StoredTransactionOutPoint, Entry>> it = cache.entrySet().iterator();
+        while (cacheBytes > maxCacheBytes && it.hasNext()) {
+            Map.Entry<StoredTransactionOutPoint, Entry> eldest = it.next();
+            writeOut(eldest.getValue());
+            it.remove();
+            cacheBytes -= eldest.getValue().size();
+            evictions++;
+        }
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            store.beginDatabaseBatchWrite();
+            inBatch = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            int written = 0;
+            for (StoredTransactionOutPoint outPoint : changedInBatch) {
+                Entry entry = cache.get(outPoint);
+                if (entry != null && entry.isDirty()) {
+                    writeOut(entry);
+                    written++;
+                }
+            }
+            if (log.isDebugEnabled())
+                log.debug("Writing {} of {} changed outputs, cache holds {} outputs in {} bytes",
+                        new Object[] { written, changedInBatch.size(), cache.size(), cacheBytes });
+            changedInBatch.clear();
+            inBatch = false;
+            store.commitDatabaseBatchWrite();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            // Anything changed in the batch may no longer match the backing store once it rolls back, so forget it.
+            for (StoredTransactionOutPoint outPoint : changedInBatch) {
+                Entry entry = cache.remove(outPoint);
+                if (entry != null)
+                    cacheBytes -= entry.size();
+            }
+            changedInBatch.clear();
+            inBatch = false;
+            store.abortDatabaseBatchWrite();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many output lookups were answered from the cache. */
+    public long getHitCount() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many output lookups had to go to the backing store. */
+    public long getMissCount() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many outputs were created and spent without ever being written to the backing store. */
+    public long getCancelledCount() {
+        lock.lock();
+        try {
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many entries were dropped to keep the cache within its memory budget. */
+    public long getEvictionCount() {
+        lock.lock();
+        try {
+            return evictions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many changes to the output set were written to the backing store. */
+    public long getWriteCount() {
+        lock.lock();
+        try {
+            return writes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of out points the cache currently knows about, spent or not. */
+    public int getCachedOutputCount() {
+        lock.lock();
+        try {
+            return cache.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the estimated memory used by the cache, in bytes. */
+    public long getCacheBytes() {
+        lock.lock();
+        try {
+            return cacheBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("CachingFullPrunedBlockStore: %d outputs in %d bytes, %d hits, %d misses, " +
+                    "%d cancelled, %d evictions, %d writes", cache.size(), cacheBytes, hits, misses, cancelled,
+                    evictions, writes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Everything below is passed straight through.
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public void close() throws BlockStoreException {
+        store.close();
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return store.getVerifiedChainHead();
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setVerifiedChainHead(chainHead);
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.store;
+
+import com.google.litecoin.core.Sha256Hash;
+import com.google.litecoin.core.StoredTransactionOutput;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A map from out point to unspent output that keeps everything in a handful of primitive arrays instead of a few
+ * objects per output. Each output takes roughly 70 bytes plus its script, where a {@link HashMap} of
+ * {@link StoredTransactionOutPoint} to {@link StoredTransactionOutput} needs several hundred, and the garbage
+ * collector has almost nothing to trace.</p>
+ *
+ * <p>Outputs are stored in numbered entries: the transaction hash as four longs, the index, value and height as
+ * primitives and the script in a shared byte array. An open addressing table with linear probing maps out points to
+ * entry numbers. Removed entries are reused, and the script array is compacted once it is mostly garbage.</p>
+ *
+ * <p>Values returned by {@link #get(Object)} are new objects each time. Output values must fit in a long, which all
+ * valid ones do. This class is not thread-safe.</p>
+ */
+class CompactOutputMap extends AbstractMap<StoredTransactionOutPoint, StoredTransactionOutput> {
+    private static final int INITIAL_ENTRIES = 1024;
+
+    // Entry fields, indexed by entry number.
+    private long[] hashes = new long[INITIAL_ENTRIES * 4];
+    private int[] indexes = new int[INITIAL_ENTRIES];
+    private long[] values = new long[INITIAL_ENTRIES];
+    private int[] heights = new int[INITIAL_ENTRIES];
+    private int[] scriptOffsets = new int[INITIAL_ENTRIES];
+    private int[] scriptLengths = new int[INITIAL_ENTRIES];
+    // Entry numbers below this have been used at some point.
+    private int entryLimit;
+    // Entries that were removed and can be reused.
+    private int[] freeEntries = new int[16];
+    private int freeCount;
+
+    private byte[] scripts = new byte[INITIAL_ENTRIES * 32];
+    private int scriptsLength;
+    private int liveScriptBytes;
+
+    // Entry number plus one for each slot, zero if the slot is empty. Kept at most half full.
+    private int[] table = new int[INITIAL_ENTRIES * 2];
+    private int size;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof StoredTransactionOutPoint && findSlot((StoredTransactionOutPoint) key) >= 0;
+    }
+
+    @Override
+    public StoredTransactionOutput get(Object key) {
+        if (!(key instanceof StoredTransactionOutPoint))
+            return null;
+        int slot = findSlot((StoredTransactionOutPoint) key);
+        return slot < 0 ? null : toOutput(table[slot] - 1);
+    }
+
+    @Override
+    public StoredTransactionOutput put(StoredTransactionOutPoint key, StoredTransactionOutput value) {
+        checkArgument(key.getHash().equals(value.getHash()) && key.getIndex() == value.getIndex(),
+                "Key does not match output");
+        byte[] script = value.getScriptBytes();
+        int slot = findSlot(key);
+        StoredTransactionOutput old = null;
+        int entry;
+        if (slot >= 0) {
+            entry = table[slot] - 1;
+            old = toOutput(entry);
+            liveScriptBytes -= scriptLengths[entry];
+        } else {
+            if ((size + 1) * 2 > table.length)
+                resizeTable(table.length * 2);
+            entry = allocateEntry();
+            setKey(entry, key.getHash(), (int) key.getIndex());
+            slot = emptySlotFor(entry);
+            table[slot] = entry + 1;
+            size++;
+        }
+        values[entry] = value.getValue().longValue();
+        heights[entry] = value.getHeight();
+        scriptOffsets[entry] = appendScript(script);
+        scriptLengths[entry] = script.length;
+        liveScriptBytes += script.length;
+        return old;
+    }
+
+    @Override
+    public StoredTransactionOutput remove(Object key) {
+        if (!(key instanceof StoredTransactionOutPoint))
+            return null;
+        int slot = findSlot((StoredTransactionOutPoint) key);
+        if (slot < 0)
+            return null;
+        int entry = table[slot] - 1;
+        StoredTransactionOutput old = toOutput(entry);
+        deleteSlot(slot);
+        liveScriptBytes -= scriptLengths[entry];
+        freeEntry(entry);
+        size--;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(table, 0);
+        entryLimit = 0;
+        freeCount = 0;
+        scriptsLength = 0;
+        liveScriptBytes = 0;
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput>> entrySet() {
+        // Only used for debugging and bulk operations, so a copy is good enough.
+        Set<Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput>> entries =
+                new HashSet<Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput>>();
+        for (int slot = 0; slot < table.length; slot++) {
+            if (table[slot] == 0)
+                continue;
+            StoredTransactionOutput out = toOutput(table[slot] - 1);
+            entries.add(new SimpleImmutableEntry<StoredTransactionOutPoint, StoredTransactionOutput>(
+                    new StoredTransactionOutPoint(out), out));
+        }
+        return Collections.unmodifiableSet(entries);
+    }
+
+    // Hash table
+
+    private static int hash(Sha256Hash hash, int index) {
+        int h = (hash.hashCode() ^ index * 0x9E3779B9) * 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+
+    private int entryHash(int entry) {
+        // Sha256Hash.hashCode() uses the last four bytes, which are the low half of the last long.
+        int tag = (int) hashes[entry * 4 + 3];
+        int h = (tag ^ indexes[entry] * 0x9E3779B9) * 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+
+    private int findSlot(StoredTransactionOutPoint key) {
+        Sha256Hash hash = key.getHash();
+        int index = (int) key.getIndex();
+        int mask = table.length - 1;
+        byte[] bytes = hash.getBytes();
+        for (int slot = hash(hash, index) & mask; ; slot = (slot + 1) & mask) {
+            int value = table[slot];
+            if (value == 0)
+                return -1;
+            int entry = value - 1;
+            if (indexes[entry] == index && keyEquals(entry, bytes))
+                return slot;
+        }
+    }
+
+    private int emptySlotFor(int entry) {
+        int mask = table.length - 1;
+        int slot = entryHash(entry) & mask;
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    // Backward shift deletion, so lookups never need tombstones.
+    private void deleteSlot(int hole) {
+        int mask = table.length - 1;
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            if (table[next] == 0)
+                break;
+            int home = entryHash(table[next] - 1) & mask;
+            boolean canMove = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (canMove) {
+                table[hole] = table[next];
+                hole = next;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void resizeTable(int newLength) {
+        int[] old = table;
+        table = new int[newLength];
+        for (int value : old)
+            if (value != 0)
+                table[emptySlotFor(value - 1)] = value;
+    }
+
+    // Entries
+
+    private int allocateEntry() {
+        if (freeCount > 0)
+            return freeEntries[--freeCount];
+        if (entryLimit == indexes.length) {
+            int newLength = indexes.length * 2;
+            hashes = Arrays.copyOf(hashes, newLength * 4);
+            indexes = Arrays.copyOf(indexes, newLength);
+            values = Arrays.copyOf(values, newLength);
+            heights = Arrays.copyOf(heights, newLength);
+            scriptOffsets = Arrays.copyOf(scriptOffsets, newLength);
+            scriptLengths = Arrays.copyOf(scriptLengths, newLength);
+        }
+        return entryLimit++;
+    }
+
+    private void freeEntry(int entry) {
+        if (freeCount == freeEntries.length)
+            freeEntries = Arrays.copyOf(freeEntries, freeEntries.length * 2);
+        freeEntries[freeCount++] = entry;
+        scriptLengths[entry] = 0;
+    }
+
+    private void setKey(int entry, Sha256Hash hash, int index) {
+        byte[] bytes = hash.getBytes();
+        for (int i = 0; i < 4; i++)
+            hashes[entry * 4 + i] = readLong(bytes, i * 8);
+        indexes[entry] = index;
+    }
+
+    private boolean keyEquals(int entry, byte[] bytes) {
+        for (int i = 0; i < 4; i++)
+            if (hashes[entry * 4 + i] != readLong(bytes, i * 8))
+                return false;
+        return true;
+    }
+
+    private StoredTransactionOutput toOutput(int entry) {
+        byte[] hashBytes = new byte[32];
+        for (int i = 0; i < 4; i++)
+            writeLong(hashes[entry * 4 + i], hashBytes, i * 8);
+        byte[] script = Arrays.copyOfRange(scripts, scriptOffsets[entry], scriptOffsets[entry] + scriptLengths[entry]);
+        // The height is stored already encoded, so pass it through as is.
+        return new StoredTransactionOutput(new Sha256Hash(hashBytes), indexes[entry] & 0xFFFFFFFFL,
+                BigInteger.valueOf(values[entry]), heights[entry], true, script);
+    }
+
+    // Scripts
+
+    private int appendScript(byte[] script) {
+        if (scriptsLength + script.length > scripts.length) {
+            if (liveScriptBytes * 2 < scriptsLength)
+                compactScripts();
+            if (scriptsLength + script.length > scripts.length)
+                scripts = Arrays.copyOf(scripts, Math.max(scripts.length * 2, scriptsLength + script.length));
+        }
+        int offset = scriptsLength;
+        System.arraycopy(script, 0, scripts, offset, script.length);
+        scriptsLength += script.length;
+        return offset;
+    }
+
+    // Copies the scripts of the entries in the table to the start of a fresh array, dropping the rest.
+    private void compactScripts() {
+        byte[] compacted = new byte[Math.max(scripts.length, liveScriptBytes * 2)];
+        int length = 0;
+        for (int value : table) {
+            if (value == 0)
+                continue;
+            int entry = value - 1;
+            System.arraycopy(scripts, scriptOffsets[entry], compacted, length, scriptLengths[entry]);
+            scriptOffsets[entry] = length;
+            length += scriptLengths[entry];
+        }
+        scripts = compacted;
+        scriptsLength = length;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xFFL);
+        return result;
+    }
+
+    private static void writeLong(long value, byte[] bytes, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -26,8 +26,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -37,6 +36,12 @@ import java.util.List;
  * you may see the database files grow quite large (around 1.5G).
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
+ *
+ * Prepared statements are kept open and reused for the lifetime of each connection. Unless disabled with
+ * {@link #setBatchedOutputWrites(boolean)}, changes to the open outputs made between
+ * {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are held in memory and written with
+ * JDBC batch updates when the batch is committed. Outputs that are created and spent inside one batch never reach
+ * the database at all.
  */
 public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
@@ -48,6 +53,12 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
     private List<Connection> allConnections;
+    // Prepared statements of each connection, keyed by their SQL.
+    private ThreadLocal<Map<String, PreparedStatement>> statements;
+    private List<Map<String, PreparedStatement>> allStatements;
+    // Open output changes of the batch write in progress on each connection, or null outside of a batch write.
+    private ThreadLocal<OutputBatch> outputBatch;
+    private volatile boolean batchedOutputWrites = true;
     private String connectionURL;
     private int fullStoreDepth;
 
@@ -85,6 +96,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + "PRIMARY KEY (hash, index),"
         + ")";
 
+    static final String SELECT_OPEN_OUTPUT_SQL = "SELECT height, value, scriptBytes FROM openOutputs "
+        + "WHERE hash = ? AND index = ?";
+    static final String INSERT_OPEN_OUTPUT_SQL = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes) "
+        + "VALUES (?, ?, ?, ?, ?)";
+    static final String DELETE_OPEN_OUTPUT_SQL = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    static final String COUNT_OPEN_OUTPUTS_SQL = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
+    static final String SELECT_HEADER_SQL = "SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?";
+    static final String INSERT_HEADER_SQL = "INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+        + " VALUES(?, ?, ?, ?, ?)";
+    static final String INSERT_UNDOABLE_BLOCK_SQL = "INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+        + " VALUES(?, ?, ?, ?)";
+    static final String UPDATE_SETTING_SQL = "UPDATE settings SET value = ? WHERE name = ?";
+
     /**
      * Creates a new H2FullPrunedBlockStore
      * @param params A copy of the NetworkParameters used
@@ -101,6 +125,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        statements = new ThreadLocal<Map<String, PreparedStatement>>();
+        allStatements = new LinkedList<Map<String, PreparedStatement>>();
+        outputBatch = new ThreadLocal<OutputBatch>();
 
         try {
             Class.forName(driver);
@@ -150,13 +177,57 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             
             conn.set(DriverManager.getConnection(connectionURL));
             allConnections.add(conn.get());
+            statements.set(new HashMap<String, PreparedStatement>());
+            allStatements.add(statements.get());
             log.info("Made a new connection to database " + connectionURL);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
     
+    /**
+     * Returns the prepared statement for the given SQL on this thread's connection, preparing it the first time. The
+     * statement stays open, so callers must not close it.
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> cache = statements.get();
+        // closeStatements() may clear this thread's map from another thread.
+        synchronized (cache) {
+            PreparedStatement s = cache.get(sql);
+            if (s == null) {
+                s = conn.get().prepareStatement(sql);
+                cache.put(sql, s);
+            }
+            return s;
+        }
+    }
+
+    private synchronized void closeStatements() {
+        for (Map<String, PreparedStatement> cache : allStatements) {
+            synchronized (cache) {
+                for (PreparedStatement s : cache.values()) {
+                    try {
+                        s.close();
+                    } catch (SQLException ex) {
+                        log.warn("Failed to close PreparedStatement", ex);
+                    }
+                }
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * Sets whether changes to the open outputs made during a batch write are held in memory and written out with
+     * JDBC batch updates when the batch is committed (the default), or written to the database straight away. Only
+     * affects batch writes begun after the call.
+     */
+    public void setBatchedOutputWrites(boolean batchedOutputWrites) {
+        this.batchedOutputWrites = batchedOutputWrites;
+    }
+
     public synchronized void close() {
+        closeStatements();
         for (Connection conn : allConnections) {
             try {
                 conn.rollback();
@@ -169,6 +240,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public void resetStore() throws BlockStoreException {
         maybeConnect();
+        closeStatements();
+        outputBatch.remove();
         try {
             Statement s = conn.get().createStatement();
             s.executeUpdate("DROP TABLE settings");
@@ -346,9 +419,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+            PreparedStatement s = prepare(INSERT_HEADER_SQL);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -358,7 +429,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
@@ -415,9 +485,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                PreparedStatement s = prepare(INSERT_UNDOABLE_BLOCK_SQL);
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -428,7 +496,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -465,10 +532,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_HEADER_SQL);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -497,11 +562,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
     
@@ -582,12 +642,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING_SQL);
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -603,12 +661,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING_SQL);
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -631,70 +687,100 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputBatch batch = outputBatch.get();
+        if (batch != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput out = batch.inserts.get(outPoint);
+            if (out != null) {
+                // A row already in the database wins, as the insert will be ignored.
+                StoredTransactionOutput stored = batch.isNew(outPoint) ? null : selectOutput(hash, index);
+                if (stored == null)
+                    batch.knownNew.add(outPoint);
+                return stored != null ? stored : out;
+            }
+            if (batch.deletes.containsKey(outPoint))
+                return null;
+        }
+        return selectOutput(hash, index);
+    }
+
+    private StoredTransactionOutput selectOutput(Sha256Hash hash, long index) throws BlockStoreException {
         try {
-            s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                        "WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT_SQL);
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
+            try {
+                if (!results.next()) {
+                    return null;
+                }
+                // Parse it.
+                int height = results.getInt(1);
+                BigInteger value = new BigInteger(results.getBytes(2));
+                // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            } finally {
+                results.close();
             }
-            // Parse it.
-            int height = results.getInt(1);
-            BigInteger value = new BigInteger(results.getBytes(2));
-            // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
-            return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputBatch batch = outputBatch.get();
+        if (batch != null) {
+            // If the output was deleted earlier in the batch the delete stays, so the old row is gone before this is
+            // inserted. If it is already in the database, the insert is ignored when the batch is written.
+            batch.insert(out);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-                    "VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT_SQL);
+            setOutputInsertParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (e.getErrorCode() != 23505)
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
+    private static void setOutputInsertParameters(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, out.getValue().toByteArray());
+        s.setBytes(5, out.getScriptBytes());
+    }
+
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
+        OutputBatch batch = outputBatch.get();
+        if (batch != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            if (batch.inserts.containsKey(outPoint)) {
+                // Outputs created in this batch cancel out. But if the database already had the output, the insert
+                // would have been ignored and this must delete the row, as it does without batching.
+                boolean isNew = batch.isNew(outPoint) || selectOutput(out.getHash(), out.getIndex()) == null;
+                batch.removeInsert(out);
+                if (!isNew)
+                    batch.delete(out);
+                return;
+            }
+            // Anything else must be in the database, which is checked when the batch is written.
+            if (!batch.delete(out))
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT_SQL);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            int updateCount = s.getUpdateCount();
-            s.close();
+            int updateCount = s.executeUpdate();
             if (updateCount == 0)
                 throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
@@ -702,6 +788,56 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Writes the open output changes held in memory with one JDBC batch for the deletes and one for the inserts.
+    private void flushOutputBatch(OutputBatch batch) throws SQLException, BlockStoreException {
+        if (!batch.deletes.isEmpty()) {
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT_SQL);
+            for (StoredTransactionOutput out : batch.deletes.values()) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int)out.getIndex());
+                s.addBatch();
+            }
+            for (int updateCount : s.executeBatch()) {
+                if (updateCount == 0)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            }
+        }
+        if (!batch.inserts.isEmpty()) {
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT_SQL);
+            for (StoredTransactionOutput out : batch.inserts.values()) {
+                setOutputInsertParameters(s, out);
+                s.addBatch();
+            }
+            try {
+                s.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (!isDuplicateKey(e))
+                    throw e;
+                // An output that is already in the database is ignored, as in addUnspentTransactionOutput. Insert the
+                // outputs one at a time instead: the ones that made it in the first time are duplicates now.
+                s.clearBatch();
+                for (StoredTransactionOutput out : batch.inserts.values()) {
+                    try {
+                        setOutputInsertParameters(s, out);
+                        s.executeUpdate();
+                    } catch (SQLException e2) {
+                        if (e2.getErrorCode() != 23505)
+                            throw e2;
+                    }
+                }
+            }
+        }
+    }
+
+    // The error for a failed batch may be chained behind the BatchUpdateException itself.
+    private static boolean isDuplicateKey(SQLException e) {
+        for (; e != null; e = e.getNextException())
+            if (e.getErrorCode() == 23505)
+                return true;
+        return false;
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
@@ -709,11 +845,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        outputBatch.set(batchedOutputWrites ? new OutputBatch() : null);
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        OutputBatch batch = outputBatch.get();
+        outputBatch.remove();
         try {
+            if (batch != null)
+                flushOutputBatch(batch);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
@@ -723,6 +864,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        outputBatch.remove();
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
@@ -733,24 +875,87 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputBatch batch = outputBatch.get();
+        if (batch != null && batch.count(batch.insertCounts, hash) > 0)
+            return true;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            PreparedStatement s = prepare(COUNT_OPEN_OUTPUTS_SQL);
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            try {
+                if (!results.next()) {
+                    throw new BlockStoreException("Got no results from a COUNT(*) query");
+                }
+                int count = results.getInt(1);
+                // Outputs deleted in this batch are still in the database.
+                if (batch != null)
+                    count -= batch.count(batch.deleteCounts, hash);
+                return count > 0;
+            } finally {
+                results.close();
             }
-            int count = results.getInt(1);
-            return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+        }
+    }
+
+    /** Open output changes made during a batch write that haven't been written to the database yet. */
+    private static class OutputBatch {
+        // Outputs to insert. Unless they were deleted earlier in the batch the database may already have them, in
+        // which case the insert is ignored as it is without batching.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> inserts =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Inserts the database was found not to have already.
+        final Set<StoredTransactionOutPoint> knownNew = new HashSet<StoredTransactionOutPoint>();
+        // Outputs to delete, which are in the database. Deletes are written before inserts.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> deletes =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // How many outputs of each transaction are in the maps above, for hasUnspentOutputs.
+        final Map<Sha256Hash, Integer> insertCounts = new HashMap<Sha256Hash, Integer>();
+        final Map<Sha256Hash, Integer> deleteCounts = new HashMap<Sha256Hash, Integer>();
+
+        void insert(StoredTransactionOutput out) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            // Like the database, keep the first of two inserts.
+            if (inserts.containsKey(outPoint))
+                return;
+            inserts.put(outPoint, out);
+            adjust(insertCounts, out.getHash(), 1);
+        }
+
+        boolean removeInsert(StoredTransactionOutput out) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            if (inserts.remove(outPoint) == null)
+                return false;
+            knownNew.remove(outPoint);
+            adjust(insertCounts, out.getHash(), -1);
+            return true;
+        }
+
+        // Returns true if the staged insert for this out point can't clash with a row already in the database.
+        boolean isNew(StoredTransactionOutPoint outPoint) {
+            return deletes.containsKey(outPoint) || knownNew.contains(outPoint);
+        }
+
+        boolean delete(StoredTransactionOutput out) {
+            if (deletes.put(new StoredTransactionOutPoint(out), out) != null)
+                return false;  // Already deleted in this batch.
+            adjust(deleteCounts, out.getHash(), 1);
+            return true;
+        }
+
+        int count(Map<Sha256Hash, Integer> counts, Sha256Hash hash) {
+            Integer count = counts.get(hash);
+            return count == null ? 0 : count;
+        }
+
+        private static void adjust(Map<Sha256Hash, Integer> counts, Sha256Hash hash, int delta) {
+            Integer count = counts.get(hash);
+            int newCount = (count == null ? 0 : count) + delta;
+            if (newCount == 0)
+                counts.remove(hash);
+            else
+                counts.put(hash, newCount);
         }
     }
 }
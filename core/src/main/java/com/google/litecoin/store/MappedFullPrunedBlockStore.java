@@ -0,0 +1,1266 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.store;
+
+import com.google.litecoin.core.*;
+import com.google.litecoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps its data in plain files in a directory, without a database.</p>
+ *
+ * <p>Headers, undo blocks, chain head changes and changes to the unspent output set are appended to a log
+ * (<tt>blocks.log</tt>). Each batch write ends with a commit record, and a batch only counts once its commit record
+ * is on disk: when the store is opened, anything after the last intact commit record is cut off. Only the offsets of
+ * headers and undo blocks in the log are kept in memory.</p>
+ *
+ * <p>The unspent outputs live in a memory mapped open addressing hash table keyed by (hash, index)
+ * (<tt>outputs.idx</tt>), which points into an append only heap file holding the serialized outputs. The table is
+ * updated after each commit and is checkpointed from time to time by forcing it to disk and recording how much of
+ * the log it reflects, so after a crash only the output changes logged since the last checkpoint are replayed.</p>
+ *
+ * <p>Undo blocks more than <tt>fullStoreDepth</tt> blocks below the verified chain head are dropped. The space they,
+ * and output changes that are already checkpointed, take up in the log is reclaimed by rewriting the log once
+ * enough of it is garbage. Likewise the table and heap are rebuilt when the table fills up or too much of the heap
+ * holds spent outputs. The table is a single memory mapped buffer, which limits it to 2^24 slots
+ * and so to roughly eleven million unspent outputs.</p>
+ *
+ * <p>Batch writes are visible only to the thread that began them until they are committed.</p>
+ */
+public class MappedFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedFullPrunedBlockStore.class);
+
+    static final String LOG_FILE_NAME = "blocks.log";
+    static final String TABLE_FILE_NAME = "outputs.idx";
+    static final String HEAP_FILE_PREFIX = "outputs.";
+    static final String HEAP_FILE_SUFFIX = ".dat";
+
+    // Log file format:
+    //   4 header bytes = "FPBL"
+    //   4 bytes generation, which goes up by one every time the log is rewritten
+    //   8 bytes padding
+    //
+    // Followed by records:
+    //   4 bytes payload length
+    //   1 byte record type
+    //   payload
+    //   4 bytes CRC32 of the type and payload
+    static final String LOG_MAGIC = "FPBL";
+    static final int LOG_HEADER_BYTES = 16;
+    static final int RECORD_OVERHEAD_BYTES = 4 + 1 + 4;
+
+    static final byte RECORD_HEADER = 1;           // hash, wasUndoable flag, compact stored block
+    static final byte RECORD_UNDO_BLOCK = 2;       // hash, height, kind, undo data
+    static final byte RECORD_CHAIN_HEAD = 3;       // hash
+    static final byte RECORD_VERIFIED_HEAD = 4;    // hash
+    static final byte RECORD_OUTPUT_ADDED = 5;     // serialized StoredTransactionOutput
+    static final byte RECORD_OUTPUT_REMOVED = 6;   // hash, index
+    static final byte RECORD_COMMIT = 7;           // empty
+
+    static final int HEADER_PAYLOAD_BYTES = 32 + 1 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    // Table file format:
+    //   4 header bytes = "FPBO"
+    //   4 bytes capacity in slots, a power of two
+    //   4 bytes, 1 if the table was closed cleanly, otherwise 0
+    //   4 bytes number of unspent outputs
+    //   4 bytes number of slots in use, including deleted ones
+    //   4 bytes number of the heap file the table points into
+    //   4 bytes generation of the log the checkpoint refers to
+    //   4 bytes padding
+    //   8 bytes checkpoint: log offset up to which all output changes are in the table
+    //   8 bytes number of heap bytes used by unspent outputs
+    //   Padding up to 64 bytes.
+    //
+    // Followed by slots of 64 bytes:
+    //   1 byte state: empty, in use or deleted
+    //   3 bytes padding
+    //   4 bytes output index
+    //   32 bytes transaction hash
+    //   8 bytes offset of the output in the heap
+    //   4 bytes length of the output in the heap
+    //   Padding up to 64 bytes, so slots never straddle a disk sector.
+    //
+    // Collisions are resolved by linear probing. Deleted slots are only reused by inserts and are cleared out when the
+    // table is rebuilt.
+    static final String TABLE_MAGIC = "FPBO";
+    static final int TABLE_HEADER_BYTES = 64;
+    static final int SLOT_BYTES = 64;
+    static final byte SLOT_EMPTY = 0, SLOT_USED = 1, SLOT_DELETED = 2;
+    static final int INITIAL_CAPACITY = 1 << 16;
+    // The table is mapped as a single buffer addressed by int offsets, so it must stay under 2GB.
+    static final int MAX_CAPACITY = 1 << 24;
+
+    // Checkpoint the table after this many commits.
+    private static final int COMMITS_PER_CHECKPOINT = 200;
+    // Rewrite the log once it is at least this big and mostly garbage.
+    private static final long MIN_LOG_COMPACTION_BYTES = 64 * 1024 * 1024;
+    // Rebuild the heap once it is at least this big and mostly spent outputs.
+    private static final long MIN_HEAP_COMPACTION_BYTES = 64 * 1024 * 1024;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final ReentrantLock lock = Threading.lock("mappedfullprunedblockstore");
+
+    // The block log.
+    @GuardedBy("lock") private RandomAccessFile logFile;
+    @GuardedBy("lock") private FileChannel logChannel;
+    @GuardedBy("lock") private int logGeneration;
+    // End of the last committed batch, where the next one is written.
+    @GuardedBy("lock") private long logLength;
+    // Bytes of the log that are still needed: headers, undo blocks within fullStoreDepth and the chain heads.
+    @GuardedBy("lock") private long liveLogBytes;
+    // Offsets of the latest header record for each block.
+    @GuardedBy("lock") private final Map<Sha256Hash, Long> headerOffsets = new HashMap<Sha256Hash, Long>();
+    @GuardedBy("lock") private final Map<Sha256Hash, UndoLocation> undoBlocks = new HashMap<Sha256Hash, UndoLocation>();
+    @GuardedBy("lock") private StoredBlock chainHead, verifiedChainHead;
+
+    // The output table and heap.
+    @GuardedBy("lock") private RandomAccessFile tableFile;
+    @GuardedBy("lock") private MappedByteBuffer table;
+    @GuardedBy("lock") private int capacity;
+    @GuardedBy("lock") private int liveOutputs, usedSlots;
+    @GuardedBy("lock") private int heapNumber;
+    @GuardedBy("lock") private RandomAccessFile heapFile;
+    @GuardedBy("lock") private FileChannel heapChannel;
+    @GuardedBy("lock") private long heapLength, heapLiveBytes;
+    @GuardedBy("lock") private long checkpointOffset;
+    @GuardedBy("lock") private int commitsSinceCheckpoint;
+
+    // The batch write in progress, if any, and the thread that began it.
+    @GuardedBy("lock") private Batch batch;
+    @GuardedBy("lock") private Thread batchThread;
+
+    private static class UndoLocation {
+        final long offset;
+        final int payloadLength;
+        final int height;
+
+        UndoLocation(long offset, int payloadLength, int height) {
+            this.offset = offset;
+            this.payloadLength = payloadLength;
+            this.height = height;
+        }
+    }
+
+    private static class StagedHeader {
+        final StoredBlock block;
+        final boolean wasUndoable;
+
+        StagedHeader(StoredBlock block, boolean wasUndoable) {
+            this.block = block;
+            this.wasUndoable = wasUndoable;
+        }
+    }
+
+    // Changes made during a batch write, kept in memory until it is committed.
+    private static class Batch {
+        final Map<Sha256Hash, StagedHeader> headers = new LinkedHashMap<Sha256Hash, StagedHeader>();
+        final Map<Sha256Hash, StoredUndoableBlock> undoBlocks = new LinkedHashMap<Sha256Hash, StoredUndoableBlock>();
+        final Map<Sha256Hash, Integer> undoHeights = new HashMap<Sha256Hash, Integer>();
+        // The final state of each changed output, null if it was removed.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> outputs =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        StoredBlock chainHead, verifiedChainHead;
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     *
+     * @param params The network parameters of this block store - used to get the genesis block
+     * @param directory The directory holding the store's files
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the store fails to open for any reason
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        lock.lock();
+        try {
+            if (!directory.exists() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            File logPath = new File(directory, LOG_FILE_NAME);
+            boolean exists = logPath.exists();
+            openLog(logPath, exists);
+            openTable(exists);
+            if (exists) {
+                replayLog();
+            } else {
+                createNewStore();
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Setup
+
+    @GuardedBy("lock")
+    private void openLog(File path, boolean exists) throws IOException, BlockStoreException {
+        logFile = new RandomAccessFile(path, "rw");
+        logChannel = logFile.getChannel();
+        if (exists) {
+            ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+            readFully(logChannel, header, 0);
+            if (!LOG_MAGIC.equals(new String(header.array(), 0, 4, "US-ASCII")))
+                throw new BlockStoreException("Header bytes do not equal " + LOG_MAGIC);
+            logGeneration = header.getInt(4);
+        } else {
+            logGeneration = 1;
+            writeLogHeader(logChannel, logGeneration);
+            logChannel.force(true);
+        }
+        logLength = LOG_HEADER_BYTES;
+    }
+
+    private static void writeLogHeader(FileChannel channel, int generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+        header.put(LOG_MAGIC.getBytes("US-ASCII"));
+        header.putInt(generation);
+        header.flip();
+        writeFully(channel, header, 0);
+    }
+
+    @GuardedBy("lock")
+    private void openTable(boolean storeExists) throws IOException, BlockStoreException {
+        File path = new File(directory, TABLE_FILE_NAME);
+        if (!storeExists || !path.exists()) {
+            if (storeExists)
+                throw new BlockStoreException("Missing " + path);
+            // A table left over from a store whose log was deleted would be out of sync, so start afresh.
+            createTable(path, INITIAL_CAPACITY, 1, logGeneration, LOG_HEADER_BYTES);
+        }
+        mapTable(path);
+        byte[] magic = new byte[4];
+        table.position(0);
+        table.get(magic);
+        if (!TABLE_MAGIC.equals(new String(magic, "US-ASCII")))
+            throw new BlockStoreException("Header bytes do not equal " + TABLE_MAGIC);
+        boolean clean = table.getInt(8) == 1;
+        liveOutputs = table.getInt(12);
+        usedSlots = table.getInt(16);
+        heapNumber = table.getInt(20);
+        int tableGeneration = table.getInt(24);
+        checkpointOffset = table.getLong(32);
+        heapLiveBytes = table.getLong(40);
+        if (tableGeneration == logGeneration - 1) {
+            // The log was rewritten after the last checkpoint. It carries no output changes from before then.
+            checkpointOffset = LOG_HEADER_BYTES;
+        } else if (tableGeneration != logGeneration) {
+            throw new BlockStoreException("Output table does not match the block log");
+        }
+        openHeap();
+        deleteUnusedHeaps();
+        if (!clean) {
+            log.info("{} was not closed cleanly, recounting outputs", path);
+            recount();
+        }
+        // Until close() says otherwise, the counts in the header can't be trusted.
+        table.putInt(8, 0);
+        table.force();
+    }
+
+    @GuardedBy("lock")
+    private void mapTable(File path) throws IOException {
+        tableFile = new RandomAccessFile(path, "rw");
+        table = tableFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, tableFile.length());
+        capacity = (int) ((tableFile.length() - TABLE_HEADER_BYTES) / SLOT_BYTES);
+        checkArgument(Integer.bitCount(capacity) == 1, "Output table capacity is not a power of two");
+    }
+
+    // Writes an empty table with the given header fields to the given path.
+    private static void createTable(File path, int capacity, int heapNumber, int generation, long checkpoint)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(TABLE_HEADER_BYTES + (long) capacity * SLOT_BYTES);
+            ByteBuffer header = ByteBuffer.allocate(TABLE_HEADER_BYTES);
+            header.put(TABLE_MAGIC.getBytes("US-ASCII"));
+            header.putInt(capacity);
+            header.putInt(1);
+            header.putInt(0);
+            header.putInt(0);
+            header.putInt(heapNumber);
+            header.putInt(generation);
+            header.putInt(0);
+            header.putLong(checkpoint);
+            header.putLong(0);
+            header.position(0);
+            writeFully(file.getChannel(), header, 0);
+            file.getChannel().force(true);
+        } finally {
+            file.close();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void openHeap() throws IOException {
+        heapFile = new RandomAccessFile(heapPath(heapNumber), "rw");
+        heapChannel = heapFile.getChannel();
+        // Anything written after the last checkpoint may be garbage, but it's harmless.
+        heapLength = heapChannel.size();
+    }
+
+    private File heapPath(int number) {
+        return new File(directory, HEAP_FILE_PREFIX + number + HEAP_FILE_SUFFIX);
+    }
+
+    // Removes heaps left behind by a rebuild that was interrupted, or that finished before the old heap was deleted.
+    @GuardedBy("lock")
+    private void deleteUnusedHeaps() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        String current = heapPath(heapNumber).getName();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(HEAP_FILE_PREFIX) && name.endsWith(HEAP_FILE_SUFFIX) && !name.equals(current)) {
+                if (!file.delete())
+                    log.warn("Could not delete unused output heap {}", file);
+            }
+        }
+    }
+
+    // Recalculates the counts in the table header from the slots.
+    @GuardedBy("lock")
+    private void recount() {
+        liveOutputs = 0;
+        usedSlots = 0;
+        heapLiveBytes = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long offset = slotOffset(slot);
+            byte state = table.get((int) offset);
+            if (state != SLOT_EMPTY)
+                usedSlots++;
+            if (state == SLOT_USED) {
+                liveOutputs++;
+                heapLiveBytes += table.getInt((int) offset + 48);
+            }
+        }
+    }
+
+    // Reads the log, rebuilding the in memory indexes and replaying output changes made since the last checkpoint.
+    // Anything after the last intact commit record is cut off.
+    @GuardedBy("lock")
+    private void replayLog() throws IOException, BlockStoreException {
+        long fileLength = logChannel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(directory, LOG_FILE_NAME)), 1 << 16));
+        Sha256Hash chainHeadHash = null, verifiedHeadHash = null;
+        int replayed = 0;
+        try {
+            in.readFully(new byte[LOG_HEADER_BYTES]);
+            long position = LOG_HEADER_BYTES;
+            // Effects of the batch being read, applied once its commit record turns up.
+            Map<Sha256Hash, Long> headers = new HashMap<Sha256Hash, Long>();
+            Map<Sha256Hash, UndoLocation> undos = new HashMap<Sha256Hash, UndoLocation>();
+            List<Object> outputChanges = new ArrayList<Object>();
+            Sha256Hash pendingHead = null, pendingVerifiedHead = null;
+            CRC32 crc = new CRC32();
+            while (position + RECORD_OVERHEAD_BYTES <= fileLength) {
+                int length = in.readInt();
+                if (length < 0 || position + RECORD_OVERHEAD_BYTES + length > fileLength)
+                    break;
+                byte type = in.readByte();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(type);
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue())
+                    break;
+                switch (type) {
+                    case RECORD_HEADER:
+                        headers.put(new Sha256Hash(Arrays.copyOf(payload, 32)), position);
+                        break;
+                    case RECORD_UNDO_BLOCK:
+                        undos.put(new Sha256Hash(Arrays.copyOf(payload, 32)),
+                                new UndoLocation(position, length, ByteBuffer.wrap(payload).getInt(32)));
+                        break;
+                    case RECORD_CHAIN_HEAD:
+                        pendingHead = new Sha256Hash(payload);
+                        break;
+                    case RECORD_VERIFIED_HEAD:
+                        pendingVerifiedHead = new Sha256Hash(payload);
+                        break;
+                    case RECORD_OUTPUT_ADDED:
+                        if (position >= checkpointOffset)
+                            outputChanges.add(new StoredTransactionOutput(new ByteArrayInputStream(payload)));
+                        break;
+                    case RECORD_OUTPUT_REMOVED:
+                        if (position >= checkpointOffset)
+                            outputChanges.add(new StoredTransactionOutPoint(new Sha256Hash(Arrays.copyOf(payload, 32)),
+                                    Utils.readUint32(payload, 32)));
+                        break;
+                    case RECORD_COMMIT:
+                        headerOffsets.putAll(headers);
+                        undoBlocks.putAll(undos);
+                        if (pendingHead != null)
+                            chainHeadHash = pendingHead;
+                        if (pendingVerifiedHead != null)
+                            verifiedHeadHash = pendingVerifiedHead;
+                        ensureCapacity(outputChanges.size());
+                        for (Object change : outputChanges) {
+                            if (change instanceof StoredTransactionOutput) {
+                                putOutput((StoredTransactionOutput) change);
+                            } else {
+                                StoredTransactionOutPoint outPoint = (StoredTransactionOutPoint) change;
+                                deleteOutput(outPoint.getHash(), outPoint.getIndex());
+                            }
+                        }
+                        replayed += outputChanges.size();
+                        headers.clear();
+                        undos.clear();
+                        outputChanges.clear();
+                        pendingHead = pendingVerifiedHead = null;
+                        logLength = position + RECORD_OVERHEAD_BYTES + length;
+                        break;
+                    default:
+                        throw new BlockStoreException("Unknown record type " + type + " in block log");
+                }
+                position += RECORD_OVERHEAD_BYTES + length;
+            }
+        } catch (EOFException e) {
+            // Torn write at the end, dealt with below.
+        } finally {
+            in.close();
+        }
+        if (logLength < fileLength) {
+            log.info("Discarding {} bytes of uncommitted data at the end of the block log", fileLength - logLength);
+            logChannel.truncate(logLength);
+        }
+        if (chainHeadHash == null && headerOffsets.isEmpty()) {
+            // Nothing was ever committed, the store was still being created.
+            createNewStore();
+            return;
+        }
+        if (chainHeadHash == null || verifiedHeadHash == null)
+            throw new BlockStoreException("Block log has no chain head");
+        chainHead = get(chainHeadHash);
+        verifiedChainHead = get(verifiedHeadHash);
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head");
+        pruneUndoBlocks();
+        liveLogBytes = computeLiveLogBytes();
+        if (replayed > 0)
+            log.info("Replayed {} output changes from the block log", replayed);
+        checkpoint();
+    }
+
+    @GuardedBy("lock")
+    private void createNewStore() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader =
+                    new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = new LinkedList<Transaction>();
+            StoredUndoableBlock storedGenesis =
+                    new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    // BlockStore
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            Sha256Hash hash = block.getHeader().getHash();
+            // Don't lose the flag if the block was already stored with its undo data.
+            StagedHeader existing = getHeader(hash);
+            boolean wasUndoable = existing != null && existing.wasUndoable;
+            boolean implicit = beginImplicitBatch();
+            batch.headers.put(hash, new StagedHeader(block, wasUndoable));
+            endImplicitBatch(implicit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        lock.lock();
+        try {
+            Sha256Hash hash = storedBlock.getHeader().getHash();
+            boolean implicit = beginImplicitBatch();
+            batch.headers.put(hash, new StagedHeader(storedBlock, true));
+            batch.undoBlocks.put(hash, undoableBlock);
+            batch.undoHeights.put(hash, storedBlock.getHeight());
+            endImplicitBatch(implicit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            StagedHeader header = getHeader(hash);
+            return header == null ? null : header.block;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            StagedHeader header = getHeader(hash);
+            return header != null && header.wasUndoable ? header.block : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            Batch batch = visibleBatch();
+            if (batch != null && batch.undoBlocks.containsKey(hash))
+                return batch.undoBlocks.get(hash);
+            UndoLocation location = undoBlocks.get(hash);
+            if (location == null)
+                return null;
+            byte[] payload = readPayload(location.offset, location.payloadLength);
+            return deserializeUndoBlock(hash, payload);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            Batch batch = visibleBatch();
+            return batch != null && batch.chainHead != null ? batch.chainHead : chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            boolean implicit = beginImplicitBatch();
+            batch.chainHead = chainHead;
+            endImplicitBatch(implicit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            Batch batch = visibleBatch();
+            return batch != null && batch.verifiedChainHead != null ? batch.verifiedChainHead : verifiedChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            boolean implicit = beginImplicitBatch();
+            batch.verifiedChainHead = chainHead;
+            StoredBlock head = getChainHead();
+            if (head == null || head.getHeight() < chainHead.getHeight())
+                batch.chainHead = chainHead;
+            endImplicitBatch(implicit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Outputs
+
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        lock.lock();
+        try {
+            Batch batch = visibleBatch();
+            if (batch != null) {
+                StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+                if (batch.outputs.containsKey(outPoint))
+                    return batch.outputs.get(outPoint);
+            }
+            int slot = findSlot(hash, index);
+            if (slot < 0)
+                return null;
+            int offset = (int) slotOffset(slot);
+            byte[] bytes = new byte[table.getInt(offset + 48)];
+            readFully(heapChannel, ByteBuffer.wrap(bytes), table.getLong(offset + 40));
+            return new StoredTransactionOutput(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        lock.lock();
+        try {
+            boolean implicit = beginImplicitBatch();
+            batch.outputs.put(new StoredTransactionOutPoint(out), out);
+            endImplicitBatch(implicit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MappedFullPrunedBlockStore that it didn't have!");
+            boolean implicit = beginImplicitBatch();
+            batch.outputs.put(new StoredTransactionOutPoint(out), null);
+            endImplicitBatch(implicit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        lock.lock();
+        try {
+            for (int i = 0; i < numOutputs; i++)
+                if (getTransactionOutput(hash, i) != null)
+                    return true;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Batches
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (batch != null) {
+                if (batchThread == Thread.currentThread())
+                    return;  // Nested calls are treated as one.
+                throw new BlockStoreException("A batch write is already in progress on another thread");
+            }
+            batch = new Batch();
+            batchThread = Thread.currentThread();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (batch == null || batchThread != Thread.currentThread())
+                return;
+            Batch committing = batch;
+            batch = null;
+            batchThread = null;
+            commit(committing);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (batchThread == Thread.currentThread()) {
+                batch = null;
+                batchThread = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes made outside of a batch are committed straight away, as a batch of their own.
+    @GuardedBy("lock")
+    private boolean beginImplicitBatch() throws BlockStoreException {
+        if (batch != null && batchThread == Thread.currentThread())
+            return false;
+        beginDatabaseBatchWrite();
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void endImplicitBatch(boolean implicit) throws BlockStoreException {
+        if (implicit)
+            commitDatabaseBatchWrite();
+    }
+
+    @GuardedBy("lock")
+    private Batch visibleBatch() {
+        return batchThread == Thread.currentThread() ? batch : null;
+    }
+
+    // Logs the batch with a commit record, forces it to disk and then applies it.
+    @GuardedBy("lock")
+    private void commit(Batch batch) throws IOException, BlockStoreException {
+        // Make room first: growing the table checkpoints it, which must not cover records that aren't applied yet.
+        ensureCapacity(batch.outputs.size());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Map<Sha256Hash, Long> headers = new HashMap<Sha256Hash, Long>();
+        Map<Sha256Hash, UndoLocation> undos = new HashMap<Sha256Hash, UndoLocation>();
+        for (Map.Entry<Sha256Hash, StagedHeader> entry : batch.headers.entrySet()) {
+            long offset = logLength + bos.size();
+            writeRecord(bos, RECORD_HEADER, serializeHeader(entry.getKey(), entry.getValue()));
+            headers.put(entry.getKey(), offset);
+        }
+        for (Map.Entry<Sha256Hash, StoredUndoableBlock> entry : batch.undoBlocks.entrySet()) {
+            long offset = logLength + bos.size();
+            int height = batch.undoHeights.get(entry.getKey());
+            byte[] payload = serializeUndoBlock(entry.getKey(), height, entry.getValue());
+            writeRecord(bos, RECORD_UNDO_BLOCK, payload);
+            undos.put(entry.getKey(), new UndoLocation(offset, payload.length, height));
+        }
+        if (batch.chainHead != null)
+            writeRecord(bos, RECORD_CHAIN_HEAD, batch.chainHead.getHeader().getHash().getBytes());
+        if (batch.verifiedChainHead != null)
+            writeRecord(bos, RECORD_VERIFIED_HEAD, batch.verifiedChainHead.getHeader().getHash().getBytes());
+        for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : batch.outputs.entrySet()) {
+            if (entry.getValue() != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                entry.getValue().serializeToStream(out);
+                writeRecord(bos, RECORD_OUTPUT_ADDED, out.toByteArray());
+            } else {
+                byte[] payload = new byte[36];
+                System.arraycopy(entry.getKey().getHash().getBytes(), 0, payload, 0, 32);
+                Utils.uint32ToByteArrayLE(entry.getKey().getIndex(), payload, 32);
+                writeRecord(bos, RECORD_OUTPUT_REMOVED, payload);
+            }
+        }
+        writeRecord(bos, RECORD_COMMIT, new byte[0]);
+        writeFully(logChannel, ByteBuffer.wrap(bos.toByteArray()), logLength);
+        logChannel.force(false);
+        logLength += bos.size();
+
+        // The batch is durable now, apply it.
+        for (Map.Entry<Sha256Hash, Long> entry : headers.entrySet()) {
+            // A header stored again replaces the old record, so only new blocks add to the live bytes.
+            if (headerOffsets.put(entry.getKey(), entry.getValue()) == null)
+                liveLogBytes += RECORD_OVERHEAD_BYTES + HEADER_PAYLOAD_BYTES;
+        }
+        for (Map.Entry<Sha256Hash, UndoLocation> entry : undos.entrySet()) {
+            liveLogBytes += RECORD_OVERHEAD_BYTES + entry.getValue().payloadLength;
+            UndoLocation old = undoBlocks.put(entry.getKey(), entry.getValue());
+            if (old != null)
+                liveLogBytes -= RECORD_OVERHEAD_BYTES + old.payloadLength;
+        }
+        if (batch.chainHead != null)
+            chainHead = batch.chainHead;
+        if (batch.verifiedChainHead != null) {
+            verifiedChainHead = batch.verifiedChainHead;
+            pruneUndoBlocks();
+        }
+        for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : batch.outputs.entrySet()) {
+            if (entry.getValue() != null)
+                putOutput(entry.getValue());
+            else
+                deleteOutput(entry.getKey().getHash(), entry.getKey().getIndex());
+        }
+
+        if (++commitsSinceCheckpoint >= COMMITS_PER_CHECKPOINT)
+            checkpoint();
+        maybeCompact();
+    }
+
+    @GuardedBy("lock")
+    private void pruneUndoBlocks() {
+        int minHeight = verifiedChainHead.getHeight() - fullStoreDepth;
+        Iterator<UndoLocation> it = undoBlocks.values().iterator();
+        while (it.hasNext()) {
+            UndoLocation location = it.next();
+            if (location.height <= minHeight) {
+                liveLogBytes -= RECORD_OVERHEAD_BYTES + location.payloadLength;
+                it.remove();
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private long computeLiveLogBytes() {
+        long bytes = LOG_HEADER_BYTES + 2 * (RECORD_OVERHEAD_BYTES + 32) + RECORD_OVERHEAD_BYTES;
+        bytes += (long) headerOffsets.size() * (RECORD_OVERHEAD_BYTES + HEADER_PAYLOAD_BYTES);
+        for (UndoLocation location : undoBlocks.values())
+            bytes += RECORD_OVERHEAD_BYTES + location.payloadLength;
+        return bytes;
+    }
+
+    // Headers and undo blocks
+
+    @GuardedBy("lock")
+    private StagedHeader getHeader(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch batch = visibleBatch();
+        if (batch != null) {
+            StagedHeader staged = batch.headers.get(hash);
+            if (staged != null)
+                return staged;
+        }
+        Long offset = headerOffsets.get(hash);
+        if (offset == null)
+            return null;
+        try {
+            ByteBuffer payload = ByteBuffer.wrap(readPayload(offset, HEADER_PAYLOAD_BYTES));
+            payload.position(32);
+            boolean wasUndoable = payload.get() != 0;
+            return new StagedHeader(StoredBlock.deserializeCompact(params, payload), wasUndoable);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static byte[] serializeHeader(Sha256Hash hash, StagedHeader header) {
+        ByteBuffer payload = ByteBuffer.allocate(HEADER_PAYLOAD_BYTES);
+        payload.put(hash.getBytes());
+        payload.put((byte) (header.wasUndoable ? 1 : 0));
+        header.block.serializeCompact(payload);
+        return payload.array();
+    }
+
+    // Same encoding of the undo data as H2FullPrunedBlockStore, after the hash, height and which kind it is.
+    private static byte[] serializeUndoBlock(Sha256Hash hash, int height, StoredUndoableBlock block) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(hash.getBytes());
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(height);
+        if (block.getTxOutChanges() != null) {
+            bos.write(0);
+            block.getTxOutChanges().serializeToStream(bos);
+        } else {
+            bos.write(1);
+            int numTxn = block.getTransactions().size();
+            bos.write((int) (0xFF & (numTxn >> 0)));
+            bos.write((int) (0xFF & (numTxn >> 8)));
+            bos.write((int) (0xFF & (numTxn >> 16)));
+            bos.write((int) (0xFF & (numTxn >> 24)));
+            for (Transaction tx : block.getTransactions())
+                tx.bitcoinSerialize(bos);
+        }
+        return bos.toByteArray();
+    }
+
+    private StoredUndoableBlock deserializeUndoBlock(Sha256Hash hash, byte[] payload) throws BlockStoreException {
+        try {
+            int offset = 32 + 4;
+            if (payload[offset++] == 0) {
+                TransactionOutputChanges changes = new TransactionOutputChanges(
+                        new ByteArrayInputStream(payload, offset, payload.length - offset));
+                return new StoredUndoableBlock(hash, changes);
+            }
+            int numTxn = ((payload[offset++] & 0xFF) << 0) |
+                         ((payload[offset++] & 0xFF) << 8) |
+                         ((payload[offset++] & 0xFF) << 16) |
+                         ((payload[offset++] & 0xFF) << 24);
+            List<Transaction> transactions = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, payload, offset);
+                transactions.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactions);
+        } catch (IOException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream bos, byte type, byte[] payload) throws IOException {
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(payload.length);
+        dos.writeByte(type);
+        dos.write(payload);
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        dos.writeInt((int) crc.getValue());
+        dos.flush();
+    }
+
+    @GuardedBy("lock")
+    private byte[] readPayload(long recordOffset, int length) throws IOException {
+        byte[] payload = new byte[length];
+        readFully(logChannel, ByteBuffer.wrap(payload), recordOffset + 5);
+        return payload;
+    }
+
+    // The output table
+
+    private static long slotOffset(int slot) {
+        return TABLE_HEADER_BYTES + (long) slot * SLOT_BYTES;
+    }
+
+    @GuardedBy("lock")
+    private int homeSlot(Sha256Hash hash, long index) {
+        return homeSlot(hash, (int) index, capacity);
+    }
+
+    private static int homeSlot(Sha256Hash hash, int index, int capacity) {
+        int h = (hash.hashCode() ^ index * 0x9E3779B9) * 0x85EBCA6B;
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    @GuardedBy("lock")
+    private boolean slotMatches(int offset, Sha256Hash hash, long index) {
+        if (table.getInt(offset + 4) != (int) index)
+            return false;
+        byte[] bytes = hash.getBytes();
+        for (int i = 0; i < 32; i++)
+            if (table.get(offset + 8 + i) != bytes[i])
+                return false;
+        return true;
+    }
+
+    // Returns the slot holding the given output, or -1.
+    @GuardedBy("lock")
+    private int findSlot(Sha256Hash hash, long index) {
+        for (int slot = homeSlot(hash, index); ; slot = (slot + 1) & (capacity - 1)) {
+            int offset = (int) slotOffset(slot);
+            byte state = table.get(offset);
+            if (state == SLOT_EMPTY)
+                return -1;
+            if (state == SLOT_USED && slotMatches(offset, hash, index))
+                return slot;
+        }
+    }
+
+    // Adds the output to the table, replacing any existing copy, so replaying a logged change is harmless.
+    @GuardedBy("lock")
+    private void putOutput(StoredTransactionOutput out) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.serializeToStream(bos);
+        byte[] bytes = bos.toByteArray();
+        long heapOffset = heapLength;
+        writeFully(heapChannel, ByteBuffer.wrap(bytes), heapOffset);
+        heapLength += bytes.length;
+        heapLiveBytes += bytes.length;
+
+        int existing = findSlot(out.getHash(), out.getIndex());
+        int slot = existing;
+        if (slot < 0) {
+            slot = homeSlot(out.getHash(), out.getIndex());
+            while (table.get((int) slotOffset(slot)) == SLOT_USED)
+                slot = (slot + 1) & (capacity - 1);
+        }
+        int offset = (int) slotOffset(slot);
+        if (existing >= 0) {
+            heapLiveBytes -= table.getInt(offset + 48);
+        } else {
+            if (table.get(offset) == SLOT_EMPTY)
+                usedSlots++;
+            liveOutputs++;
+            table.putInt(offset + 4, (int) out.getIndex());
+            table.position(offset + 8);
+            table.put(out.getHash().getBytes());
+        }
+        table.putLong(offset + 40, heapOffset);
+        table.putInt(offset + 48, bytes.length);
+        // Mark the slot used last, so a slot is never in use with a half written key.
+        table.put(offset, SLOT_USED);
+    }
+
+    // Removes the output from the table if it is there, so replaying a logged change is harmless.
+    @GuardedBy("lock")
+    private void deleteOutput(Sha256Hash hash, long index) {
+        int slot = findSlot(hash, index);
+        if (slot < 0)
+            return;
+        int offset = (int) slotOffset(slot);
+        table.put(offset, SLOT_DELETED);
+        liveOutputs--;
+        heapLiveBytes -= table.getInt(offset + 48);
+    }
+
+    // Makes sure that many more outputs can be added without the table getting more than 70% full.
+    @GuardedBy("lock")
+    private void ensureCapacity(int additions) throws IOException {
+        long needed = (long) usedSlots + additions;
+        if (needed * 10 <= (long) capacity * 7)
+            return;
+        // Deleted slots are dropped by the rebuild, so only grow if the live outputs need it.
+        long live = (long) liveOutputs + additions;
+        int newCapacity = capacity;
+        while (newCapacity < MAX_CAPACITY && live * 10 > (long) newCapacity * 5)
+            newCapacity *= 2;
+        if (live * 10 > (long) newCapacity * 7)
+            throw new IOException("Output table cannot hold " + live + " outputs, it is limited to " + MAX_CAPACITY +
+                    " slots");
+        rebuild(newCapacity);
+    }
+
+    // Writes the table and heap to disk and records that they reflect the log up to the end of the last commit.
+    @GuardedBy("lock")
+    private void checkpoint() throws IOException {
+        heapChannel.force(false);
+        table.force();
+        table.putInt(12, liveOutputs);
+        table.putInt(16, usedSlots);
+        table.putInt(24, logGeneration);
+        table.putLong(32, logLength);
+        table.putLong(40, heapLiveBytes);
+        table.force();
+        checkpointOffset = logLength;
+        commitsSinceCheckpoint = 0;
+    }
+
+    // Rewrites the output table with the given capacity and a heap holding only unspent outputs. The new files are
+    // complete on disk before the new table replaces the old one, so a crash leaves one or the other.
+    @GuardedBy("lock")
+    private void rebuild(int newCapacity) throws IOException {
+        long start = System.currentTimeMillis();
+        checkpoint();
+        int newHeapNumber = heapNumber + 1;
+        File newHeapPath = heapPath(newHeapNumber);
+        File tmpTablePath = new File(directory, TABLE_FILE_NAME + ".tmp");
+        createTable(tmpTablePath, newCapacity, newHeapNumber, logGeneration, logLength);
+        RandomAccessFile newHeapFile = new RandomAccessFile(newHeapPath, "rw");
+        RandomAccessFile newTableFile = new RandomAccessFile(tmpTablePath, "rw");
+        try {
+            newHeapFile.setLength(0);
+            FileChannel newHeap = newHeapFile.getChannel();
+            MappedByteBuffer newTable =
+                    newTableFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newTableFile.length());
+            long newHeapLength = 0;
+            byte[] key = new byte[32];
+            for (int slot = 0; slot < capacity; slot++) {
+                int offset = (int) slotOffset(slot);
+                if (table.get(offset) != SLOT_USED)
+                    continue;
+                int index = table.getInt(offset + 4);
+                table.position(offset + 8);
+                table.get(key);
+                int length = table.getInt(offset + 48);
+                ByteBuffer bytes = ByteBuffer.allocate(length);
+                readFully(heapChannel, bytes, table.getLong(offset + 40));
+                bytes.flip();
+                writeFully(newHeap, bytes, newHeapLength);
+
+                int newSlot = homeSlot(new Sha256Hash(key), index, newCapacity);
+                while (newTable.get((int) slotOffset(newSlot)) != SLOT_EMPTY)
+                    newSlot = (newSlot + 1) & (newCapacity - 1);
+                int newOffset = (int) slotOffset(newSlot);
+                newTable.putInt(newOffset + 4, index);
+                newTable.position(newOffset + 8);
+                newTable.put(key);
+                newTable.putLong(newOffset + 40, newHeapLength);
+                newTable.putInt(newOffset + 48, length);
+                newTable.put(newOffset, SLOT_USED);
+                newHeapLength += length;
+            }
+            newTable.putInt(12, liveOutputs);
+            newTable.putInt(16, liveOutputs);
+            newTable.putLong(40, newHeapLength);
+            newHeap.force(true);
+            newTable.force();
+        } finally {
+            newHeapFile.close();
+            newTableFile.close();
+        }
+        File tablePath = new File(directory, TABLE_FILE_NAME);
+        tableFile.close();
+        heapFile.close();
+        if (!tmpTablePath.renameTo(tablePath)) {
+            // Some platforms won't rename over an existing file.
+            if (!tablePath.delete() || !tmpTablePath.renameTo(tablePath))
+                throw new IOException("Could not replace " + tablePath);
+        }
+        if (!heapPath(heapNumber).delete())
+            log.warn("Could not delete old output heap {}", heapPath(heapNumber));
+        heapNumber = newHeapNumber;
+        mapTable(tablePath);
+        openHeap();
+        usedSlots = liveOutputs;
+        heapLiveBytes = heapLength;
+        table.putInt(8, 0);
+        log.info("Rebuilt output table with {} outputs in {} slots in {} msec",
+                new Object[] { liveOutputs, newCapacity, System.currentTimeMillis() - start });
+    }
+
+    // Rewrites the log or rebuilds the heap once they are mostly garbage.
+    @GuardedBy("lock")
+    private void maybeCompact() throws IOException, BlockStoreException {
+        if (heapLength > MIN_HEAP_COMPACTION_BYTES && heapLiveBytes * 2 < heapLength)
+            rebuild(capacity);
+        if (logLength > MIN_LOG_COMPACTION_BYTES && liveLogBytes * 2 < logLength)
+            rewriteLog();
+    }
+
+    // Writes a new log holding only the headers, the undo blocks still needed and the chain heads, then replaces the
+    // old one with it. Output changes are left out, so the table is checkpointed first.
+    @GuardedBy("lock")
+    private void rewriteLog() throws IOException, BlockStoreException {
+        long start = System.currentTimeMillis();
+        checkpoint();
+        File tmpPath = new File(directory, LOG_FILE_NAME + ".tmp");
+        RandomAccessFile tmpFile = new RandomAccessFile(tmpPath, "rw");
+        Map<Sha256Hash, Long> newHeaderOffsets = new HashMap<Sha256Hash, Long>();
+        Map<Sha256Hash, UndoLocation> newUndoBlocks = new HashMap<Sha256Hash, UndoLocation>();
+        long newLength;
+        try {
+            tmpFile.setLength(0);
+            FileChannel tmp = tmpFile.getChannel();
+            writeLogHeader(tmp, logGeneration + 1);
+            newLength = LOG_HEADER_BYTES;
+            for (Map.Entry<Sha256Hash, Long> entry : headerOffsets.entrySet()) {
+                newHeaderOffsets.put(entry.getKey(), newLength);
+                newLength += copyRecord(tmp, entry.getValue(), HEADER_PAYLOAD_BYTES, newLength);
+            }
+            for (Map.Entry<Sha256Hash, UndoLocation> entry : undoBlocks.entrySet()) {
+                UndoLocation location = entry.getValue();
+                newUndoBlocks.put(entry.getKey(), new UndoLocation(newLength, location.payloadLength, location.height));
+                newLength += copyRecord(tmp, location.offset, location.payloadLength, newLength);
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            writeRecord(bos, RECORD_CHAIN_HEAD, chainHead.getHeader().getHash().getBytes());
+            writeRecord(bos, RECORD_VERIFIED_HEAD, verifiedChainHead.getHeader().getHash().getBytes());
+            writeRecord(bos, RECORD_COMMIT, new byte[0]);
+            writeFully(tmp, ByteBuffer.wrap(bos.toByteArray()), newLength);
+            newLength += bos.size();
+            tmp.force(true);
+        } finally {
+            tmpFile.close();
+        }
+        File logPath = new File(directory, LOG_FILE_NAME);
+        logFile.close();
+        if (!tmpPath.renameTo(logPath)) {
+            if (!logPath.delete() || !tmpPath.renameTo(logPath))
+                throw new IOException("Could not replace " + logPath);
+        }
+        long oldLength = logLength;
+        logFile = new RandomAccessFile(logPath, "rw");
+        logChannel = logFile.getChannel();
+        logGeneration++;
+        logLength = newLength;
+        headerOffsets.clear();
+        headerOffsets.putAll(newHeaderOffsets);
+        undoBlocks.clear();
+        undoBlocks.putAll(newUndoBlocks);
+        liveLogBytes = computeLiveLogBytes();
+        checkpoint();
+        log.info("Rewrote block log from {} to {} bytes in {} msec",
+                new Object[] { oldLength, newLength, System.currentTimeMillis() - start });
+    }
+
+    // Copies a whole record from the current log into another file, returning its size.
+    @GuardedBy("lock")
+    private int copyRecord(FileChannel to, long offset, int payloadLength, long toOffset) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD_BYTES + payloadLength);
+        readFully(logChannel, record, offset);
+        record.flip();
+        writeFully(to, record, toOffset);
+        return RECORD_OVERHEAD_BYTES + payloadLength;
+    }
+
+    // Closing
+
+    @GuardedBy("lock")
+    private void checkOpen() throws BlockStoreException {
+        if (logChannel == null)
+            throw new BlockStoreException("MappedFullPrunedBlockStore is closed");
+    }
+
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (logChannel == null)
+                return;
+            batch = null;
+            batchThread = null;
+            checkpoint();
+            table.putInt(8, 1);
+            table.force();
+            logFile.close();
+            tableFile.close();
+            heapFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            logChannel = null;
+            table = null;
+            lock.unlock();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (logFile != null) logFile.close();
+            if (tableFile != null) tableFile.close();
+            if (heapFile != null) heapFile.close();
+        } catch (IOException e) {
+            log.warn("Failed to close files", e);
+        }
+        logChannel = null;
+        table = null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
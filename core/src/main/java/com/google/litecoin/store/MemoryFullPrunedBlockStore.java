@@ -174,13 +174,18 @@ class TransactionalHashMap<KeyType, ValueType> {
     ThreadLocal<HashSet<KeyType>> tempSetRemoved;
     private ThreadLocal<Boolean> inTransaction;
     
-    HashMap<KeyType, ValueType> map;
+    Map<KeyType, ValueType> map;
     
     public TransactionalHashMap() {
+        this(new HashMap<KeyType, ValueType>());
+    }
+
+    /** Uses the given map to hold committed values. */
+    public TransactionalHashMap(Map<KeyType, ValueType> map) {
         tempMap = new ThreadLocal<HashMap<KeyType, ValueType>>();
         tempSetRemoved = new ThreadLocal<HashSet<KeyType>>();
         inTransaction = new ThreadLocal<Boolean>();
-        map = new HashMap<KeyType, ValueType>();
+        this.map = map;
     }
     
     public void beginDatabaseBatchWrite() {
@@ -315,7 +320,6 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
-    //TODO: Use something more suited to remove-heavy use?
     private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
@@ -327,9 +331,25 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
      * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
      */
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, false);
+    }
+
+    /**
+     * Set up the MemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param compactOutputs If true, unspent outputs are kept in primitive arrays rather than as objects, which takes
+     *                       several times less heap for large output sets at the cost of creating a new object on
+     *                       every read
+     */
+    public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, boolean compactOutputs) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
-        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        if (compactOutputs)
+            transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>(
+                    new CompactOutputMap());
+        else
+            transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -18,6 +18,8 @@ package com.google.litecoin.store;
 
 import com.google.litecoin.core.*;
 import com.google.litecoin.utils.Threading;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,18 +31,25 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Next to the ring file there is a second memory mapped file (the ring file name plus ".idx") holding an open
+ * addressing hash table from a truncated block hash to a record in the ring. This makes looking up any header in the
+ * ring constant time, however large the ring is. The index is updated on every put and is rebuilt from the ring when
+ * the store is opened, unless it was written out by a clean {@link #close()}.</p>
+ *
+ * <p>Reads far outnumber writes, so lookups only take the read side of a read/write lock and may run in parallel,
+ * whilst {@link #put(StoredBlock)} and {@link #setChainHead(StoredBlock)} take the write side. Cache hits and
+ * {@link #getChainHead()} don't take a lock at all once the chain head has been loaded.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -53,7 +62,13 @@ public class SPVBlockStore implements BlockStore {
     protected int numHeaders;
     protected NetworkParameters params;
 
-    protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    // The hash index, see the class documentation and the file format description at the bottom.
+    protected MappedByteBuffer indexBuffer;
+    protected RandomAccessFile indexFile = null;
+    protected int indexMask;
+
+    // Readers never move the position of the shared buffers, they work on duplicates of them instead.
+    protected ReentrantReadWriteLock lock = Threading.readWriteLock("SPVBlockStore");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -62,25 +77,20 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    // They are thread safe, so hits don't need the lock.
+    protected Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker. Misses are only added whilst holding
+    // the read lock and removed whilst holding the write lock, so a put can't race with a get recording a stale miss.
     protected static final StoredBlock notFoundMarker = new StoredBlock(null, null, -1);
-    protected LinkedHashMap<Sha256Hash, StoredBlock> notFoundCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected Cache<Sha256Hash, StoredBlock> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
@@ -90,10 +100,19 @@ public class SPVBlockStore implements BlockStore {
      * will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. An existing file must have
+     * been created with the same capacity. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(numHeaders > 0);
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = numHeaders;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -125,12 +144,15 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                openIndex(new File(file.getPath() + INDEX_FILE_SUFFIX), true);
             } else {
+                openIndex(new File(file.getPath() + INDEX_FILE_SUFFIX), false);
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
+                if (indexFile != null) indexFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
             }
@@ -138,16 +160,188 @@ public class SPVBlockStore implements BlockStore {
         }
     }
 
+    private void openIndex(File file, boolean storeExists) throws IOException {
+        int capacity = Integer.highestOneBit(numHeaders) * 4;  // Keeps the load factor at or below one half.
+        long indexSize = INDEX_PROLOGUE_BYTES + (long) capacity * INDEX_SLOT_SIZE;
+        boolean exists = file.exists();
+        indexFile = new RandomAccessFile(file, "rw");
+        if (indexFile.length() != indexSize) {
+            indexFile.setLength(indexSize);
+            exists = false;
+        }
+        indexBuffer = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        indexMask = capacity - 1;
+        lock.writeLock().lock();
+        try {
+            if (!storeExists) {
+                clearIndex();
+            } else if (!exists || !isIndexUpToDate()) {
+                log.info("Rebuilding SPV block store hash index {}", file);
+                rebuildIndex();
+            }
+            // Until close() says otherwise, the index must be considered out of date.
+            indexBuffer.putInt(4, 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // An index can be trusted if it was written out by a clean close of this ring, in its current state.
+    private boolean isIndexUpToDate() throws IOException {
+        byte[] magic = new byte[4];
+        indexBuffer.position(0);
+        indexBuffer.get(magic);
+        if (!new String(magic, "US-ASCII").equals(INDEX_MAGIC))
+            return false;
+        if (indexBuffer.getInt(4) != 1 || indexBuffer.getInt(8) != numHeaders ||
+                indexBuffer.getInt(12) != getRingCursor(buffer))
+            return false;
+        byte[] indexHead = new byte[32], ringHead = new byte[32];
+        indexBuffer.position(16);
+        indexBuffer.get(indexHead);
+        buffer.position(8);
+        buffer.get(ringHead);
+        return Arrays.equals(indexHead, ringHead);
+    }
+
+    private void clearIndex() throws IOException {
+        indexBuffer.position(0);
+        indexBuffer.put(INDEX_MAGIC.getBytes("US-ASCII"));
+        byte[] zeros = new byte[4096];
+        indexBuffer.position(INDEX_PROLOGUE_BYTES);
+        while (indexBuffer.remaining() > 0)
+            indexBuffer.put(zeros, 0, Math.min(zeros.length, indexBuffer.remaining()));
+        indexBuffer.putInt(8, numHeaders);
+    }
+
+    private void rebuildIndex() throws IOException {
+        clearIndex();
+        final int fileSize = getFileSize();
+        int cursor = getRingCursor(buffer);
+        if (cursor == fileSize)
+            cursor = FILE_PROLOGUE_BYTES;
+        // Visit the records oldest first, so if a block was stored more than once the newest copy wins.
+        byte[] scratch = new byte[32];
+        for (int i = 0; i < numHeaders; i++) {
+            buffer.position(cursor);
+            buffer.get(scratch);
+            if (!isZero(scratch))
+                indexPut(scratch, (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE);
+            cursor += RECORD_SIZE;
+            if (cursor == fileSize)
+                cursor = FILE_PROLOGUE_BYTES;
+        }
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes)
+            if (b != 0) return false;
+        return true;
+    }
+
+    // Same bytes as Sha256Hash.hashCode(): the end of a block hash, as the start is mostly zeros.
+    private static int indexTag(byte[] hash) {
+        return (hash[31] & 0xFF) | ((hash[30] & 0xFF) << 8) | ((hash[29] & 0xFF) << 16) | ((hash[28] & 0xFF) << 24);
+    }
+
+    private int indexHome(int tag) {
+        int h = tag * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & indexMask;
+    }
+
+    private static int indexSlotOffset(int slot) {
+        return INDEX_PROLOGUE_BYTES + slot * INDEX_SLOT_SIZE;
+    }
+
+    /**
+     * Returns the offset in the ring of the record with the given hash, or -1 if it isn't there. If found, the given
+     * view of the ring is left positioned just after the hash of the record.
+     */
+    private int indexLookup(ByteBuffer ring, byte[] hash, byte[] scratch) {
+        final int tag = indexTag(hash);
+        for (int slot = indexHome(tag); ; slot = (slot + 1) & indexMask) {
+            final int offset = indexSlotOffset(slot);
+            final int record = indexBuffer.getInt(offset + 4);
+            if (record == 0)
+                return -1;
+            if (indexBuffer.getInt(offset) == tag) {
+                // The tag is only part of the hash, so check the full hash stored in the ring.
+                int position = FILE_PROLOGUE_BYTES + (record - 1) * RECORD_SIZE;
+                ring.position(position);
+                ring.get(scratch);
+                if (Arrays.equals(scratch, hash))
+                    return position;
+            }
+        }
+    }
+
+    /** Points the index entry for the given hash at the given record, adding it if necessary. */
+    private void indexPut(byte[] hash, int record) {
+        final int tag = indexTag(hash);
+        byte[] scratch = new byte[32];
+        int slot = indexHome(tag);
+        while (true) {
+            final int offset = indexSlotOffset(slot);
+            final int existing = indexBuffer.getInt(offset + 4);
+            if (existing == 0)
+                break;
+            if (indexBuffer.getInt(offset) == tag) {
+                buffer.position(FILE_PROLOGUE_BYTES + (existing - 1) * RECORD_SIZE);
+                buffer.get(scratch);
+                if (Arrays.equals(scratch, hash))
+                    break;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+        indexBuffer.putInt(indexSlotOffset(slot), tag);
+        indexBuffer.putInt(indexSlotOffset(slot) + 4, record + 1);
+    }
+
+    /**
+     * Removes the index entry for the given hash if it points at the given record. If the block was stored again
+     * later, the entry points at the newer record and is left alone.
+     */
+    private void indexRemove(byte[] hash, int record) {
+        final int tag = indexTag(hash);
+        int slot = indexHome(tag);
+        while (true) {
+            final int offset = indexSlotOffset(slot);
+            final int existing = indexBuffer.getInt(offset + 4);
+            if (existing == 0)
+                return;
+            if (existing == record + 1 && indexBuffer.getInt(offset) == tag)
+                break;
+            slot = (slot + 1) & indexMask;
+        }
+        // Backward shift deletion: move later entries of the probe sequence into the hole so lookups never stop
+        // early at it, which means we never need tombstones.
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & indexMask;
+            final int offset = indexSlotOffset(next);
+            if (indexBuffer.getInt(offset + 4) == 0)
+                break;
+            int home = indexHome(indexBuffer.getInt(offset));
+            boolean canMove = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (canMove) {
+                indexBuffer.putLong(indexSlotOffset(hole), indexBuffer.getLong(offset));
+                hole = next;
+            }
+        }
+        indexBuffer.putLong(indexSlotOffset(hole), 0);
+    }
+
     private void initNewStore(NetworkParameters params) throws Exception {
         byte[] header;
         header = HEADER_MAGIC.getBytes("US-ASCII");
         buffer.put(header);
         // Insert the genesis block.
-        lock.lock();
+        lock.writeLock().lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
         } finally {
-            lock.unlock();
+            lock.writeLock().unlock();
         }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
@@ -164,78 +358,76 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        lock.writeLock().lock();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            final int record = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            // If the ring wrapped around, the record we are about to overwrite must leave the index.
+            byte[] scratch = new byte[32];
+            buffer.position(cursor);
+            buffer.get(scratch);
+            indexRemove(scratch, record);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            notFoundCache.invalidate(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            indexPut(hash.getBytes(), record);
             blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+        } finally { lock.writeLock().unlock(); }
     }
 
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        lock.readLock().lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
+            if (notFoundCache.getIfPresent(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
+            // Find the record through the hash index, reading through a private view so other readers can run at
+            // the same time. The view is left positioned just after the hash.
+            ByteBuffer ring = buffer.duplicate();
+            int position = indexLookup(ring, hash.getBytes(), new byte[32]);
+            if (position >= 0) {
+                StoredBlock storedBlock = StoredBlock.deserializeCompact(params, ring);
+                blockCache.put(hash, storedBlock);
+                return storedBlock;
+            }
             // Not found.
             notFoundCache.put(hash, notFoundMarker);
             return null;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally { lock.readLock().unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
+        StoredBlock head = lastChainHead;
+        if (head != null)
+            return head;
 
-        lock.lock();
+        lock.readLock().lock();
         try {
+            // Only setChainHead changes the head and it needs the write lock, so this can't overwrite a newer head.
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                ByteBuffer ring = buffer.duplicate();
+                ring.position(8);
+                ring.get(headHash);
                 Sha256Hash hash = new Sha256Hash(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
@@ -243,29 +435,44 @@ public class SPVBlockStore implements BlockStore {
                 lastChainHead = block;
             }
             return lastChainHead;
-        } finally { lock.unlock(); }
+        } finally { lock.readLock().unlock(); }
     }
 
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        lock.writeLock().lock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+        } finally { lock.writeLock().unlock(); }
     }
 
     public void close() throws BlockStoreException {
+        lock.writeLock().lock();
         try {
             buffer.force();
+            // Record which state of the ring the index describes, so the next open can skip rebuilding it.
+            byte[] headHash = new byte[32];
+            buffer.position(8);
+            buffer.get(headHash);
+            indexBuffer.putInt(12, getRingCursor(buffer));
+            indexBuffer.position(16);
+            indexBuffer.put(headHash);
+            indexBuffer.force();
+            indexBuffer.putInt(4, 1);
+            indexBuffer.force();
+            indexBuffer = null;
+            indexFile.close();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -283,6 +490,24 @@ public class SPVBlockStore implements BlockStore {
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
+    // Index file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes, 1 if the index was written by a clean close and 0 whilst the store is open
+    //   4 bytes number of headers in the ring
+    //   4 bytes ring cursor at the time of the clean close
+    //   32 bytes hash of the chain head at the time of the clean close
+    //   Padding up to 64 bytes.
+    //
+    // Followed by a power of two number of slots, at least twice the number of headers (8 bytes each)
+    //   4 bytes of the block hash (the same ones used by Sha256Hash.hashCode)
+    //   4 bytes ring record number plus one, or zero for an empty slot
+    //
+    // Collisions are resolved by linear probing.
+    protected static final String INDEX_FILE_SUFFIX = ".idx";
+    protected static final String INDEX_MAGIC = "SPVI";
+    protected static final int INDEX_PROLOGUE_BYTES = 64;
+    protected static final int INDEX_SLOT_SIZE = 8;
+
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
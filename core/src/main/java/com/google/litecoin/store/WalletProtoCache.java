@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.store;
+
+import com.google.litecoin.core.Sha256Hash;
+import com.google.litecoin.core.Transaction;
+import com.google.litecoin.core.TransactionConfidence;
+import com.google.litecoin.core.WalletTransaction;
+import org.litecoinj.wallet.Protos;
+
+import javax.annotation.Nullable;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>Keeps the protocol buffer form of each transaction of a {@link com.google.litecoin.core.Wallet} between saves, so
+ * that {@link WalletProtobufSerializer#takeSnapshot(com.google.litecoin.core.Wallet, WalletProtoCache)} only has to
+ * convert the transactions that changed since the last one. The wallet invalidates a transaction whenever it changes
+ * its pool, spent outputs, confidence or the blocks it appears in. As a safety net an entry is also rebuilt when the
+ * pool, confidence type, number of broadcasting peers or number of blocks it appears in no longer match. Depths that
+ * only changed because blocks were added are patched into the snapshot instead.</p>
+ *
+ * <p>All methods must be called with the wallet lock held.</p>
+ */
+public class WalletProtoCache {
+    private static class Entry {
+        final Protos.Transaction proto;
+        final WalletTransaction.Pool pool;
+        final TransactionConfidence.ConfidenceType type;
+        final int broadcastPeers;
+        final int appearances;
+
+        Entry(Protos.Transaction proto, WalletTransaction.Pool pool, Transaction tx) {
+            TransactionConfidence confidence = tx.getConfidence();
+            this.proto = proto;
+            this.pool = pool;
+            this.type = confidence.getConfidenceType();
+            this.broadcastPeers = confidence.numBroadcastPeers();
+            this.appearances = countAppearances(tx);
+        }
+    }
+
+    private static int countAppearances(Transaction tx) {
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        return appearsIn == null ? 0 : appearsIn.size();
+    }
+
+    private Map<Transaction, Entry> entries = new IdentityHashMap<Transaction, Entry>();
+    // Entries used by the snapshot being taken. Replaces the entries when it is done, which drops the transactions
+    // that are no longer in the wallet.
+    private Map<Transaction, Entry> used = new IdentityHashMap<Transaction, Entry>();
+
+    /** Forgets the given transaction, so it is converted again on the next snapshot. */
+    public void invalidate(Transaction tx) {
+        entries.remove(tx);
+    }
+
+    /** Forgets all transactions, for instance after a re-org. */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /** Returns the number of transactions held. */
+    public int size() {
+        return entries.size();
+    }
+
+    @Nullable
+    Protos.Transaction get(WalletTransaction wtx) {
+        Transaction tx = wtx.getTransaction();
+        Entry entry = entries.get(tx);
+        if (entry == null || entry.pool != wtx.getPool())
+            return null;
+        TransactionConfidence confidence = tx.getConfidence();
+        if (entry.type != confidence.getConfidenceType() || entry.broadcastPeers != confidence.numBroadcastPeers())
+            return null;
+        if (entry.appearances != countAppearances(tx))
+            return null;
+        used.put(tx, entry);
+        return entry.proto;
+    }
+
+    void put(WalletTransaction wtx, Protos.Transaction proto) {
+        Transaction tx = wtx.getTransaction();
+        used.put(tx, new Entry(proto, wtx.getPool(), tx));
+    }
+
+    void snapshotTaken() {
+        entries = used;
+        used = new IdentityHashMap<Transaction, Entry>(entries.size());
+    }
+}
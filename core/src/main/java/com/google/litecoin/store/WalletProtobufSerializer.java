@@ -24,20 +24,30 @@ import com.google.litecoin.crypto.KeyCrypterScrypt;
 import com.google.litecoin.script.Script;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.WireFormat;
 import org.litecoinj.wallet.Protos;
 import org.litecoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -70,6 +80,12 @@ public class WalletProtobufSerializer {
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    private boolean loadHistoryLazily = false;
+
+    // For reading wallets field by field. A tag is the field number followed by three bits of wire type.
+    private static final int TAG_TYPE_MASK = 7;
+    private static final int TRANSACTION_TAG =
+            (Protos.Wallet.TRANSACTION_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
 
     public WalletProtobufSerializer() {
         txMap = new HashMap<ByteString, Transaction>();
@@ -84,6 +100,20 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * <p>If this property is set to true, spent and dead transactions are kept as records of their protocol buffers in
+     * the {@link WalletHistory} of loaded wallets, and only turned into {@link Transaction}s when something asks for
+     * them. Only the unspent and pending pools, and the history they are connected to, are loaded right away.
+     * {@link #readWallet(java.io.InputStream)} then also reads the stream field by field, without ever holding the
+     * whole wallet as a protocol buffer. This makes loading large wallets faster and keeps their history out of the
+     * heap, at the price of loading it when it is browsed.</p>
+     *
+     * <p>Defaults to false.</p>
+     */
+    public void setLoadHistoryLazily(boolean value) {
+        loadHistoryLazily = value;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -111,51 +141,53 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return takeSnapshot(wallet, null).toProto();
+    }
+
+    /**
+     * <p>Takes a snapshot of the given wallet that {@link WalletSnapshot#toProto()} turns into the same protocol
+     * buffer as {@link #walletToProto(Wallet)} would have, but without needing the wallet any more. Transactions
+     * are taken from the given cache if they haven't changed since the last snapshot, and put into it
+     * otherwise.</p>
+     *
+     * <p>The wallet lock should be held, so that the snapshot is consistent. Saving is then done without it.</p>
+     */
+    public WalletSnapshot takeSnapshot(Wallet wallet, @Nullable WalletProtoCache cache) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
-        }
-
-        for (ECKey key : wallet.getKeys()) {
-            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
-                                                         // .setLabel() TODO
-                                                            .setType(Protos.Key.Type.ORIGINAL);
-            if (key.getPrivKeyBytes() != null)
-                keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
-
-            EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
-            if (encryptedPrivateKey != null) {
-                // Key is encrypted.
-                Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
-                    .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
-                    .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
-
-                if (key.getKeyCrypter() == null) {
-                    throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
-                } else {
-                    // If it is a Scrypt + AES encrypted key, set the persisted key type.
-                    if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
-                        keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
-                    } else {
-                        throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
-                                ". This WalletProtobufSerialiser does not understand that type of encryption.");
-                    }
+        WalletSnapshot snapshot = new WalletSnapshot(walletBuilder);
+        for (WalletTransaction wtx : wallet.getLoadedWalletTransactions()) {
+            Protos.Transaction txProto = cache == null ? null : cache.get(wtx);
+            if (txProto == null) {
+                txProto = makeTxProto(wtx);
+                if (cache != null)
+                    cache.put(wtx, txProto);
+                snapshot.addTransaction(txProto, true);
+                continue;
+            }
+            snapshot.addTransaction(txProto, false);
+            // Blocks added since the transaction was converted bury it deeper.
+            if (txProto.getConfidence().getType() == Protos.TransactionConfidence.Type.BUILDING) {
+                TransactionConfidence confidence = wtx.getTransaction().getConfidence();
+                int depth = confidence.getDepthInBlocks();
+                if (depth != txProto.getConfidence().getDepth()) {
+                    BigInteger workDone = confidence.getWorkDone();
+                    snapshot.updateDepth(depth, workDone == null ? null : workDone.longValue());
                 }
-                keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
             }
-
-            // We serialize the public key even if the private key is present for speed reasons: we don't want to do
-            // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
-            // on mobile platforms.
-            keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
-            walletBuilder.addKey(keyBuilder);
         }
+        if (cache != null)
+            cache.snapshotTaken();
+        // The history that was never loaded is saved as it was read, apart from its depth.
+        WalletHistory history = wallet.getHistory();
+        snapshot.addRecords(history.getRecords(), history.getBlocksAdded(), history.getWorkAdded());
+
+        for (ECKey key : wallet.getKeys())
+            walletBuilder.addKey(makeKeyProto(key));
 
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
@@ -168,13 +200,7 @@ public class WalletProtobufSerializer {
         }
 
         // Populate the lastSeenBlockHash field.
-        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
-        if (lastSeenBlockHash != null) {
-            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
-            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
-        }
-        if (wallet.getLastBlockSeenTimeSecs() > 0)
-            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+        populateLastSeenBlock(wallet, walletBuilder);
 
         // Populate the scrypt parameters.
         KeyCrypter keyCrypter = wallet.getKeyCrypter();
@@ -203,9 +229,80 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
+        return snapshot;
+    }
+
+    /**
+     * <p>Returns a record for a {@link com.google.litecoin.wallet.WalletJournal}: a partial wallet holding the given
+     * transactions and keys, which have changed since the last record or snapshot, together with the last seen block
+     * and the small settings that are cheaper to repeat than to track. Watched scripts and encryption settings are
+     * only found in complete snapshots.</p>
+     *
+     * <p>The wallet lock should be held, so that the record is consistent.</p>
+     */
+    public Protos.Wallet changesToProto(Wallet wallet, Collection<WalletTransaction> transactions,
+                                        Collection<ECKey> keys) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        if (wallet.getDescription() != null)
+            walletBuilder.setDescription(wallet.getDescription());
+        for (WalletTransaction wtx : transactions)
+            walletBuilder.addTransaction(makeTxProto(wtx));
+        for (ECKey key : keys)
+            walletBuilder.addKey(makeKeyProto(key));
+        populateLastSeenBlock(wallet, walletBuilder);
+        if (wallet.getKeyRotationTime() != null)
+            walletBuilder.setKeyRotationTime(wallet.getKeyRotationTime().getTime() / 1000);
+        populateExtensions(wallet, walletBuilder);
+        walletBuilder.setVersion(wallet.getVersion());
         return walletBuilder.build();
     }
 
+    private static Protos.Key makeKeyProto(ECKey key) {
+        Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+                                                     // .setLabel() TODO
+                                                        .setType(Protos.Key.Type.ORIGINAL);
+        if (key.getPrivKeyBytes() != null)
+            keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+
+        EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
+        if (encryptedPrivateKey != null) {
+            // Key is encrypted.
+            Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
+                .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
+                .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+
+            if (key.getKeyCrypter() == null) {
+                throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
+            } else {
+                // If it is a Scrypt + AES encrypted key, set the persisted key type.
+                if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
+                    keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
+                } else {
+                    throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
+                            ". This WalletProtobufSerialiser does not understand that type of encryption.");
+                }
+            }
+            keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        }
+
+        // We serialize the public key even if the private key is present for speed reasons: we don't want to do
+        // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
+        // on mobile platforms.
+        keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
+        return keyBuilder.build();
+    }
+
+    private static void populateLastSeenBlock(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
+        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+        if (lastSeenBlockHash != null) {
+            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
+            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        }
+        if (wallet.getLastBlockSeenTimeSecs() > 0)
+            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+    }
+
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
         for (WalletExtension extension : wallet.getExtensions().values()) {
             Protos.Extension.Builder proto = Protos.Extension.newBuilder();
@@ -350,6 +447,13 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
+        if (loadHistoryLazily) {
+            try {
+                return readWalletLazily(input);
+            } catch (IOException e) {
+                throw new UnreadableWalletException("Could not load wallet file", e);
+            }
+        }
         Protos.Wallet walletProto = null;
         try {
             walletProto = parseToProto(input);
@@ -359,6 +463,17 @@ public class WalletProtobufSerializer {
 
         // System.out.println(TextFormat.printToString(walletProto));
 
+        return readWallet(walletProto);
+    }
+
+    /**
+     * Creates a wallet for the network named in the given protocol buffer and loads the wallet data into it, as
+     * {@link #readWallet(java.io.InputStream)} does after parsing.
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see
+     *         {@link #readWallet(java.io.InputStream)}).
+     */
+    public Wallet readWallet(Protos.Wallet walletProto) throws UnreadableWalletException {
         NetworkParameters params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
         Wallet wallet = new Wallet(params);
         readWallet(walletProto, wallet);
@@ -377,6 +492,180 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public void readWallet(Protos.Wallet walletProto, Wallet wallet) throws UnreadableWalletException {
+        if (!loadHistoryLazily) {
+            readWallet(walletProto, walletProto.getTransactionList(), null, wallet);
+            return;
+        }
+        SplitTransactions split = new SplitTransactions();
+        for (Protos.Transaction txProto : walletProto.getTransactionList())
+            split.add(txProto);
+        List<Protos.Transaction> eager;
+        try {
+            eager = split.takeEager();
+        } catch (InvalidProtocolBufferException e) {
+            throw new UnreadableWalletException("Could not parse transaction", e);
+        }
+        readWallet(walletProto, eager, split, wallet);
+    }
+
+    // Reads the wallet from the stream one field at a time. Transactions are split as they come in, and the other
+    // fields are copied into a wallet proto without any transactions, which is small.
+    private Wallet readWalletLazily(InputStream input) throws IOException, UnreadableWalletException {
+        CodedInputStream in = CodedInputStream.newInstance(input);
+        ByteArrayOutputStream skeletonBytes = new ByteArrayOutputStream();
+        CodedOutputStream skeleton = CodedOutputStream.newInstance(skeletonBytes);
+        SplitTransactions split = new SplitTransactions();
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0)
+                break;
+            if (tag == TRANSACTION_TAG) {
+                split.add(in.readRawBytes(in.readRawVarint32()));
+            } else {
+                copyField(tag, in, skeleton);
+            }
+            // The size limit is meant for single messages, not for the whole wallet.
+            in.resetSizeCounter();
+        }
+        skeleton.flush();
+        Protos.Wallet walletProto = Protos.Wallet.parseFrom(skeletonBytes.toByteArray());
+        Wallet wallet = new Wallet(NetworkParameters.fromID(walletProto.getNetworkIdentifier()));
+        readWallet(walletProto, split.takeEager(), split, wallet);
+        return wallet;
+    }
+
+    private static void copyField(int tag, CodedInputStream in, CodedOutputStream out) throws IOException {
+        out.writeRawVarint32(tag);
+        switch (tag & TAG_TYPE_MASK) {
+            case WireFormat.WIRETYPE_VARINT: out.writeRawVarint64(in.readRawVarint64()); break;
+            case WireFormat.WIRETYPE_FIXED64: out.writeRawLittleEndian64(in.readRawLittleEndian64()); break;
+            case WireFormat.WIRETYPE_FIXED32: out.writeRawLittleEndian32(in.readRawLittleEndian32()); break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED: out.writeBytesNoTag(in.readBytes()); break;
+            default: throw new InvalidProtocolBufferException("Unexpected wire type in wallet: " + tag);
+        }
+    }
+
+    /**
+     * The transactions of a wallet being read lazily, split into the protos to load now and the records of the spent
+     * and dead history, keyed by hash.
+     */
+    private static class SplitTransactions {
+        private final List<Protos.Transaction> eager = new ArrayList<Protos.Transaction>();
+        private final Map<ByteString, byte[]> records = new LinkedHashMap<ByteString, byte[]>();
+        private final Map<ByteString, WalletTransaction.Pool> recordPools =
+                new HashMap<ByteString, WalletTransaction.Pool>();
+
+        private static boolean isHistory(int poolNumber) {
+            return poolNumber == Protos.Transaction.Pool.SPENT_VALUE || poolNumber == Protos.Transaction.Pool.DEAD_VALUE;
+        }
+
+        void add(Protos.Transaction txProto) {
+            if (isHistory(txProto.getPool().getNumber()))
+                addRecord(txProto.getHash(), txProto.getPool().getNumber(), txProto.toByteArray());
+            else
+                eager.add(txProto);
+        }
+
+        // Only the hash and pool are read from a serialized transaction, unless it has to be loaded right away.
+        void add(byte[] bytes) throws IOException {
+            CodedInputStream in = CodedInputStream.newInstance(bytes);
+            ByteString hash = null;
+            int pool = -1;
+            while (true) {
+                int tag = in.readTag();
+                if (tag == 0)
+                    break;
+                int field = WireFormat.getTagFieldNumber(tag);
+                if (field == Protos.Transaction.HASH_FIELD_NUMBER)
+                    hash = in.readBytes();
+                else if (field == Protos.Transaction.POOL_FIELD_NUMBER)
+                    pool = in.readEnum();
+                else
+                    in.skipField(tag);
+            }
+            if (hash != null && isHistory(pool))
+                addRecord(hash, pool, bytes);
+            else
+                eager.add(Protos.Transaction.parseFrom(bytes));
+        }
+
+        private void addRecord(ByteString hash, int pool, byte[] bytes) {
+            records.put(hash, bytes);
+            recordPools.put(hash, WalletTransaction.Pool.valueOf(pool));
+        }
+
+        /**
+         * Returns the transactions to load now: the unspent and pending ones, the records spending their outputs or
+         * overriding them, recursively, and the records that pending transactions spend, so that the transactions
+         * which may still be killed by a double spend have their inputs connected. The rest stays history.
+         */
+        List<Protos.Transaction> takeEager() throws InvalidProtocolBufferException {
+            List<Protos.Transaction> result = new ArrayList<Protos.Transaction>(eager.size());
+            ArrayDeque<Protos.Transaction> work = new ArrayDeque<Protos.Transaction>(eager);
+            eager.clear();
+            while (!work.isEmpty()) {
+                Protos.Transaction txProto = work.poll();
+                result.add(txProto);
+                Protos.Transaction.Pool pool = txProto.getPool();
+                if (pool == Protos.Transaction.Pool.PENDING || pool == Protos.Transaction.Pool.PENDING_INACTIVE ||
+                        pool == Protos.Transaction.Pool.INACTIVE) {
+                    for (Protos.TransactionInput input : txProto.getTransactionInputList())
+                        promote(input.getTransactionOutPointHash(), work);
+                }
+                for (Protos.TransactionOutput output : txProto.getTransactionOutputList()) {
+                    if (output.hasSpentByTransactionHash())
+                        promote(output.getSpentByTransactionHash(), work);
+                }
+                if (txProto.getConfidence().hasOverridingTransaction())
+                    promote(txProto.getConfidence().getOverridingTransaction(), work);
+            }
+            return result;
+        }
+
+        private void promote(ByteString hash, ArrayDeque<Protos.Transaction> work)
+                throws InvalidProtocolBufferException {
+            byte[] bytes = records.remove(hash);
+            if (bytes == null)
+                return;
+            recordPools.remove(hash);
+            work.add(Protos.Transaction.parseFrom(bytes));
+        }
+
+        void addTo(WalletHistory history, WalletHistory.Loader loader) {
+            history.setLoader(loader);
+            for (Map.Entry<ByteString, byte[]> entry : records.entrySet())
+                history.add(recordPools.get(entry.getKey()), byteStringToHash(entry.getKey()), entry.getValue());
+            log.info("Left {} spent and dead transactions to be loaded when needed", records.size());
+        }
+    }
+
+    // Reads records of the history as they were written by makeTxProto. The overriding transaction of a dead one is
+    // looked up by the history afterwards, as it may not be loaded yet.
+    private class HistoryLoader implements WalletHistory.Loader {
+        private final NetworkParameters params;
+
+        HistoryLoader(NetworkParameters params) {
+            this.params = params;
+        }
+
+        @Override
+        public Transaction load(Protos.Transaction txProto) {
+            try {
+                Transaction tx = makeTransaction(txProto, params);
+                if (txProto.hasConfidence()) {
+                    Protos.TransactionConfidence confidenceProto =
+                            txProto.getConfidence().toBuilder().clearOverridingTransaction().build();
+                    readConfidence(tx, confidenceProto, tx.getConfidence());
+                }
+                return tx;
+            } catch (UnreadableWalletException e) {
+                throw new IllegalStateException("Unreadable wallet history record", e);
+            }
+        }
+    }
+
+    private void readWallet(Protos.Wallet walletProto, List<Protos.Transaction> transactions,
+                            @Nullable SplitTransactions history, Wallet wallet) throws UnreadableWalletException {
         // Read the scrypt parameters that specify how encryption and decryption is performed.
         if (walletProto.hasEncryptionParameters()) {
             Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
@@ -431,16 +720,19 @@ public class WalletProtobufSerializer {
         wallet.addWatchedScripts(scripts);
 
         // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+        for (Protos.Transaction txProto : transactions) {
             readTransaction(txProto, wallet.getParams());
         }
 
         // Update transaction outputs to point to inputs that spend them
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+        for (Protos.Transaction txProto : transactions) {
             WalletTransaction wtx = connectTransactionOutputs(txProto);
             wallet.addWalletTransaction(wtx);
         }
 
+        if (history != null)
+            history.addTo(wallet.getHistory(), new HistoryLoader(wallet.getParams()));
+
         // Update the lastBlockSeenHash.
         if (!walletProto.hasLastSeenBlockHash()) {
             wallet.setLastBlockSeenHash(null);
@@ -505,6 +797,14 @@ public class WalletProtobufSerializer {
     }
 
     private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+        Transaction tx = makeTransaction(txProto, params);
+        if (txMap.containsKey(txProto.getHash()))
+            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
+        txMap.put(txProto.getHash(), tx);
+    }
+
+    private static Transaction makeTransaction(Protos.Transaction txProto, NetworkParameters params)
+            throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -558,9 +858,7 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format("Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(Protos.Transaction txProto) throws UnreadableWalletException {
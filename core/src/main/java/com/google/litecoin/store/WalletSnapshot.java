@@ -0,0 +1,137 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.store;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.litecoinj.wallet.Protos;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>The state of a wallet at one point in time, in a form that can be turned into a protocol buffer without the
+ * wallet lock. Taken by
+ * {@link WalletProtobufSerializer#takeSnapshot(com.google.litecoin.core.Wallet, WalletProtoCache)} whilst the wallet
+ * is locked, which is cheap when most transactions come from a {@link WalletProtoCache}. Assembling
+ * and serializing the protocol buffer and writing it to disk then happens after the lock was released.</p>
+ *
+ * <p>Snapshots are numbered in the order they were taken, so writers can tell a stale one from a fresh one.</p>
+ */
+public class WalletSnapshot {
+    private static final AtomicLong lastSequenceNumber = new AtomicLong();
+
+    // A depth that changed only because blocks were added since the transaction was converted.
+    private static class DepthUpdate {
+        final int index;
+        final int depth;
+        @Nullable final Long workDone;
+
+        DepthUpdate(int index, int depth, @Nullable Long workDone) {
+            this.index = index;
+            this.depth = depth;
+            this.workDone = workDone;
+        }
+    }
+
+    private final long sequenceNumber;
+    private final Protos.Wallet.Builder walletBuilder;
+    private final List<Protos.Transaction> transactions;
+    private final List<DepthUpdate> depthUpdates = new ArrayList<DepthUpdate>();
+    private int convertedTransactions;
+    // Records of the wallet history that were never loaded, and the blocks and work their depths lack.
+    private List<byte[]> records = Collections.emptyList();
+    private int recordBlocksAdded;
+    private BigInteger recordWorkAdded = BigInteger.ZERO;
+    private Protos.Wallet proto;
+
+    WalletSnapshot(Protos.Wallet.Builder walletBuilder) {
+        this.sequenceNumber = lastSequenceNumber.incrementAndGet();
+        this.walletBuilder = walletBuilder;
+        this.transactions = new ArrayList<Protos.Transaction>();
+    }
+
+    void addTransaction(Protos.Transaction tx, boolean converted) {
+        transactions.add(tx);
+        if (converted)
+            convertedTransactions++;
+    }
+
+    void updateDepth(int depth, @Nullable Long workDone) {
+        depthUpdates.add(new DepthUpdate(transactions.size() - 1, depth, workDone));
+    }
+
+    void addRecords(List<byte[]> records, int blocksAdded, BigInteger workAdded) {
+        this.records = records;
+        this.recordBlocksAdded = blocksAdded;
+        this.recordWorkAdded = workAdded;
+    }
+
+    /** Returns the protocol buffer of the wallet, building it the first time this is called. */
+    public synchronized Protos.Wallet toProto() {
+        if (proto != null)
+            return proto;
+        for (DepthUpdate update : depthUpdates) {
+            Protos.Transaction tx = transactions.get(update.index);
+            Protos.TransactionConfidence.Builder confidence = tx.getConfidence().toBuilder().setDepth(update.depth);
+            if (update.workDone != null)
+                confidence.setWorkDone(update.workDone);
+            transactions.set(update.index, tx.toBuilder().setConfidence(confidence).build());
+        }
+        for (byte[] record : records)
+            transactions.add(parseRecord(record));
+        records = Collections.emptyList();
+        proto = walletBuilder.addAllTransaction(transactions).build();
+        return proto;
+    }
+
+    private Protos.Transaction parseRecord(byte[] record) {
+        Protos.Transaction tx;
+        try {
+            tx = Protos.Transaction.parseFrom(record);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Corrupt wallet history record", e);
+        }
+        Protos.TransactionConfidence confidence = tx.getConfidence();
+        if (recordBlocksAdded == 0 || confidence.getType() != Protos.TransactionConfidence.Type.BUILDING)
+            return tx;
+        Protos.TransactionConfidence.Builder builder = confidence.toBuilder();
+        if (confidence.hasDepth())
+            builder.setDepth(confidence.getDepth() + recordBlocksAdded);
+        if (confidence.hasWorkDone())
+            builder.setWorkDone(confidence.getWorkDone() + recordWorkAdded.longValue());
+        return tx.toBuilder().setConfidence(builder).build();
+    }
+
+    /** Returns a number that is higher for snapshots taken later. */
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /** Returns how many transactions the snapshot holds, including records of the wallet history. */
+    public synchronized int getTransactionCount() {
+        return transactions.size() + records.size();
+    }
+
+    /** Returns how many of the transactions had to be converted whilst the wallet was locked. */
+    public int getConvertedTransactionCount() {
+        return convertedTransactions;
+    }
+}
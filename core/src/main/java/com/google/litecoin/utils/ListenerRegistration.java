@@ -28,6 +28,9 @@ public class ListenerRegistration<T> {
 
     public ListenerRegistration(T listener, Executor executor) {
         this.listener = listener;
+        // Keep the events of each listener in order, but let different listeners run in parallel.
+        if (executor instanceof UserThreadDispatcher)
+            executor = ((UserThreadDispatcher) executor).forKey(listener);
         this.executor = executor;
     }
 
@@ -16,15 +16,13 @@
 
 package com.google.litecoin.utils;
 
-import com.google.common.util.concurrent.Callables;
 import com.google.common.util.concurrent.CycleDetectingLockFactory;
-import com.google.common.util.concurrent.Futures;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.lang.ref.WeakReference;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -37,12 +35,15 @@ public class Threading {
     /**
      * An executor with one thread that is intended for running event listeners on. This ensures all event listener code
      * runs without any locks being held. It's intended for the API user to run things on. Callbacks registered by
-     * bitcoinj internally shouldn't normally run here, although currently there are a few exceptions.
+     * bitcoinj internally shouldn't normally run here, although currently there are a few exceptions.<p>
+     *
+     * If one slow listener shouldn't hold up all others, set this to a {@link UserThreadDispatcher} with more threads
+     * before any bitcoinj objects are created. Each listener then still sees its events in order.
      */
     public static Executor USER_THREAD;
 
     // Default value for USER_THREAD.
-    private static final ExecutorService SINGLE_THREADED_EXECUTOR;
+    private static final UserThreadDispatcher SINGLE_THREADED_DISPATCHER;
 
     /**
      * A dummy executor that just invokes the runnable immediately. Use this over
@@ -52,25 +53,22 @@ public class Threading {
      */
     public static final Executor SAME_THREAD;
 
-    // For safety reasons keep track of the thread we use to run user-provided event listeners to avoid deadlock.
-    private static volatile WeakReference<Thread> vUserThread;
-
     /**
-     * Put a dummy task into the queue and wait for it to be run. Because it's single threaded, this means all
-     * tasks submitted before this point are now completed. Usually you won't want to use this method - it's a
-     * convenience primarily used in unit testing. If you want to wait for an event to be called the right thing
-     * to do is usually to create a {@link com.google.common.util.concurrent.SettableFuture} and then call set
-     * on it. You can then either block on that future, compose it, add listeners to it and so on.
+     * Put a dummy task into the queue and wait for it to be run. This means all tasks submitted before this point are
+     * now completed, on every thread if {@link #USER_THREAD} is a {@link UserThreadDispatcher}. Usually you won't want
+     * to use this method - it's a convenience primarily used in unit testing. If you want to wait for an event to be
+     * called the right thing to do is usually to create a {@link com.google.common.util.concurrent.SettableFuture} and
+     * then call set on it. You can then either block on that future, compose it, add listeners to it and so on.
      */
     public static void waitForUserCode() {
         // If this assert fires it means you have a bug in your code - you can't call this method inside your own
         // event handlers because it would never return. If you aren't calling this method explicitly, then that
         // means there's a bug in bitcoinj.
-        if (vUserThread != null) {
-            checkState(vUserThread.get() != null && vUserThread.get() != Thread.currentThread(),
-                    "waitForUserCode() run on user code thread would deadlock.");
-        }
-        Futures.getUnchecked(SINGLE_THREADED_EXECUTOR.submit(Callables.returning(null)));
+        Executor userThread = USER_THREAD;
+        UserThreadDispatcher dispatcher = userThread instanceof UserThreadDispatcher ?
+                (UserThreadDispatcher) userThread : SINGLE_THREADED_DISPATCHER;
+        checkState(!dispatcher.isDispatcherThread(), "waitForUserCode() run on user code thread would deadlock.");
+        dispatcher.waitForAll();
     }
 
     /**
@@ -92,17 +90,8 @@ public class Threading {
         // from that point onwards.
         throwOnLockCycles();
 
-        SINGLE_THREADED_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
-            @Nonnull @Override public Thread newThread(@Nonnull Runnable runnable) {
-                Thread t = new Thread(runnable);
-                t.setName("bitcoinj user thread");
-                t.setDaemon(true);
-                t.setUncaughtExceptionHandler(uncaughtExceptionHandler);
-                vUserThread = new WeakReference<Thread>(t);
-                return t;
-            }
-        });
-        USER_THREAD = SINGLE_THREADED_EXECUTOR;
+        SINGLE_THREADED_DISPATCHER = new UserThreadDispatcher(1);
+        USER_THREAD = SINGLE_THREADED_DISPATCHER;
         SAME_THREAD = new Executor() {
             @Override
             public void execute(@Nonnull Runnable runnable) {
@@ -118,6 +107,10 @@ public class Threading {
         return factory.newReentrantLock(name);
     }
 
+    public static ReentrantReadWriteLock readWriteLock(String name) {
+        return factory.newReentrantReadWriteLock(name);
+    }
+
     public static void warnOnLockCycles() {
         setPolicy(CycleDetectingLockFactory.Policies.WARN);
     }
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An executor for event listeners that runs them on several threads whilst keeping the events of each listener in
+ * order. Every thread has its own queue, called a lane here, and tasks are spread over the lanes by a key: tasks
+ * queued with the same key run one after the other in the order they were queued, whilst tasks with different keys
+ * may run in parallel. A {@link ListenerRegistration} for a dispatcher keys its events by listener, so a slow
+ * listener only holds up the listeners that happen to share its lane. Tasks queued with {@link #execute(Runnable)}
+ * all go to the first lane. To use one for all listeners that don't ask for another executor, set
+ * {@link Threading#USER_THREAD} to it before any bitcoinj objects are created.</p>
+ *
+ * <p>Queues can be bounded. A thread queuing onto a full lane then waits for room for a while, which slows down
+ * whatever produces the events instead of letting them pile up. It doesn't wait forever, as it may hold a lock that
+ * a listener is waiting for, and lane threads don't wait at all, as they would wait for each other.</p>
+ *
+ * <p>Queue depths and how long tasks waited in the queue are kept for monitoring.</p>
+ */
+public class UserThreadDispatcher implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(UserThreadDispatcher.class);
+
+    private static class Task {
+        final Runnable runnable;
+        final long queuedAtNanos;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+            this.queuedAtNanos = System.nanoTime();
+        }
+    }
+
+    private class Lane implements Executor, Runnable {
+        @GuardedBy("this") private final ArrayDeque<Task> queue = new ArrayDeque<Task>();
+        @GuardedBy("this") private long tasksRun;
+        @GuardedBy("this") private long totalLatencyNanos;
+        @GuardedBy("this") private long maxLatencyNanos;
+        @GuardedBy("this") private long overflows;
+        private final Thread thread;
+
+        Lane(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void execute(@Nonnull Runnable runnable) {
+            Task task = new Task(runnable);
+            synchronized (this) {
+                if (queue.size() >= queueCapacity && !isDispatcherThread()) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                    long remaining;
+                    while (queue.size() >= queueCapacity && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    if (queue.size() >= queueCapacity)
+                        overflows++;
+                }
+                queue.add(task);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                synchronized (this) {
+                    while (queue.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // Lane threads are never interrupted by us, so carry on.
+                        }
+                    }
+                    task = queue.poll();
+                    long latency = System.nanoTime() - task.queuedAtNanos;
+                    tasksRun++;
+                    totalLatencyNanos += latency;
+                    maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                    // Let producers waiting for room carry on.
+                    notifyAll();
+                }
+                try {
+                    task.runnable.run();
+                } catch (Throwable throwable) {
+                    Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                    if (handler != null)
+                        handler.uncaughtException(thread, throwable);
+                    else
+                        log.error("Exception in user code", throwable);
+                }
+            }
+        }
+    }
+
+    private final Lane[] lanes;
+    private final int queueCapacity;
+    private final long maxWaitMillis;
+
+    /** Creates a dispatcher with the given number of threads and unbounded queues. */
+    public UserThreadDispatcher(int threads) {
+        this(threads, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Creates a dispatcher with the given number of threads, whose queues hold up to the given number of tasks before
+     * threads queuing more wait for room, for up to the given time.
+     */
+    public UserThreadDispatcher(int threads, int queueCapacity, long maxWaitMillis) {
+        checkArgument(threads > 0);
+        checkArgument(queueCapacity > 0);
+        this.queueCapacity = queueCapacity;
+        this.maxWaitMillis = maxWaitMillis;
+        lanes = new Lane[threads];
+        for (int i = 0; i < threads; i++)
+            lanes[i] = new Lane(threads == 1 ? "bitcoinj user thread" : "bitcoinj user thread " + i);
+        for (Lane lane : lanes)
+            lane.thread.start();
+    }
+
+    /** Queues the given task on the first lane, after the other tasks queued there. */
+    @Override
+    public void execute(@Nonnull Runnable runnable) {
+        lanes[0].execute(runnable);
+    }
+
+    /**
+     * Returns an executor that runs tasks one after the other in the order they were queued, after other tasks
+     * queued for the same key.
+     */
+    public Executor forKey(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    /** Returns true if called from one of the threads of this dispatcher. */
+    public boolean isDispatcherThread() {
+        Thread current = Thread.currentThread();
+        for (Lane lane : lanes) {
+            if (lane.thread == current)
+                return true;
+        }
+        return false;
+    }
+
+    /** Waits until all tasks queued before this call have run. Must not be called from a dispatcher thread. */
+    public void waitForAll() {
+        checkState(!isDispatcherThread(), "waitForAll() run on a dispatcher thread would deadlock.");
+        final CountDownLatch latch = new CountDownLatch(lanes.length);
+        for (Lane lane : lanes) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Returns the number of threads, and so of lanes. */
+    public int getThreadCount() {
+        return lanes.length;
+    }
+
+    /** Returns the number of tasks waiting to run, over all lanes. */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                depth += lane.queue.size();
+            }
+        }
+        return depth;
+    }
+
+    /** Returns the number of tasks waiting to run on the busiest lane. */
+    public int getMaxQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                depth = Math.max(depth, lane.queue.size());
+            }
+        }
+        return depth;
+    }
+
+    /** Returns the number of tasks that have been started so far. */
+    public long getTaskCount() {
+        long count = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                count += lane.tasksRun;
+            }
+        }
+        return count;
+    }
+
+    /** Returns how long tasks waited in their queue on average, in milliseconds. */
+    public double getAverageLatencyMillis() {
+        long count = 0, total = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                count += lane.tasksRun;
+                total += lane.totalLatencyNanos;
+            }
+        }
+        return count == 0 ? 0 : total / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /** Returns the longest time a task waited in its queue, in milliseconds. */
+    public long getMaxLatencyMillis() {
+        long max = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                max = Math.max(max, lane.maxLatencyNanos);
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(max);
+    }
+
+    /** Returns how often a task was queued onto a full lane after waiting for room timed out. */
+    public long getOverflowCount() {
+        long count = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                count += lane.overflows;
+            }
+        }
+        return count;
+    }
+}
@@ -16,17 +16,26 @@
 
 package com.google.litecoin.wallet;
 
+import com.google.litecoin.core.Utils;
 import com.google.litecoin.core.Wallet;
+import com.google.litecoin.store.WalletSnapshot;
 import com.google.litecoin.utils.Threading;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.MessageLite;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -34,7 +43,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * A class that handles atomic and optionally delayed writing of the wallet file to disk. In future: backups too.
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
- * and disk IO on a background thread performance can be improved.
+ * and disk IO on a background thread performance can be improved. The wallet itself is only locked whilst a
+ * {@link com.google.litecoin.store.WalletSnapshot} is taken, not whilst it is serialized and written.
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
@@ -46,8 +56,23 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    private final AtomicBoolean compactionPending;
+    private final Callable<Void> compactor;
+
+    // True on the auto-save thread, whose own saves can't be waited for without deadlocking.
+    private final ThreadLocal<Boolean> onSaveThread = new ThreadLocal<Boolean>();
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal vJournal;
+
+    // Snapshots may be taken in one order and reach the disk in another, so the older ones are skipped.
+    private final Object writeLock = new Object();
+    @GuardedBy("writeLock") private long lastWrittenSequenceNumber;
+
+    private final AtomicInteger queuedChanges = new AtomicInteger();
+    private final AtomicLong saveCount = new AtomicLong();
+    private volatile long vLastSaveTime;
+    private volatile long vLastLockedTime;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -69,7 +94,17 @@ public class WalletFiles {
         final ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
                 .setDaemon(true)
                 .setNameFormat("Wallet autosave thread")
-                .setPriority(Thread.MIN_PRIORITY);  // Avoid competing with the GUI thread.
+                .setPriority(Thread.MIN_PRIORITY)  // Avoid competing with the GUI thread.
+                .setThreadFactory(new ThreadFactory() {
+                    @Override public Thread newThread(final Runnable r) {
+                        return Executors.defaultThreadFactory().newThread(new Runnable() {
+                            @Override public void run() {
+                                onSaveThread.set(true);
+                                r.run();
+                            }
+                        });
+                    }
+                });
         Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
         if (handler != null)
             builder.setUncaughtExceptionHandler(handler);
@@ -96,6 +131,22 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.compactionPending = new AtomicBoolean();
+        this.compactor = new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                // Runs in an auto save thread.
+                try {
+                    WalletJournal journal = checkNotNull(vJournal);
+                    long now = System.currentTimeMillis();
+                    wallet.saveChangesTo(journal, true);
+                    journal.writeQueued(vListener);
+                    log.info("Wallet journal compacted in {}msec", System.currentTimeMillis() - now);
+                } finally {
+                    compactionPending.set(false);
+                }
+                return null;
+            }
+        };
     }
 
     /**
@@ -105,29 +156,171 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * <p>Switches to journaled saving: from the next save on, only what changed since the previous save is appended
+     * to a journal file next to the wallet file, and the wallet file is rewritten in the background once the journal
+     * has grown large. See {@link WalletJournal}. The next save rewrites the wallet file in full, to start the
+     * journal.</p>
+     *
+     * <p>Wallet files saved like this must be loaded with {@link Wallet#loadFromFile(java.io.File)}, which replays
+     * the journal. Journaling can't be switched off again.</p>
+     */
+    public void enableJournaling() {
+        if (vJournal == null)
+            vJournal = new WalletJournal(file);
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
-        // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
-        // but they will serialize (using different temp files).
+        // Can be called by any thread. The wallet is only locked whilst the snapshot is taken, so we can have two
+        // saves in flight: they use different temp files and a snapshot older than the one on disk is skipped.
         log.info("Saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
         saveNowInternal();
     }
 
+    /**
+     * Takes a snapshot of the wallet on the calling thread, which may hold the wallet lock, and writes it out on the
+     * auto-save thread straight away, ignoring any delay. Failures are logged and passed to the uncaught exception
+     * handler, if any.
+     *
+     * @return a future that completes once the snapshot is on disk. When called on the auto-save thread itself, for
+     * instance by a {@link Listener}, the write is queued behind the one in progress and the future returned is
+     * already done, as waiting for it there would never finish.
+     */
+    public Future<?> saveSoon() {
+        queuedChanges.incrementAndGet();
+        final long start = System.currentTimeMillis();
+        final WalletSnapshot snapshot = takeSnapshot();
+        Future<?> future = executor.submit(new Runnable() {
+            @Override public void run() {
+                // Runs in an auto save thread.
+                try {
+                    write(snapshot, start);
+                } catch (IOException e) {
+                    // Can't really do much at this point, just let the API user know.
+                    log.error("Failed to save wallet to disk!", e);
+                    Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                    if (handler != null)
+                        handler.uncaughtException(Thread.currentThread(), e);
+                }
+            }
+        });
+        if (Boolean.TRUE.equals(onSaveThread.get()))
+            return Futures.immediateFuture(null);
+        return future;
+    }
+
     private void saveNowInternal() throws IOException {
-        long now = System.currentTimeMillis();
-        File directory = file.getAbsoluteFile().getParentFile();
-        File temp = File.createTempFile("wallet", null, directory);
+        long start = System.currentTimeMillis();
+        write(takeSnapshot(), start);
+    }
+
+    // Takes what is to be saved whilst the wallet is locked. Returns null if the changes were handed to the journal.
+    @Nullable
+    private WalletSnapshot takeSnapshot() {
+        queuedChanges.set(0);
+        long start = System.currentTimeMillis();
+        WalletSnapshot snapshot = null;
+        final WalletJournal journal = vJournal;
+        if (journal != null)
+            wallet.saveChangesTo(journal, journal.needsSnapshot());
+        else
+            snapshot = wallet.takeSnapshot();
+        vLastLockedTime = System.currentTimeMillis() - start;
+        return snapshot;
+    }
+
+    private void write(@Nullable WalletSnapshot snapshot, long start) throws IOException {
         final Listener listener = vListener;
-        if (listener != null)
-            listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
-        if (listener != null)
-            listener.onAfterAutoSave(file);
-        log.info("Save completed in {}msec", System.currentTimeMillis() - now);
+        if (snapshot == null) {
+            final WalletJournal journal = checkNotNull(vJournal);
+            journal.writeQueued(listener);
+            finishSave(start, "journal is " + journal.getJournalSize() + " bytes");
+            if (journal.needsCompaction() && !compactionPending.getAndSet(true))
+                executor.submit(compactor);
+            return;
+        }
+        synchronized (writeLock) {
+            if (snapshot.getSequenceNumber() <= lastWrittenSequenceNumber)
+                return;  // A newer snapshot is already on disk.
+            File directory = file.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile("wallet", null, directory);
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            writeAtomically(snapshot.toProto(), temp, file);
+            lastWrittenSequenceNumber = snapshot.getSequenceNumber();
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+        }
+        finishSave(start, snapshot.getConvertedTransactionCount() + " of " + snapshot.getTransactionCount() +
+                " transactions converted");
+    }
+
+    private void finishSave(long start, String details) {
+        long time = System.currentTimeMillis() - start;
+        vLastSaveTime = time;
+        saveCount.incrementAndGet();
+        log.info("Save completed in {}msec, {}msec locked, {}", time, vLastLockedTime, details);
+    }
+
+    /** Returns how long the last save took, from taking the snapshot until it was on disk, in milliseconds. */
+    public long getLastSaveTime() {
+        return vLastSaveTime;
+    }
+
+    /** Returns how long the last save held the wallet lock whilst taking its snapshot, in milliseconds. */
+    public long getLastLockedTime() {
+        return vLastLockedTime;
+    }
+
+    /** Returns how many saves were completed. */
+    public long getSaveCount() {
+        return saveCount.get();
+    }
+
+    /** Returns how many wallet changes asked for a save since the last snapshot was taken. */
+    public int getQueuedChanges() {
+        return queuedChanges.get();
+    }
+
+    /**
+     * Writes the given message to the temporary file, syncs it to disk and renames it over the destination file. The
+     * temporary file is deleted if anything fails.
+     */
+    public static void writeAtomically(MessageLite message, File temp, File destFile) throws IOException {
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(temp);
+            message.writeTo(stream);
+            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
+            // to not write through to physical media for at least a few seconds, but this is the best we can do.
+            stream.flush();
+            stream.getFD().sync();
+            stream.close();
+            stream = null;
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = destFile.getCanonicalFile();
+                canonical.delete();
+                if (temp.renameTo(canonical))
+                    return;  // else fall through.
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(destFile)) {
+                throw new IOException("Failed to rename " + temp + " to " + destFile);
+            }
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+            if (temp.delete()) {
+                log.warn("Deleted temp file after failed save.");
+            }
+        }
     }
 
     /** Queues up a save in the background. Useful for not very important wallet changes. */
     public void saveLater() {
+        queuedChanges.incrementAndGet();
         if (savePending.getAndSet(true))
             return;   // Already pending.
         executor.schedule(saver, delay, delayTimeUnit);
@@ -0,0 +1,435 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.wallet;
+
+import com.google.litecoin.core.Wallet;
+import com.google.litecoin.store.WalletSnapshot;
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.litecoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Keeps a wallet file up to date by appending records of what changed instead of rewriting the whole wallet on
+ * every save. The wallet file holds a complete snapshot and a journal file next to it holds the records written since:
+ * transactions that were added, moved between pools or had their confidence changed, new keys and the last seen
+ * block. Once the journal has grown large compared to the snapshot a new snapshot is written, in the background when
+ * driven by {@link WalletFiles}, and the journal starts again. {@link Wallet#loadFromFile(java.io.File)} replays the
+ * journal.</p>
+ *
+ * <p>Every snapshot carries a random generation number in a non-mandatory extension and its journal is named after
+ * it, so a journal is never replayed onto a snapshot it doesn't belong to. The journal of a new snapshot is created,
+ * and receives records as well as the current journal does, before the snapshot replaces the wallet file. Whenever
+ * the program stops, the wallet file and one of the journals agree.</p>
+ *
+ * <p>A wallet hands its changes over with {@link Wallet#saveChangesTo(WalletJournal, boolean)}, which calls
+ * {@link #addRecord(Protos.Wallet)} or {@link #addSnapshot(WalletSnapshot)} whilst holding the wallet lock so that
+ * they queue up in the order they were made. {@link #writeQueued(WalletFiles.Listener)} writes them out without
+ * the wallet lock.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The id of the wallet extension holding the generation of a snapshot. */
+    public static final String GENERATION_EXTENSION_ID = "org.litecoinj.wallet.JournalGeneration";
+
+    private static final byte[] MAGIC = "LTCWJRNL".getBytes(Charsets.US_ASCII);
+    private static final int HEADER_LENGTH = MAGIC.length + 8;
+    // The journal is compacted once it is bigger than the snapshot divided by this, as long as it has this many bytes.
+    private static final int COMPACTION_RATIO = 2;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    // A record or a snapshot, exactly one of which is set.
+    private static class Item {
+        @Nullable final Protos.Wallet record;
+        @Nullable final WalletSnapshot snapshot;
+
+        Item(@Nullable Protos.Wallet record, @Nullable WalletSnapshot snapshot) {
+            this.record = record;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static class Snapshot {
+        final Protos.Wallet proto;
+        final Journal journal;
+
+        Snapshot(Protos.Wallet proto, Journal journal) {
+            this.proto = proto;
+            this.journal = journal;
+        }
+    }
+
+    /** A journal file open for appending. */
+    private static class Journal {
+        final File file;
+        final FileOutputStream stream;
+        long size;
+
+        Journal(File file, long generation) throws IOException {
+            this.file = file;
+            this.stream = new FileOutputStream(file);
+            stream.write(MAGIC);
+            stream.write(Longs.toByteArray(generation));
+            stream.getFD().sync();
+            size = HEADER_LENGTH;
+        }
+
+        void append(byte[] record) throws IOException {
+            stream.write(record);
+            stream.getFD().sync();
+            size += record.length;
+        }
+
+        void discard() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.warn("Failed to close wallet journal {}: {}", file, e);
+            }
+            if (!file.delete())
+                log.warn("Failed to delete wallet journal {}", file);
+        }
+    }
+
+    private final File walletFile;
+    private final SecureRandom random = new SecureRandom();
+    // Records and snapshots in the order the wallet made them.
+    private final Queue<Item> queue = new ConcurrentLinkedQueue<Item>();
+
+    @GuardedBy("this") @Nullable private Journal current;
+    // Snapshots taken but not yet written, oldest first. Records go to their journals as well as to the current one.
+    @GuardedBy("this") private final List<Snapshot> pending = new ArrayList<Snapshot>();
+    @GuardedBy("this") private long snapshotSize;
+    @GuardedBy("this") private boolean snapshotFailed;
+    // Held whilst a snapshot is written, so they replace the wallet file one at a time.
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    /**
+     * Creates a journal for the given wallet file. Nothing is read: the first save has to be a snapshot, see
+     * {@link #needsSnapshot()}.
+     */
+    public WalletJournal(File walletFile) {
+        this.walletFile = walletFile;
+    }
+
+    /**
+     * Queues a record of changes, built by
+     * {@link com.google.litecoin.store.WalletProtobufSerializer#changesToProto}.
+     */
+    public void addRecord(Protos.Wallet record) {
+        queue.add(new Item(record, null));
+    }
+
+    /** Queues a complete snapshot of the wallet. It is turned into a protocol buffer when written. */
+    public void addSnapshot(WalletSnapshot snapshot) {
+        queue.add(new Item(null, snapshot));
+    }
+
+    /** Returns true if the next save must be a snapshot, because none was written yet or writing failed. */
+    public synchronized boolean needsSnapshot() {
+        return snapshotFailed || (current == null && pending.isEmpty());
+    }
+
+    /** Returns true if the journal has grown large enough that a new snapshot should be taken. */
+    public synchronized boolean needsCompaction() {
+        return current != null && pending.isEmpty() && current.size > MIN_COMPACTION_SIZE &&
+                current.size > snapshotSize / COMPACTION_RATIO;
+    }
+
+    /** Returns the size of the current journal file in bytes, or zero if there is none yet. */
+    public synchronized long getJournalSize() {
+        return current == null ? 0 : current.size;
+    }
+
+    /**
+     * Writes out everything queued so far. Records are appended to the journal and synced, and then the newest
+     * snapshot, if any, is written over the wallet file using a temporary file and a rename. When this returns
+     * everything queued before the call is on disk, even if another thread did the writing.
+     *
+     * @param listener told about the temporary file of a snapshot, if not null.
+     */
+    public void writeQueued(@Nullable WalletFiles.Listener listener) throws IOException {
+        appendQueued();
+        writeSnapshot(listener);
+    }
+
+    private synchronized void appendQueued() throws IOException {
+        try {
+            appendQueuedUnchecked();
+        } catch (IOException e) {
+            // Whatever was polled is lost, so only a new snapshot can make the files whole again.
+            snapshotFailed = true;
+            throw e;
+        }
+    }
+
+    @GuardedBy("this")
+    private void appendQueuedUnchecked() throws IOException {
+        Item item;
+        while ((item = queue.poll()) != null) {
+            if (item.snapshot != null) {
+                long generation = random.nextLong();
+                Journal journal = new Journal(journalFile(walletFile, generation), generation);
+                pending.add(new Snapshot(withGeneration(item.snapshot.toProto(), generation), journal));
+                continue;
+            }
+            if (current == null && pending.isEmpty()) {
+                // Can only happen after a failed snapshot. The next save will be a snapshot, which includes this.
+                log.warn("Dropping a wallet journal record that has no snapshot to go with");
+                continue;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            item.record.writeDelimitedTo(bytes);
+            byte[] record = bytes.toByteArray();
+            if (current != null)
+                current.append(record);
+            for (Snapshot snapshot : pending)
+                snapshot.journal.append(record);
+        }
+    }
+
+    private void writeSnapshot(@Nullable WalletFiles.Listener listener) throws IOException {
+        snapshotLock.lock();
+        try {
+            Snapshot snapshot;
+            synchronized (this) {
+                if (pending.isEmpty())
+                    return;
+                // Older snapshots are superseded by the newest one.
+                snapshot = pending.get(pending.size() - 1);
+            }
+            try {
+                File directory = walletFile.getAbsoluteFile().getParentFile();
+                File temp = File.createTempFile("wallet", null, directory);
+                if (listener != null)
+                    listener.onBeforeAutoSave(temp);
+                WalletFiles.writeAtomically(snapshot.proto, temp, walletFile);
+                if (listener != null)
+                    listener.onAfterAutoSave(walletFile);
+            } catch (IOException e) {
+                synchronized (this) {
+                    dropPendingUpTo(snapshot, true);
+                    snapshotFailed = true;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                dropPendingUpTo(snapshot, false);
+                if (current != null)
+                    current.discard();
+                current = snapshot.journal;
+                snapshotSize = walletFile.length();
+                snapshotFailed = false;
+                deleteStaleJournals();
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    @GuardedBy("this")
+    private void dropPendingUpTo(Snapshot last, boolean includingLast) {
+        Iterator<Snapshot> it = pending.iterator();
+        while (it.hasNext()) {
+            Snapshot snapshot = it.next();
+            if (snapshot != last || includingLast)
+                snapshot.journal.discard();
+            it.remove();
+            if (snapshot == last)
+                break;
+        }
+    }
+
+    // Removes journals left behind by a crash or by snapshots that failed to delete them.
+    @GuardedBy("this")
+    private void deleteStaleJournals() {
+        final Set<String> live = new HashSet<String>();
+        live.add(current.file.getName());
+        for (Snapshot snapshot : pending)
+            live.add(snapshot.journal.file.getName());
+        final String prefix = walletFile.getName() + ".";
+        File[] stale = walletFile.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(".journal") && !live.contains(name);
+            }
+        });
+        if (stale == null)
+            return;
+        for (File file : stale) {
+            if (!file.delete())
+                log.warn("Failed to delete stale wallet journal {}", file);
+        }
+    }
+
+    private static File journalFile(File walletFile, long generation) {
+        return new File(walletFile.getAbsoluteFile().getParentFile(),
+                walletFile.getName() + "." + Long.toHexString(generation) + ".journal");
+    }
+
+    private static Protos.Wallet withGeneration(Protos.Wallet snapshot, long generation) {
+        return snapshot.toBuilder().addExtension(Protos.Extension.newBuilder()
+                .setId(GENERATION_EXTENSION_ID)
+                .setMandatory(false)
+                .setData(ByteString.copyFrom(Longs.toByteArray(generation)))).build();
+    }
+
+    @Nullable
+    private static Long getGeneration(Protos.Wallet snapshot) {
+        for (Protos.Extension extension : snapshot.getExtensionList()) {
+            if (extension.getId().equals(GENERATION_EXTENSION_ID) && extension.getData().size() == 8)
+                return Longs.fromByteArray(extension.getData().toByteArray());
+        }
+        return null;
+    }
+
+    /**
+     * Reads the wallet file and, if it is a journaled snapshot with its journal next to it, replays the journal onto
+     * it. A record cut short by a crash at the end of the journal is ignored. Files that were not written by a
+     * journal are returned as they are.
+     */
+    public static Protos.Wallet read(File walletFile) throws IOException {
+        Protos.Wallet snapshot;
+        InputStream stream = new BufferedInputStream(new FileInputStream(walletFile));
+        try {
+            snapshot = Protos.Wallet.parseFrom(stream);
+        } finally {
+            stream.close();
+        }
+        Long generation = getGeneration(snapshot);
+        if (generation == null)
+            return snapshot;
+        File file = journalFile(walletFile, generation);
+        if (!file.exists()) {
+            log.warn("Wallet journal {} is missing, loading the snapshot alone", file);
+            return snapshot;
+        }
+        stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] header = new byte[HEADER_LENGTH];
+            if (stream.read(header) != HEADER_LENGTH ||
+                    !Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC) ||
+                    Longs.fromByteArray(Arrays.copyOfRange(header, MAGIC.length, HEADER_LENGTH)) != generation) {
+                log.warn("Wallet journal {} has a bad header, loading the snapshot alone", file);
+                return snapshot;
+            }
+            return replay(snapshot, stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static Protos.Wallet replay(Protos.Wallet snapshot, InputStream journal) throws IOException {
+        Protos.Wallet.Builder builder = snapshot.toBuilder();
+        Map<ByteString, Integer> txIndexes = new HashMap<ByteString, Integer>();
+        // The chain height each transaction was written at, to bring their depths up to date at the end.
+        List<Integer> writtenAt = new ArrayList<Integer>(builder.getTransactionCount());
+        int snapshotHeight = snapshot.hasLastSeenBlockHeight() ? snapshot.getLastSeenBlockHeight() : -1;
+        for (int i = 0; i < builder.getTransactionCount(); i++) {
+            txIndexes.put(builder.getTransaction(i).getHash(), i);
+            writtenAt.add(snapshotHeight);
+        }
+        Set<ByteString> pubKeys = new HashSet<ByteString>();
+        for (Protos.Key key : builder.getKeyList())
+            pubKeys.add(key.getPublicKey());
+
+        int records = 0;
+        while (true) {
+            Protos.Wallet record;
+            try {
+                record = Protos.Wallet.parseDelimitedFrom(journal);
+            } catch (InvalidProtocolBufferException e) {
+                log.warn("Ignoring a damaged record at the end of the wallet journal: {}", e.toString());
+                break;
+            }
+            if (record == null)
+                break;
+            records++;
+            int height = record.hasLastSeenBlockHeight() ? record.getLastSeenBlockHeight() : -1;
+            for (Protos.Transaction tx : record.getTransactionList()) {
+                Integer index = txIndexes.get(tx.getHash());
+                if (index == null) {
+                    txIndexes.put(tx.getHash(), builder.getTransactionCount());
+                    builder.addTransaction(tx);
+                    writtenAt.add(height);
+                } else {
+                    builder.setTransaction(index, tx);
+                    writtenAt.set(index, height);
+                }
+            }
+            for (Protos.Key key : record.getKeyList()) {
+                if (pubKeys.add(key.getPublicKey()))
+                    builder.addKey(key);
+            }
+            if (record.hasLastSeenBlockHash())
+                builder.setLastSeenBlockHash(record.getLastSeenBlockHash());
+            else
+                builder.clearLastSeenBlockHash();
+            if (record.hasLastSeenBlockHeight())
+                builder.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+            else
+                builder.clearLastSeenBlockHeight();
+            if (record.hasLastSeenBlockTimeSecs())
+                builder.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+            else
+                builder.clearLastSeenBlockTimeSecs();
+            if (record.hasDescription())
+                builder.setDescription(record.getDescription());
+            else
+                builder.clearDescription();
+            if (record.hasKeyRotationTime())
+                builder.setKeyRotationTime(record.getKeyRotationTime());
+            else
+                builder.clearKeyRotationTime();
+            if (record.hasVersion())
+                builder.setVersion(record.getVersion());
+            builder.clearExtension().addAllExtension(record.getExtensionList());
+        }
+
+        // Depths are stored, not derived, so move the ones written at older heights up to the last seen block. Work
+        // done stays as it was when the transaction was last written.
+        if (builder.hasLastSeenBlockHeight()) {
+            int height = builder.getLastSeenBlockHeight();
+            for (int i = 0; i < builder.getTransactionCount(); i++) {
+                int at = writtenAt.get(i);
+                if (at < 0 || at == height)
+                    continue;
+                Protos.Transaction tx = builder.getTransaction(i);
+                Protos.TransactionConfidence confidence = tx.getConfidence();
+                if (!tx.hasConfidence() || confidence.getType() != Protos.TransactionConfidence.Type.BUILDING ||
+                        !confidence.hasDepth())
+                    continue;
+                confidence = confidence.toBuilder().setDepth(confidence.getDepth() + height - at).build();
+                builder.setTransaction(i, tx.toBuilder().setConfidence(confidence));
+            }
+        }
+        log.info("Replayed {} wallet journal records", records);
+        return builder.build();
+    }
+}
@@ -25,6 +25,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static org.junit.Assert.*;
@@ -315,6 +317,64 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testDeserializeByteBuffer() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        // Some garbage, a transaction and the start of an addr message.
+        ByteBuffer buffer = ByteBuffer.allocate(3 + txMessage.length + addrMessage.length);
+        buffer.put(new byte[] { 1, 2, 3 }).put(txMessage).put(addrMessage, 0, addrMessage.length - 1);
+        buffer.flip();
+
+        Transaction tx = (Transaction) bs.deserialize(buffer);
+        assertEquals(tx, bs.deserialize(new ByteArrayInputStream(txMessage)));
+        assertEquals(3 + txMessage.length, buffer.position());
+
+        // The addr message is one byte short, so nothing is consumed until the rest arrives.
+        try {
+            bs.deserialize(buffer);
+            fail();
+        } catch (BufferUnderflowException e) {
+            // Expected.
+        }
+        assertEquals(3 + txMessage.length, buffer.position());
+        buffer.compact();
+        buffer.put(addrMessage[addrMessage.length - 1]);
+        buffer.flip();
+        AddressMessage a = (AddressMessage) bs.deserialize(buffer);
+        assertEquals(1, a.getAddresses().size());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testSerializeToPacket() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get(), true, true);
+        // A relayed message comes out as it came in, without being serialized again.
+        Transaction tx = (Transaction) bs.deserialize(new ByteArrayInputStream(txMessage));
+        assertArrayEquals(txMessage, bs.serializeToPacket(tx));
+
+        // A new message gets the same packet as from the stream based method.
+        Ping ping = new Ping(1234);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize("ping", ping.bitcoinSerialize(), bos);
+        assertArrayEquals(bos.toByteArray(), bs.serializeToPacket(ping));
+    }
+
+    @Test
+    public void testCachedPacket() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Transaction tx = (Transaction) bs.deserialize(new ByteArrayInputStream(txMessage));
+        // While a packet is cached every serialization returns that same array.
+        byte[] packet = bs.serializeToPacket(tx);
+        tx.setCachedPacket(packet);
+        assertSame(packet, bs.serializeToPacket(tx));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        assertArrayEquals(txMessage, bos.toByteArray());
+        tx.setCachedPacket(null);
+        assertNotSame(packet, bs.serializeToPacket(tx));
+        assertArrayEquals(packet, bs.serializeToPacket(tx));
+    }
+
     @Test
     /**
      * Tests serialization of an unknown message.
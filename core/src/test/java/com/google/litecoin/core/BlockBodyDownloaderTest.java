@@ -0,0 +1,164 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import com.google.litecoin.params.UnitTestParams;
+import com.google.litecoin.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BlockBodyDownloaderTest extends TestWithPeerGroup {
+    private FakeChannel p1, p2;
+    private Peer peer1, peer2;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(new MemoryBlockStore(UnitTestParams.get()));
+        peerGroup.startAndWait();
+        p1 = connectPeer(1);
+        p2 = connectPeer(2);
+        peer1 = peerOf(p1);
+        peer2 = peerOf(p2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+        super.tearDown();
+        peerGroup.stopAndWait();
+    }
+
+    private static List<Sha256Hash> hashes(int count) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < count; i++)
+            hashes.add(Sha256Hash.create(new byte[] { (byte) i }));
+        return hashes;
+    }
+
+    private BlockBodyDownloader createDownloader(int windowPerPeer) {
+        BlockBodyDownloader downloader = new BlockBodyDownloader(new ParallelHeaderVerifier(), windowPerPeer);
+        downloader.addPeer(peer1);
+        downloader.addPeer(peer2);
+        return downloader;
+    }
+
+    // Returns the blocks requested from the given channel since the last call.
+    private List<Sha256Hash> requested(FakeChannel channel) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        Object message;
+        while ((message = outbound(channel)) != null) {
+            if (message instanceof GetDataMessage)
+                for (InventoryItem item : ((GetDataMessage) message).getItems())
+                    hashes.add(item.hash);
+        }
+        return hashes;
+    }
+
+    @Test
+    public void windowLimit() throws Exception {
+        BlockBodyDownloader downloader = createDownloader(2);
+        List<Sha256Hash> hashes = hashes(6);
+        downloader.enqueue(hashes);
+        List<Sha256Hash> fromPeer1 = requested(p1);
+        List<Sha256Hash> fromPeer2 = requested(p2);
+        assertEquals(2, fromPeer1.size());
+        assertEquals(2, fromPeer2.size());
+        assertEquals(6, downloader.getPendingCount());
+
+        // Each block received makes room for one more request from that peer.
+        assertTrue(downloader.onBlockReceived(fromPeer1.get(0), peer1));
+        assertEquals(1, requested(p1).size());
+        assertTrue(requested(p2).isEmpty());
+        assertEquals(5, downloader.getPendingCount());
+        // Blocks nobody asked for are not ours.
+        assertFalse(downloader.onBlockReceived(fromPeer1.get(0), peer1));
+    }
+
+    @Test
+    public void reRequestsAfterDisconnect() throws Exception {
+        BlockBodyDownloader downloader = createDownloader(2);
+        downloader.enqueue(hashes(4));
+        List<Sha256Hash> fromPeer1 = requested(p1);
+        List<Sha256Hash> fromPeer2 = requested(p2);
+        assertEquals(2, fromPeer1.size());
+
+        downloader.removePeer(peer1);
+        // Peer 2's window is full, so the blocks lost with peer 1 wait until it has room.
+        assertTrue(requested(p2).isEmpty());
+        for (Sha256Hash hash : fromPeer2)
+            assertTrue(downloader.onBlockReceived(hash, peer2));
+        assertEquals(new HashSet<Sha256Hash>(fromPeer1), new HashSet<Sha256Hash>(requested(p2)));
+        for (Sha256Hash hash : fromPeer1)
+            assertTrue(downloader.onBlockReceived(hash, peer2));
+        assertTrue(downloader.isIdle());
+    }
+
+    @Test
+    public void reRequestsAfterTimeout() throws Exception {
+        BlockBodyDownloader downloader = createDownloader(2);
+        List<Sha256Hash> hashes = hashes(2);
+        downloader.enqueue(hashes);
+        assertEquals(1, requested(p1).size());
+        assertEquals(1, requested(p2).size());
+
+        // Nothing happens before the deadline.
+        Utils.rollMockClock(0);
+        downloader.checkTimeouts();
+        assertTrue(requested(p1).isEmpty());
+        assertTrue(requested(p2).isEmpty());
+
+        Utils.rollMockClock((int) (BlockBodyDownloader.REQUEST_TIMEOUT_MSEC / 1000) + 1);
+        downloader.checkTimeouts();
+        Set<Sha256Hash> again = new HashSet<Sha256Hash>(requested(p1));
+        again.addAll(requested(p2));
+        assertEquals(new HashSet<Sha256Hash>(hashes), again);
+        // A late delivery still counts, whoever it was asked from in the end.
+        assertTrue(downloader.onBlockReceived(hashes.get(0), peer1));
+        assertTrue(downloader.onBlockReceived(hashes.get(1), peer1));
+        assertTrue(downloader.isIdle());
+    }
+
+    @Test
+    public void reRequestsAfterNotFound() throws Exception {
+        BlockBodyDownloader downloader = createDownloader(1);
+        peer1.setBlockBodyDownloader(downloader);
+        peer2.setBlockBodyDownloader(downloader);
+        downloader.enqueue(hashes(2));
+        List<Sha256Hash> fromPeer1 = requested(p1);
+        List<Sha256Hash> fromPeer2 = requested(p2);
+        assertEquals(1, fromPeer1.size());
+        assertEquals(1, fromPeer2.size());
+
+        Sha256Hash missing = fromPeer1.get(0);
+        inbound(p1, new NotFoundMessage(params,
+                Collections.singletonList(new InventoryItem(InventoryItem.Type.Block, missing))));
+        // Peer 1 isn't asked again, peer 2 gets it once it has room.
+        assertTrue(requested(p1).isEmpty());
+        assertTrue(downloader.isPending(missing));
+        assertTrue(downloader.onBlockReceived(fromPeer2.get(0), peer2));
+        assertEquals(Collections.singletonList(missing), requested(p2));
+        assertTrue(requested(p1).isEmpty());
+        assertTrue(downloader.onBlockReceived(missing, peer2));
+        assertTrue(downloader.isIdle());
+    }
+}
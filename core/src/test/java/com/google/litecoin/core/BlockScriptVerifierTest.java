@@ -0,0 +1,129 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import com.google.litecoin.params.UnitTestParams;
+import com.google.litecoin.script.Script;
+import com.google.litecoin.script.ScriptBuilder;
+import com.google.litecoin.utils.Threading;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BlockScriptVerifierTest {
+    private static final int TX_COUNT = BlockScriptVerifier.MIN_INPUTS_PER_CHUNK * 5;
+
+    private NetworkParameters params;
+    private ECKey key;
+    private Script scriptPubKey;
+    private List<Transaction> txns;
+    private AtomicInteger tasks;
+    private Executor countingExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        key = new ECKey();
+        scriptPubKey = ScriptBuilder.createOutputScript(key);
+        txns = new ArrayList<Transaction>();
+        for (int i = 0; i < TX_COUNT; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addOutput(Utils.COIN, key);
+            tx.addSignedInput(new TransactionOutPoint(params, i, Sha256Hash.create(new byte[] { (byte) i })),
+                    scriptPubKey, key);
+            txns.add(tx);
+        }
+        tasks = new AtomicInteger();
+        countingExecutor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                tasks.incrementAndGet();
+                Threading.SAME_THREAD.execute(runnable);
+            }
+        };
+    }
+
+    private void verify(Executor executor) throws VerificationException {
+        BlockScriptVerifier verifier = new BlockScriptVerifier(executor, true, BlockScriptVerifier.countInputs(txns));
+        for (Transaction tx : txns)
+            verifier.add(tx, ImmutableList.of(scriptPubKey));
+        verifier.verify(Sha256Hash.ZERO_HASH);
+    }
+
+    @Test
+    public void chunksInputs() throws Exception {
+        BlockScriptVerifier verifier = new BlockScriptVerifier(countingExecutor, true, TX_COUNT);
+        int chunkSize = verifier.getChunkSize();
+        assertTrue(chunkSize >= BlockScriptVerifier.MIN_INPUTS_PER_CHUNK);
+        for (Transaction tx : txns)
+            verifier.add(tx, ImmutableList.of(scriptPubKey));
+        // Full chunks go to the executor, the rest is checked on the calling thread.
+        assertEquals(TX_COUNT / chunkSize, tasks.get());
+        verifier.verify(Sha256Hash.ZERO_HASH);
+    }
+
+    @Test
+    public void transactionsAreNotSplit() throws Exception {
+        // A transaction with more inputs than fit in a chunk is still checked by a single task.
+        int inputs = BlockScriptVerifier.MIN_INPUTS_PER_CHUNK * 2 + 1;
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, key);
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < inputs; i++) {
+            // Anyone can pay, so adding more inputs doesn't invalidate the signatures made so far.
+            tx.addSignedInput(new TransactionOutPoint(params, i, Sha256Hash.create(new byte[] { (byte) i })),
+                    scriptPubKey, key, Transaction.SigHash.ALL, true);
+            scripts.add(scriptPubKey);
+        }
+        BlockScriptVerifier verifier =
+                new BlockScriptVerifier(countingExecutor, true, BlockScriptVerifier.MIN_INPUTS_PER_CHUNK);
+        assertTrue(verifier.getChunkSize() < inputs);
+        verifier.add(tx, scripts);
+        assertEquals(1, tasks.get());
+        verifier.verify(Sha256Hash.ZERO_HASH);
+    }
+
+    @Test
+    public void failure() throws Exception {
+        // Break a signature in the middle of the block.
+        txns.get(TX_COUNT / 2).getInput(0).setScriptBytes(new byte[0]);
+        try {
+            verify(countingExecutor);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        try {
+            verify(BlockScriptVerifier.DEFAULT_EXECUTOR);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void defaultExecutor() throws Exception {
+        verify(BlockScriptVerifier.DEFAULT_EXECUTOR);
+    }
+}
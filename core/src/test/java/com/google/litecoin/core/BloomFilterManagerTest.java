@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import com.google.litecoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterManagerTest {
+    @Test
+    public void insertsUntilTooFull() throws Exception {
+        Wallet wallet = new Wallet(UnitTestParams.get());
+        wallet.addKey(new ECKey());
+        List<PeerFilterProvider> providers = Collections.<PeerFilterProvider>singletonList(wallet);
+        BloomFilterManager manager = new BloomFilterManager(12345);
+        assertFalse(manager.insert(new ArrayList<byte[]>(), false));
+        assertTrue(manager.rebuild(providers, 0.001));
+        assertEquals(2, manager.getElementCount());
+        assertEquals(2 + BloomFilterManager.HEADROOM, manager.getCapacity());
+        BloomFilter filter = manager.getFilter();
+
+        // New keys go into the same filter until it is too full.
+        int inserted = 0;
+        while (true) {
+            ECKey key = new ECKey();
+            List<byte[]> data = new ArrayList<byte[]>();
+            Wallet.addBloomFilterData(key, data);
+            if (!manager.insert(data, false))
+                break;
+            assertSame(filter, manager.getFilter());
+            assertTrue(filter.contains(key.getPubKey()));
+            assertTrue(filter.contains(key.getPubKeyHash()));
+            wallet.addKey(key);
+            inserted++;
+        }
+        assertTrue(inserted * 2 > BloomFilterManager.HEADROOM);
+        assertEquals(2 + inserted * 2, manager.getElementCount());
+
+        // A rebuild sizes the filter for the new keys and matches the one the wallet would build itself.
+        assertTrue(manager.rebuild(providers, 0.001));
+        assertEquals(wallet.getBloomFilterElementCount() + BloomFilterManager.HEADROOM, manager.getCapacity());
+        assertEquals(wallet.getBloomFilter(manager.getCapacity(), 0.001, 12345), manager.getFilter());
+        // A change of update flags needs a rebuild too.
+        assertFalse(manager.insert(new ArrayList<byte[]>(), true));
+    }
+}
@@ -74,4 +74,47 @@ public class BloomFilterTest {
         // Value generated by the reference client
         assertTrue(Arrays.equals(Hex.decode("082ae5edc8e51d4a03080000000000000002"), filter.bitcoinSerialize()));
     }
+
+    @Test
+    public void slices() {
+        byte[] bytes = Hex.decode("0099108ad8ed9bb6274d3980bab5a85c048f0950c8ff");
+        BloomFilter filter = new BloomFilter(3, 0.01, 0);
+        filter.insert(bytes, 1, 20);
+        assertTrue(filter.contains(Hex.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        assertTrue(filter.contains(bytes, 1, 20));
+        assertFalse(filter.contains(bytes));
+
+        BloomFilter copy = new BloomFilter(3, 0.01, 0);
+        copy.insert(Arrays.copyOfRange(bytes, 1, 21));
+        assertEquals(copy, filter);
+        assertTrue(filter.containsAny(Arrays.asList(bytes, Arrays.copyOfRange(bytes, 1, 21))));
+        assertFalse(filter.containsAny(Arrays.asList(bytes)));
+    }
+
+    @Test
+    public void containsAnyTransaction() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        Transaction tx = new Transaction(params, Hex.decode("01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff0d038754030114062f503253482fffffffff01c05e559500000000232103cb219f69f1b49468bd563239a86667e74a06fcba69ac50a08a5cbc42a5808e99ac00000000"));
+        assertFalse(new BloomFilter(10, 0.0001, 0).containsAny(tx));
+
+        // A key pushed by an output script.
+        BloomFilter filter = new BloomFilter(10, 0.0001, 0);
+        filter.insert(Hex.decode("03cb219f69f1b49468bd563239a86667e74a06fcba69ac50a08a5cbc42a5808e99"));
+        assertTrue(filter.containsAny(tx));
+
+        // The transaction hash, as it appears on the wire.
+        filter = new BloomFilter(10, 0.0001, 0);
+        filter.insert(Utils.reverseBytes(tx.getHash().getBytes()));
+        assertTrue(filter.containsAny(tx));
+
+        // The outpoint the input connects to.
+        filter = new BloomFilter(10, 0.0001, 0);
+        filter.insert(tx.getInput(0).getOutpoint().bitcoinSerialize());
+        assertTrue(filter.containsAny(tx));
+
+        // Data pushed by the input script.
+        filter = new BloomFilter(10, 0.0001, 0);
+        filter.insert(Hex.decode("2f503253482f"));
+        assertTrue(filter.containsAny(tx));
+    }
 }
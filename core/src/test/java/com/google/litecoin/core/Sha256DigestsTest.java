@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Sha256DigestsTest {
+    private static byte[] reference(byte[] input, int offset, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(input, offset, length);
+        return digest.digest(digest.digest());
+    }
+
+    @Test
+    public void matchesMessageDigest() throws Exception {
+        byte[] input = "hello world, this is a test of double sha256".getBytes("UTF-8");
+        assertArrayEquals(reference(input, 3, 20), Sha256Digests.doubleDigest(input, 3, 20));
+        assertArrayEquals(reference(input, 0, input.length), Utils.doubleDigest(input));
+
+        byte[] out = new byte[40];
+        Sha256Digests.doubleDigest(input, 3, 20, out, 8);
+        byte[] expected = reference(input, 3, 20);
+        for (int i = 0; i < 32; i++)
+            assertEquals(expected[i], out[8 + i]);
+
+        assertEquals(new Sha256Hash(Utils.reverseBytes(expected)), Sha256Digests.doubleDigestReversed(input, 3, 20));
+    }
+
+    @Test
+    public void byteBufferSlices() throws Exception {
+        byte[] input = new byte[100];
+        for (int i = 0; i < input.length; i++)
+            input[i] = (byte) i;
+        byte[] expected = reference(input, 10, 50);
+
+        ByteBuffer heap = ByteBuffer.wrap(input, 10, 50);
+        assertArrayEquals(expected, Sha256Digests.doubleDigest(heap.slice()));
+        assertEquals(10, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(input.length);
+        direct.put(input);
+        direct.position(10);
+        direct.limit(60);
+        assertArrayEquals(expected, Sha256Digests.doubleDigest(direct));
+        // Position must not have moved.
+        assertEquals(10, direct.position());
+        assertEquals(new Sha256Hash(Utils.reverseBytes(expected)), Sha256Digests.doubleDigestReversed(direct));
+    }
+
+    @Test
+    public void twoBuffers() throws Exception {
+        byte[] a = new byte[32], b = new byte[32];
+        a[0] = 1;
+        b[31] = 2;
+        byte[] both = new byte[64];
+        System.arraycopy(a, 0, both, 0, 32);
+        System.arraycopy(b, 0, both, 32, 32);
+        assertArrayEquals(reference(both, 0, 64), Utils.doubleDigestTwoBuffers(a, 0, 32, b, 0, 32));
+    }
+
+    @Test
+    public void concurrentHashing() throws Exception {
+        final byte[] input = new byte[1000];
+        for (int i = 0; i < input.length; i++)
+            input[i] = (byte) (i * 7);
+        final byte[] expected = reference(input, 0, input.length);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            if (!java.util.Arrays.equals(expected, Utils.doubleDigest(input)))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2011 Noa Resare
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.core;
+
+import com.google.litecoin.params.UnitTestParams;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TCPNetworkConnectionTest {
+    @Test
+    public void decodesMessageArrivingInChunks() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        TCPNetworkConnection conn = new TCPNetworkConnection(params, new VersionMessage(params, 0));
+        TCPNetworkConnection.NetworkHandler handler = conn.getHandler();
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+        byte[] first = serializer.serializeToPacket(new Ping(1234));
+        byte[] second = serializer.serializeToPacket(new Ping(5678));
+        // Some garbage before the magic, then the first message split into three chunks, the last of which also
+        // carries the start of the second message.
+        byte[] stream = new byte[3 + first.length + second.length];
+        stream[0] = 1; stream[1] = 2; stream[2] = 3;
+        System.arraycopy(first, 0, stream, 3, first.length);
+        System.arraycopy(second, 0, stream, 3 + first.length, second.length);
+        int[] chunkEnds = { 3 + 10, 3 + BitcoinSerializer.HEADER_LEN + 2, 3 + first.length + 5, stream.length };
+
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        List<Message> decoded = new ArrayList<Message>();
+        int start = 0;
+        for (int end : chunkEnds) {
+            buffer.writeBytes(stream, start, end - start);
+            start = end;
+            // FrameDecoder calls again after each message, until it gets null.
+            Object message;
+            while ((message = handler.decode(null, null, buffer)) != null)
+                decoded.add((Message) message);
+            if (end < 3 + first.length)
+                assertEquals(0, decoded.size());
+        }
+        assertEquals(2, decoded.size());
+        assertEquals(1234, ((Ping) decoded.get(0)).getNonce());
+        assertEquals(5678, ((Ping) decoded.get(1)).getNonce());
+        assertEquals(0, buffer.readableBytes());
+        assertNull(handler.decode(null, null, buffer));
+    }
+}
@@ -28,6 +28,7 @@ import com.google.litecoin.utils.MockTransactionBroadcaster;
 import com.google.litecoin.utils.TestUtils;
 import com.google.litecoin.utils.TestWithWallet;
 import com.google.litecoin.utils.Threading;
+import com.google.litecoin.wallet.DefaultCoinSelector;
 import com.google.litecoin.wallet.KeyTimeCoinSelector;
 import com.google.litecoin.wallet.WalletFiles;
 import com.google.common.collect.Lists;
@@ -51,7 +52,10 @@ import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.litecoin.utils.TestUtils.*;
@@ -288,6 +292,134 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.isConsistent());
     }
 
+    @Test
+    public void spendableOutputsTrackWalletChanges() throws Exception {
+        // Outputs to a key we import later.
+        ECKey later = new ECKey();
+        Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        t1.addOutput(toNanoCoins(2, 0), later.toAddress(params));
+        sendMoneyToWallet(t1, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance());
+        assertEquals(1, wallet.calculateAllSpendCandidates(true).size());
+        wallet.addKey(later);
+        assertEquals(toNanoCoins(3, 0), wallet.getBalance());
+        assertEquals(2, wallet.calculateAllSpendCandidates(true).size());
+        wallet.removeKey(later);
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance());
+        wallet.addKey(later);
+
+        // Spending moves value out of AVAILABLE until the change confirms.
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 50));
+        wallet.commitTx(send);
+        assertEquals(toNanoCoins(2, 50), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        BigInteger available = wallet.getBalance();
+        assertTrue(available.compareTo(toNanoCoins(2, 50)) < 0);
+        assertEquals(available, wallet.getBalance(new DefaultCoinSelector() {}));
+        sendMoneyToWallet(send, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(toNanoCoins(2, 50), wallet.getBalance());
+        assertEquals(toNanoCoins(2, 50), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        wallet.clearTransactions(0);
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.calculateAllSpendCandidates(false).isEmpty());
+    }
+
+    @Test
+    public void depthEventsStopAtLimit() throws Exception {
+        final LinkedList<Transaction> confTxns = new LinkedList<Transaction>();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                super.onTransactionConfidenceChanged(wallet, tx);
+                confTxns.add(tx);
+            }
+        });
+        wallet.setDepthEventLimit(3);
+        Transaction tx = sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        TransactionConfidence confidence = tx.getConfidence();
+        ListenableFuture<Transaction> future = confidence.getDepthFuture(8);
+        assertEquals(1, confidence.getDepthInBlocks());
+        BigInteger work = confidence.getWorkDone();
+        for (int i = 0; i < 10; i++) {
+            Threading.waitForUserCode();
+            confTxns.clear();
+            StoredBlock block = createFakeBlock(blockStore).storedBlock;
+            wallet.notifyNewBestBlock(block);
+            Threading.waitForUserCode();
+            assertEquals(i + 2, confidence.getDepthInBlocks());
+            work = work.add(block.getHeader().getWork());
+            assertEquals(work, confidence.getWorkDone());
+            // Events are sent until the depth future is satisfied, then the transaction is buried silently.
+            assertEquals(i + 2 <= 8 ? 1 : 0, confTxns.size());
+            assertEquals(i + 2 >= 8, future.isDone());
+        }
+    }
+
+    @Test
+    public void confidenceBatchListener() throws Exception {
+        final List<Map<Transaction, Set<TransactionConfidence.Listener.ChangeReason>>> batches =
+                new ArrayList<Map<Transaction, Set<TransactionConfidence.Listener.ChangeReason>>>();
+        wallet.setDepthEventLimit(3);
+        Transaction tx1 = sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction tx2 = sendMoneyToWallet(Utils.CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Threading.waitForUserCode();
+        wallet.addConfidenceBatchListener(new TransactionConfidence.BatchListener() {
+            @Override
+            public void onConfidenceChanged(Map<Transaction, Set<TransactionConfidence.Listener.ChangeReason>> changes) {
+                batches.add(changes);
+            }
+        });
+        // One block burying both transactions is reported as a single batch.
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(1, batches.size());
+        Map<Transaction, Set<TransactionConfidence.Listener.ChangeReason>> batch = batches.get(0);
+        assertEquals(2, batch.size());
+        assertEquals(EnumSet.of(TransactionConfidence.Listener.ChangeReason.DEPTH), batch.get(tx1));
+        assertEquals(EnumSet.of(TransactionConfidence.Listener.ChangeReason.DEPTH), batch.get(tx2));
+        // Peers announcing a transaction are reported too.
+        batches.clear();
+        tx1.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByName("1.2.3.4")));
+        tx1.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        // The wallet forwards the change from its own confidence listener, so wait for both to run.
+        Threading.waitForUserCode();
+        Threading.waitForUserCode();
+        assertEquals(1, batches.size());
+        assertEquals(EnumSet.of(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS), batches.get(0).get(tx1));
+    }
+
+    @Test
+    public void confidenceListenerSurvivesRejectedExecution() throws Exception {
+        // An executor that has been shut down refuses the task. Once it accepts tasks again, the listener must run.
+        final AtomicBoolean reject = new AtomicBoolean(true);
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (reject.get())
+                    throw new RejectedExecutionException();
+                command.run();
+            }
+        };
+        final List<TransactionConfidence.Listener.ChangeReason> reasons =
+                new ArrayList<TransactionConfidence.Listener.ChangeReason>();
+        Transaction tx = createFakeTx(params, Utils.COIN, myAddress);
+        tx.getConfidence().addEventListener(new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+                reasons.add(reason);
+            }
+        }, executor);
+        try {
+            tx.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.TYPE);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+        reject.set(false);
+        tx.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+        assertEquals(Arrays.asList(TransactionConfidence.Listener.ChangeReason.DEPTH), reasons);
+    }
+
     @Test
     public void customTransactionSpending() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -859,6 +991,31 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void keyLookups() throws Exception {
+        wallet = new Wallet(params);
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        assertEquals(2, wallet.addKeys(Lists.newArrayList(key1, key2, key1)));
+        assertEquals(0, wallet.addKeys(Lists.newArrayList(new ECKey(null, key1.getPubKey()))));
+        assertEquals(key1, wallet.findKeyFromPubHash(key1.getPubKeyHash()));
+        assertEquals(key2, wallet.findKeyFromPubKey(key2.getPubKey()));
+        assertTrue(wallet.hasKey(new ECKey(null, key2.getPubKey())));
+
+        assertTrue(wallet.removeKey(key1));
+        assertFalse(wallet.removeKey(key1));
+        assertNull(wallet.findKeyFromPubHash(key1.getPubKeyHash()));
+        assertFalse(wallet.isPubKeyMine(key1.getPubKey()));
+        assertTrue(wallet.isPubKeyHashMine(key2.getPubKeyHash()));
+
+        // Encryption replaces the key objects, lookups must return the new ones.
+        wallet.encrypt(keyCrypter, aesKey);
+        assertTrue(wallet.findKeyFromPubHash(key2.getPubKeyHash()).isEncrypted());
+        assertTrue(wallet.findKeyFromPubKey(key2.getPubKey()).isEncrypted());
+        wallet.decrypt(aesKey);
+        assertFalse(wallet.findKeyFromPubHash(key2.getPubKeyHash()).isEncrypted());
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         wallet = new Wallet(params);
@@ -1050,6 +1207,30 @@ public class WalletTest extends TestWithWallet {
         assertFalse("Wallet not saved after receivePending", hash2.equals(hash3));  // File has changed again.
     }
 
+    @Test
+    public void autosaveFromListener() throws Exception {
+        // A listener that changes the wallet on the auto-save thread causes a save from that thread, which must not
+        // wait for itself.
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicBoolean keyAdded = new AtomicBoolean();
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        wallet.autosaveToFile(f, 0, TimeUnit.SECONDS,
+                new WalletFiles.Listener() {
+                    public void onBeforeAutoSave(File tempFile) {
+                    }
+
+                    public void onAfterAutoSave(File newlySavedFile) {
+                        if (!keyAdded.getAndSet(true))
+                            wallet.addKey(new ECKey());
+                        latch.countDown();
+                    }
+                }
+        );
+        wallet.addKey(new ECKey());
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(3, Wallet.loadFromFile(f).getKeychainSize());
+    }
+
     @Test
     public void autosaveDelayed() throws Exception {
         // Test that the wallet will save itself automatically when it changes, but not immediately and near-by
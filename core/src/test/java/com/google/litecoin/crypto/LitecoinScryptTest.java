@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.crypto;
+
+import com.google.litecoin.core.Block;
+import com.google.litecoin.core.ParallelHeaderVerifier;
+import com.google.litecoin.core.VerificationException;
+import com.google.litecoin.params.MainNetParams;
+import com.lambdaworks.crypto.SCrypt;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LitecoinScryptTest {
+    @Test
+    public void matchesGenericScrypt() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 10; i++) {
+            byte[] header = new byte[80];
+            random.nextBytes(header);
+            assertArrayEquals(SCrypt.scrypt(header, header, 1024, 1, 1, 32), LitecoinScrypt.hash(header));
+        }
+        // Other lengths and offsets work too.
+        byte[] input = new byte[100];
+        random.nextBytes(input);
+        byte[] slice = new byte[37];
+        System.arraycopy(input, 5, slice, 0, slice.length);
+        assertArrayEquals(SCrypt.scrypt(slice, slice, 1024, 1, 1, 32), LitecoinScrypt.hash(input, 5, 37));
+    }
+
+    @Test
+    public void verifyHeaders() throws Exception {
+        Block genesis = MainNetParams.get().getGenesisBlock();
+        List<Block> headers = new ArrayList<Block>();
+        for (int i = 0; i < 20; i++)
+            headers.add(genesis.cloneAsHeader());
+        ParallelHeaderVerifier verifier = new ParallelHeaderVerifier();
+        verifier.verifyHeaders(headers);
+
+        // Break the proof of work of two headers, the earliest one must be reported.
+        Block bad1 = genesis.cloneAsHeader();
+        bad1.setNonce(bad1.getNonce() + 1);
+        Block bad2 = genesis.cloneAsHeader();
+        bad2.setNonce(bad2.getNonce() + 2);
+        headers.set(7, bad1);
+        headers.set(15, bad2);
+        try {
+            verifier.verifyHeaders(headers);
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage().contains(bad1.getScryptHashAsString()));
+        }
+    }
+}
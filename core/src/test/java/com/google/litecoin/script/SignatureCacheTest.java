@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.script;
+
+import com.google.litecoin.core.*;
+import com.google.litecoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private SignatureCache cache;
+    private Transaction tx;
+    private Script scriptPubKey;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        cache = new SignatureCache(10);
+        SignatureCache.setDefault(cache);
+        ECKey key = new ECKey();
+        scriptPubKey = ScriptBuilder.createOutputScript(key);
+        tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, key);
+        tx.addSignedInput(new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] { 1 })), scriptPubKey, key);
+    }
+
+    @After
+    public void tearDown() {
+        SignatureCache.setDefault(new SignatureCache(SignatureCache.DEFAULT_MAX_SIZE));
+    }
+
+    @Test
+    public void validSignatureIsCached() throws Exception {
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(1, cache.getHits());
+        assertEquals(0.5, cache.getHitRate(), 0);
+    }
+
+    @Test
+    public void invalidSignatureIsNotCached() throws Exception {
+        // A different key fails the check, and must not be remembered.
+        Script otherScriptPubKey = ScriptBuilder.createOutputScript(new ECKey());
+        for (int i = 0; i < 2; i++) {
+            try {
+                tx.getInput(0).getScriptSig().correctlySpends(tx, 0, otherScriptPubKey, true);
+                fail();
+            } catch (ScriptException e) {
+                // Expected.
+            }
+        }
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        SignatureCache small = new SignatureCache(0);
+        SignatureCache.setDefault(small);
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, true);
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(0, small.getHits());
+        assertEquals(2, small.getMisses());
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.store;
+
+import com.google.litecoin.core.NetworkParameters;
+import com.google.litecoin.core.Sha256Hash;
+import com.google.litecoin.core.StoredTransactionOutput;
+import com.google.litecoin.core.Utils;
+import com.google.litecoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private MemoryFullPrunedBlockStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        backing = new MemoryFullPrunedBlockStore(params, 10);
+        store = new CachingFullPrunedBlockStore(backing);
+    }
+
+    private static StoredTransactionOutput output(int n, int index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n });
+        return new StoredTransactionOutput(hash, index, Utils.COIN, 1, false, new byte[] { 1, 2, 3 });
+    }
+
+    @Test
+    public void createdAndSpentInBatchNeverReachesBackingStore() throws Exception {
+        StoredTransactionOutput out = output(1, 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.commitDatabaseBatchWrite();
+
+        assertNull(backing.getTransactionOutput(out.getHash(), 0));
+        assertEquals(1, store.getCancelledCount());
+        assertEquals(0, store.getWriteCount());
+    }
+
+    @Test
+    public void changesAreWrittenOnCommit() throws Exception {
+        StoredTransactionOutput out = output(2, 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertNull(backing.getTransactionOutput(out.getHash(), 0));
+        store.commitDatabaseBatchWrite();
+        assertEquals(out, backing.getTransactionOutput(out.getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertNull(backing.getTransactionOutput(out.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+        assertEquals(2, store.getWriteCount());
+    }
+
+    @Test
+    public void abortDiscardsChanges() throws Exception {
+        StoredTransactionOutput out = output(3, 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        assertNull(backing.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void evictionWritesOutDirtyEntries() throws Exception {
+        // Room for about two entries.
+        store = new CachingFullPrunedBlockStore(backing, 600);
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < 10; i++)
+            store.addUnspentTransactionOutput(output(4, i));
+        assertTrue(store.getEvictionCount() > 0);
+        assertTrue(store.getCacheBytes() <= 600);
+        store.commitDatabaseBatchWrite();
+        for (int i = 0; i < 10; i++)
+            assertEquals(output(4, i), backing.getTransactionOutput(output(4, i).getHash(), i));
+        // Reading them back goes to the backing store for most of them.
+        for (int i = 0; i < 10; i++)
+            assertNotNull(store.getTransactionOutput(output(4, i).getHash(), i));
+        assertTrue(store.getMissCount() >= 10);
+    }
+
+    @Test
+    public void spendingWrittenOutputsKeepsSizeAccurate() throws Exception {
+        for (int i = 0; i < 10; i++)
+            store.addUnspentTransactionOutput(output(6, i));
+        assertEquals(10, store.getWriteCount());
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < 10; i++)
+            store.removeUnspentTransactionOutput(output(6, i));
+        store.commitDatabaseBatchWrite();
+        assertNull(backing.getTransactionOutput(output(6, 0).getHash(), 0));
+        // Every entry is now known to be spent, so holds no script.
+        assertEquals(store.getCachedOutputCount() * CachingFullPrunedBlockStore.ENTRY_OVERHEAD_BYTES,
+                store.getCacheBytes());
+
+        // Evicting all of them leaves nothing behind.
+        store = new CachingFullPrunedBlockStore(backing, 600);
+        for (int i = 0; i < 10; i++)
+            store.addUnspentTransactionOutput(output(7, i));
+        for (int i = 0; i < 10; i++)
+            store.removeUnspentTransactionOutput(output(7, i));
+        assertTrue(store.getEvictionCount() > 0);
+        assertEquals(store.getCachedOutputCount() * CachingFullPrunedBlockStore.ENTRY_OVERHEAD_BYTES,
+                store.getCacheBytes());
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void removingMissingOutputFails() throws Exception {
+        store.removeUnspentTransactionOutput(output(5, 0));
+    }
+}
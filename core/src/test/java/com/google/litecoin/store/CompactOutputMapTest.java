@@ -0,0 +1,105 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.store;
+
+import com.google.litecoin.core.NetworkParameters;
+import com.google.litecoin.core.Sha256Hash;
+import com.google.litecoin.core.StoredTransactionOutput;
+import com.google.litecoin.core.Utils;
+import com.google.litecoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CompactOutputMapTest {
+    private static StoredTransactionOutput output(int n, long index, int scriptLength) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n, (byte) (n >> 8) });
+        byte[] script = new byte[scriptLength];
+        Arrays.fill(script, (byte) n);
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(n * 1000L + index), n, n % 2 == 0, script);
+    }
+
+    private static void assertSameOutput(StoredTransactionOutput expected, StoredTransactionOutput actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        CompactOutputMap compact = new CompactOutputMap();
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> expected =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        Random random = new Random(1);
+        // Enough operations to grow the table and entries and to compact the scripts several times.
+        for (int i = 0; i < 50000; i++) {
+            StoredTransactionOutput out = output(random.nextInt(3000), random.nextInt(4), random.nextInt(60));
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            if (random.nextInt(3) == 0) {
+                StoredTransactionOutput removed = compact.remove(key);
+                StoredTransactionOutput expectedRemoved = expected.remove(key);
+                if (expectedRemoved == null)
+                    assertNull(removed);
+                else
+                    assertSameOutput(expectedRemoved, removed);
+            } else {
+                compact.put(key, out);
+                expected.put(key, out);
+            }
+        }
+        assertEquals(expected.size(), compact.size());
+        for (StoredTransactionOutput out : expected.values())
+            assertSameOutput(out, compact.get(new StoredTransactionOutPoint(out)));
+        assertEquals(expected.keySet(), compact.keySet());
+        compact.clear();
+        assertEquals(0, compact.size());
+        assertNull(compact.get(expected.keySet().iterator().next()));
+    }
+
+    @Test
+    public void largeIndex() {
+        CompactOutputMap compact = new CompactOutputMap();
+        StoredTransactionOutput out = output(1, 0xFFFFFFFFL, 10);
+        compact.put(new StoredTransactionOutPoint(out), out);
+        assertSameOutput(out, compact.get(new StoredTransactionOutPoint(out.getHash(), 0xFFFFFFFFL)));
+        assertNull(compact.get(new StoredTransactionOutPoint(out.getHash(), 0)));
+    }
+
+    @Test
+    public void memoryStoreWithCompactOutputs() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(params, 10, true);
+        StoredTransactionOutput out = new StoredTransactionOutput(Sha256Hash.create(new byte[] { 1 }), 0, Utils.COIN,
+                1, false, new byte[] { 1, 2, 3 });
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        store.commitDatabaseBatchWrite();
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.abortDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.store;
+
+import com.google.litecoin.core.NetworkParameters;
+import com.google.litecoin.core.Sha256Hash;
+import com.google.litecoin.core.StoredTransactionOutput;
+import com.google.litecoin.core.Utils;
+import com.google.litecoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = File.createTempFile("h2fullprunedblockstore", null);
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private static StoredTransactionOutput output(int n, int index, BigInteger value) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n });
+        return new StoredTransactionOutput(hash, index, value, 1, false, new byte[] { 1, 2, 3 });
+    }
+
+    private static String describe(StoredTransactionOutput out) {
+        return out == null ? "none" : out.getValue().toString();
+    }
+
+    // Runs the same changes with or without batched output writes and returns what the store showed along the way.
+    private List<String> run(String name, boolean batched) throws Exception {
+        H2FullPrunedBlockStore store =
+                new H2FullPrunedBlockStore(params, new File(directory, name).getAbsolutePath(), 10);
+        store.setBatchedOutputWrites(batched);
+        List<String> seen = new ArrayList<String>();
+        StoredTransactionOutput existing = output(1, 0, Utils.COIN);
+        StoredTransactionOutput duplicate = output(1, 0, Utils.CENT);
+        StoredTransactionOutput created = output(2, 0, Utils.COIN);
+        StoredTransactionOutput other = output(3, 0, Utils.COIN);
+        store.addUnspentTransactionOutput(existing);
+
+        store.beginDatabaseBatchWrite();
+        // Adding an output that is already there is ignored, and removing it afterwards removes the stored one.
+        store.addUnspentTransactionOutput(duplicate);
+        seen.add(describe(store.getTransactionOutput(existing.getHash(), 0)));
+        seen.add(String.valueOf(store.hasUnspentOutputs(existing.getHash(), 1)));
+        store.removeUnspentTransactionOutput(duplicate);
+        seen.add(describe(store.getTransactionOutput(existing.getHash(), 0)));
+        seen.add(String.valueOf(store.hasUnspentOutputs(existing.getHash(), 1)));
+        // Outputs created and spent in the batch leave nothing behind.
+        store.addUnspentTransactionOutput(created);
+        seen.add(describe(store.getTransactionOutput(created.getHash(), 0)));
+        store.removeUnspentTransactionOutput(created);
+        seen.add(describe(store.getTransactionOutput(created.getHash(), 0)));
+        // Adding the same new output twice keeps the first.
+        store.addUnspentTransactionOutput(other);
+        store.addUnspentTransactionOutput(output(3, 0, Utils.CENT));
+        seen.add(describe(store.getTransactionOutput(other.getHash(), 0)));
+        store.commitDatabaseBatchWrite();
+
+        seen.add(describe(store.getTransactionOutput(existing.getHash(), 0)));
+        seen.add(describe(store.getTransactionOutput(created.getHash(), 0)));
+        seen.add(describe(store.getTransactionOutput(other.getHash(), 0)));
+        seen.add(String.valueOf(store.hasUnspentOutputs(existing.getHash(), 1)));
+        store.close();
+        return seen;
+    }
+
+    @Test
+    public void batchedWritesBehaveLikeImmediateWrites() throws Exception {
+        List<String> immediate = run("immediate", false);
+        List<String> batched = run("batched", true);
+        String coin = Utils.COIN.toString();
+        String none = "none";
+        List<String> expected = new ArrayList<String>();
+        for (String s : new String[] { coin, "true", none, "false", coin, none, coin, none, none, coin, "false" })
+            expected.add(s);
+        assertEquals(expected, immediate);
+        assertEquals(immediate, batched);
+    }
+}
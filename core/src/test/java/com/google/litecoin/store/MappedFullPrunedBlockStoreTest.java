@@ -0,0 +1,152 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.store;
+
+import com.google.litecoin.core.*;
+import com.google.litecoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+public class MappedFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = File.createTempFile("mappedfullprunedblockstore", null);
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private static StoredTransactionOutput output(int n, int index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n });
+        return new StoredTransactionOutput(hash, index, Utils.COIN, 1, false, new byte[] { 1, 2, 3 });
+    }
+
+    @Test
+    public void basics() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10);
+        assertEquals(params.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+        assertEquals(params.getGenesisBlock().getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertNotNull(store.getUndoBlock(params.getGenesisBlock().getHash()));
+
+        StoredBlock genesis = store.getChainHead();
+        Address to = new ECKey().toAddress(params);
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredTransactionOutput out = output(1, 0);
+        store.beginDatabaseBatchWrite();
+        store.put(b1);
+        store.addUnspentTransactionOutput(out);
+        store.setChainHead(b1);
+        store.commitDatabaseBatchWrite();
+        store.close();
+
+        store = new MappedFullPrunedBlockStore(params, directory, 10);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertNull(store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+
+        // Aborted changes are forgotten, committed ones stick.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        store.removeUnspentTransactionOutput(out);
+        store.close();
+
+        store = new MappedFullPrunedBlockStore(params, directory, 10);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+        store.close();
+    }
+
+    @Test
+    public void recoversWithoutClose() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10);
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < 100; i++)
+            store.addUnspentTransactionOutput(output(2, i));
+        store.commitDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(2, 0));
+        // Simulate a crash: the store isn't closed, so the output table is not checkpointed.
+
+        MappedFullPrunedBlockStore reopened = new MappedFullPrunedBlockStore(params, directory, 10);
+        assertNull(reopened.getTransactionOutput(output(2, 0).getHash(), 0));
+        for (int i = 1; i < 100; i++)
+            assertEquals(output(2, i), reopened.getTransactionOutput(output(2, i).getHash(), i));
+        reopened.close();
+    }
+
+    @Test
+    public void discardsTornWrites() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10);
+        store.addUnspentTransactionOutput(output(3, 0));
+        store.close();
+        File log = new File(directory, MappedFullPrunedBlockStore.LOG_FILE_NAME);
+        long length = log.length();
+        FileOutputStream stream = new FileOutputStream(log, true);
+        stream.write(new byte[] { 0, 0, 0, 40, MappedFullPrunedBlockStore.RECORD_OUTPUT_ADDED, 1, 2, 3 });
+        stream.close();
+
+        store = new MappedFullPrunedBlockStore(params, directory, 10);
+        assertEquals(length, log.length());
+        assertEquals(output(3, 0), store.getTransactionOutput(output(3, 0).getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void prunesOldUndoBlocks() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 2);
+        Address to = new ECKey().toAddress(params);
+        StoredBlock prev = store.getChainHead();
+        StoredBlock first = null;
+        for (int i = 0; i < 5; i++) {
+            StoredBlock next = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            if (first == null)
+                first = next;
+            store.beginDatabaseBatchWrite();
+            store.put(next, new StoredUndoableBlock(next.getHeader().getHash(), new LinkedList<Transaction>()));
+            store.setVerifiedChainHead(next);
+            store.commitDatabaseBatchWrite();
+            prev = next;
+        }
+        assertNull(store.getUndoBlock(first.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(prev.getHeader().getHash()));
+        assertEquals(first, store.getOnceUndoableStoredBlock(first.getHeader().getHash()));
+        assertEquals(prev, store.getChainHead());
+        store.close();
+    }
+}
@@ -24,8 +24,16 @@ import com.google.litecoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +66,116 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void indexSurvivesWrapAroundAndReopen() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File index = new File(f.getPath() + ".idx");
+        index.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 10);
+
+        Address to = new ECKey().toAddress(params);
+        StoredBlock[] blocks = new StoredBlock[25];
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(blocks[i]);
+            prev = blocks[i];
+        }
+        store.setChainHead(prev);
+        store.close();
+
+        // Reopening after a clean close reuses the index. Only the last ten blocks are still in the ring.
+        store = new SPVBlockStore(params, f, 10);
+        checkLastTen(store, blocks);
+        assertEquals(prev, store.getChainHead());
+        store.close();
+
+        // Without the index it's rebuilt from the ring.
+        assertTrue(index.delete());
+        store = new SPVBlockStore(params, f, 10);
+        checkLastTen(store, blocks);
+        store.close();
+    }
+
+    @Test
+    public void readersRunAlongsideWriter() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + ".idx").deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f);
+
+        Address to = new ECKey().toAddress(params);
+        final StoredBlock[] blocks = new StoredBlock[200];
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            prev = blocks[i];
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < 4; r++) {
+            final Random random = new Random(r);
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int lastHeight = 0;
+                        while (writing.get()) {
+                            // The head only moves forward and is always stored before it becomes the head.
+                            StoredBlock head = store.getChainHead();
+                            assertTrue(head.getHeight() >= lastHeight);
+                            lastHeight = head.getHeight();
+                            assertEquals(head, store.get(head.getHeader().getHash()));
+                            // A block is either not written yet or read back whole. Asking before it's written
+                            // records a miss, which the writer has to clear when it stores the block.
+                            int i = random.nextInt(blocks.length);
+                            StoredBlock stored = store.get(blocks[i].getHeader().getHash());
+                            if (stored != null)
+                                assertEquals(blocks[i], stored);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+
+        start.countDown();
+        for (StoredBlock block : blocks) {
+            store.put(block);
+            store.setChainHead(block);
+        }
+        writing.set(false);
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(blocks[blocks.length - 1], store.getChainHead());
+        store.close();
+    }
+
+    private static void checkLastTen(SPVBlockStore store, StoredBlock[] blocks) throws Exception {
+        for (int i = 0; i < blocks.length; i++) {
+            StoredBlock stored = store.get(blocks[i].getHeader().getHash());
+            if (i < blocks.length - 10)
+                assertNull(stored);
+            else
+                assertEquals(blocks[i], stored);
+        }
+    }
 }
@@ -19,6 +19,7 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -241,6 +242,81 @@ public class WalletProtobufSerializerTest {
         assertEquals(work2, rebornConfidence1.getWorkDone());
     }
 
+    @Test
+    public void cachedSnapshots() throws Exception {
+        BlockChain chain = new BlockChain(params, myWallet, new MemoryBlockStore(params));
+        Address other = new ECKey().toAddress(params);
+        Block b = params.getGenesisBlock().createNextBlock(myAddress);
+        assertTrue(chain.add(b));
+        WalletSnapshot snapshot = myWallet.takeSnapshot();
+        assertEquals(1, snapshot.getConvertedTransactionCount());
+        assertEquals(new WalletProtobufSerializer().walletToProto(myWallet), snapshot.toProto());
+
+        // Bury the coinbase past the depth that gets an event for each block, after which it stays cached.
+        for (int i = 0; i < params.getSpendableCoinbaseDepth() + 1; i++) {
+            b = b.createNextBlock(other);
+            assertTrue(chain.add(b));
+        }
+        myWallet.takeSnapshot();
+        b = b.createNextBlock(other);
+        assertTrue(chain.add(b));
+        snapshot = myWallet.takeSnapshot();
+        assertEquals(1, snapshot.getTransactionCount());
+        assertEquals(0, snapshot.getConvertedTransactionCount());
+        // The depth and work done are brought up to date all the same.
+        Protos.Wallet walletProto = snapshot.toProto();
+        assertEquals(new WalletProtobufSerializer().walletToProto(myWallet), walletProto);
+        assertEquals(params.getSpendableCoinbaseDepth() + 3, walletProto.getTransaction(0).getConfidence().getDepth());
+
+        // A new transaction is the only one converted.
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        myWallet.receivePending(t1, null);
+        snapshot = myWallet.takeSnapshot();
+        assertEquals(2, snapshot.getTransactionCount());
+        assertEquals(1, snapshot.getConvertedTransactionCount());
+        // Transactions come out in no particular order.
+        Protos.Wallet expected = new WalletProtobufSerializer().walletToProto(myWallet);
+        assertEquals(new HashSet<Protos.Transaction>(expected.getTransactionList()),
+                new HashSet<Protos.Transaction>(snapshot.toProto().getTransactionList()));
+    }
+
+    @Test
+    public void lazyHistory() throws Exception {
+        BlockChain chain = new BlockChain(params, myWallet, new MemoryBlockStore(params));
+        // t1 pays us and t2 spends it, with change back to us. So t1 is history and t2 is unspent.
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        Block b1 = TestUtils.makeSolvedTestBlock(params.getGenesisBlock(), t1);
+        assertTrue(chain.add(b1));
+        Transaction t2 = myWallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(0, 50));
+        Block b2 = TestUtils.makeSolvedTestBlock(b1, t2);
+        assertTrue(chain.add(b2));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadHistoryLazily(true);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(1, wallet1.getHistory().size());
+        assertEquals(myWallet.getBalance(), wallet1.getBalance());
+        assertTrue(wallet1.isConsistent());
+        assertEquals(1, wallet1.getHistory().size());
+
+        // Records are saved as they were read, with the blocks seen since then added to their depth.
+        chain.addWallet(wallet1);
+        assertTrue(chain.add(TestUtils.makeSolvedTestBlock(b2)));
+        Protos.Wallet expected = new WalletProtobufSerializer().walletToProto(myWallet);
+        assertEquals(new HashSet<Protos.Transaction>(expected.getTransactionList()),
+                new HashSet<Protos.Transaction>(wallet1.takeSnapshot().toProto().getTransactionList()));
+        assertEquals(1, wallet1.getHistory().size());
+
+        // Looking a record up loads it, connected to the transaction that spends it.
+        Transaction t1copy = wallet1.getTransaction(t1.getHash());
+        assertEquals(0, wallet1.getHistory().size());
+        assertEquals(3, t1copy.getConfidence().getDepthInBlocks());
+        assertEquals(wallet1.getTransaction(t2.getHash()), t1copy.getOutput(0).getSpentBy().getParentTransaction());
+        assertTrue(wallet1.isConsistent());
+    }
+
     private static Wallet roundTrip(Wallet wallet) throws Exception {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         //System.out.println(WalletProtobufSerializer.walletToText(wallet));
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UserThreadDispatcherTest {
+    @Test
+    public void keepsOrderPerKey() throws Exception {
+        UserThreadDispatcher dispatcher = new UserThreadDispatcher(4);
+        final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+        Executor executor = dispatcher.forKey("listener");
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    seen.add(n);
+                }
+            });
+        }
+        dispatcher.waitForAll();
+        assertEquals(1000, seen.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, (int) seen.get(i));
+        assertEquals(1000, dispatcher.getTaskCount());
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void slowKeyDoesNotBlockOthers() throws Exception {
+        UserThreadDispatcher dispatcher = new UserThreadDispatcher(2);
+        Executor slow = dispatcher.forKey(0);
+        Executor fast = slow;
+        for (int key = 1; fast == slow; key++)
+            fast = dispatcher.forKey(key);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        slow.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        fast.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        dispatcher.waitForAll();
+    }
+
+    @Test
+    public void fullQueueWaitsForRoom() throws Exception {
+        UserThreadDispatcher dispatcher = new UserThreadDispatcher(1, 1, 10);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        dispatcher.execute(blocker);
+        // Once the blocker runs the queue is empty, so the first task is queued right away and the second one only
+        // after waiting for room in vain.
+        while (dispatcher.getTaskCount() == 0)
+            Thread.sleep(1);
+        dispatcher.execute(nothing);
+        assertEquals(0, dispatcher.getOverflowCount());
+        dispatcher.execute(nothing);
+        assertEquals(1, dispatcher.getOverflowCount());
+        assertEquals(2, dispatcher.getQueueDepth());
+        release.countDown();
+        dispatcher.waitForAll();
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+}
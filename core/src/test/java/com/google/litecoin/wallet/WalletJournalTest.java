@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.litecoin.wallet;
+
+import com.google.litecoin.core.*;
+import com.google.litecoin.params.UnitTestParams;
+import com.google.litecoin.utils.BriefLogFormatter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.litecoin.utils.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private File directory;
+    private File file;
+    private ECKey myKey;
+    private Wallet wallet;
+    private WalletFiles files;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        directory = File.createTempFile("walletjournal", null);
+        directory.delete();
+        directory.mkdir();
+        file = new File(directory, "test.wallet");
+        myKey = new ECKey();
+        wallet = new Wallet(params);
+        wallet.addKey(myKey);
+        files = new WalletFiles(wallet, file, 0, TimeUnit.SECONDS);
+        files.enableJournaling();
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = directory.listFiles();
+        if (children != null)
+            for (File child : children)
+                child.delete();
+        directory.delete();
+    }
+
+    private File[] journals() {
+        return directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".journal");
+            }
+        });
+    }
+
+    @Test
+    public void recordsAreReplayed() throws Exception {
+        files.saveNow();
+        long snapshotLength = file.length();
+        assertEquals(1, journals().length);
+
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myKey);
+        wallet.receivePending(t1, null);
+        ECKey key2 = new ECKey();
+        wallet.addKey(key2);
+        wallet.setDescription("journaled");
+        files.saveNow();
+        // Only the journal grew.
+        assertEquals(snapshotLength, file.length());
+        assertEquals(1, journals().length);
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(1, loaded.getTransactions(true).size());
+        assertEquals(Utils.toNanoCoins(1, 0), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertNotNull(loaded.findKeyFromPubKey(key2.getPubKey()));
+        assertEquals("journaled", loaded.getDescription());
+    }
+
+    @Test
+    public void sideChainAppearanceIsJournaled() throws Exception {
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myKey);
+        Block genesis = params.getGenesisBlock();
+        StoredBlock best = new StoredBlock(genesis.createNextBlock(new ECKey().toAddress(params)), BigInteger.ONE, 1);
+        StoredBlock side = new StoredBlock(genesis.createNextBlock(new ECKey().toAddress(params)), BigInteger.ONE, 1);
+        wallet.receiveFromBlock(t1, best, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(best);
+        files.saveNow();
+        wallet.receiveFromBlock(t1, side, AbstractBlockChain.NewBlockType.SIDE_CHAIN, 0);
+        files.saveNow();
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        Map<Sha256Hash, Integer> appearsIn = loaded.getTransaction(t1.getHash()).getAppearsInHashes();
+        assertTrue(appearsIn.containsKey(best.getHeader().getHash()));
+        assertTrue(appearsIn.containsKey(side.getHeader().getHash()));
+    }
+
+    @Test
+    public void damagedTailIsIgnored() throws Exception {
+        files.saveNow();
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myKey);
+        wallet.receivePending(t1, null);
+        files.saveNow();
+        // A record cut short by a crash.
+        FileOutputStream stream = new FileOutputStream(journals()[0], true);
+        stream.write(new byte[] { 100, 1, 2, 3 });
+        stream.close();
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertNotNull(loaded.getTransaction(t1.getHash()));
+    }
+
+    @Test
+    public void snapshotReplacesJournal() throws Exception {
+        files.saveNow();
+        File first = journals()[0];
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myKey);
+        wallet.receivePending(t1, null);
+        // Removing a key can't be journaled, so this save writes a new snapshot and starts a new journal.
+        wallet.removeKey(myKey);
+        files.saveNow();
+        File[] journals = journals();
+        assertEquals(1, journals.length);
+        assertFalse(first.equals(journals[0]));
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(0, loaded.getKeychainSize());
+        assertNotNull(loaded.getTransaction(t1.getHash()));
+    }
+
+    @Test
+    public void staleJournalIsIgnored() throws Exception {
+        files.saveNow();
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myKey);
+        wallet.receivePending(t1, null);
+        files.saveNow();
+        // A wallet file saved in full by other means has no generation, so the journal left next to it is not used.
+        Wallet other = new Wallet(params);
+        other.addKey(myKey);
+        other.saveToFile(file);
+        assertEquals(1, journals().length);
+        assertEquals(0, Wallet.loadFromFile(file).getTransactions(true).size());
+    }
+}